@@ -22,6 +22,72 @@ public class Configuration {
 	/** Number of encoder workers. Default is 2.*/
 	private int encoderWorkers = 2;
 	
+	/** Port the job intake listener accepts pushed jobs on. 0 = listener turned off. Default is 0.*/
+	private int jobIntakePort = 0;
+	
+	/** Address the job intake listener is bound to. 0.0.0.0 = every interface, needed for ENCODER_NODES to reach it. Default is 127.0.0.1.*/
+	private String jobIntakeBind = "127.0.0.1";
+	
+	/** Secret each request to the job intake listener must send in its X-Job-Intake-Secret header, it can not have = or # in it. "none" = not checked.*/
+	private String jobIntakeSecret = "none";
+	
+	/** Seconds between checks of the web site for encoding jobs. Default is 60.*/
+	private int encodingJobsPollSeconds = 60;
+	
+	/** Number of ffmpeg threads that can run at once across all workers. Default is the number of processors.*/
+	private int encoderCpuThreads = Runtime.getRuntime().availableProcessors();
+	
+	/** Seconds an ffmpeg encode can go without its output time moving forward before it is killed. Default is 300.*/
+	private int ffmpegStallSeconds = 300;
+	
+	/** An ffmpeg encode is killed once it has run this many times the duration of the media. Default is 4.*/
+	private int ffmpegTimeoutMultiplier = 4;
+	
+	/** The least amount of seconds an ffmpeg encode is given before the timeout multiplier applies. Default is 1800.*/
+	private int ffmpegMinTimeoutSeconds = 1800;
+	
+	/** Number of times a job is tried when its ffmpeg encode is killed. Default is 3.*/
+	private int jobMaxAttempts = 3;
+	
+	/** Seconds to wait before a killed job is tried again, doubled for each attempt. Default is 60.*/
+	private int jobRetryBackoffSeconds = 60;
+	
+	/** File the queued and running jobs are journaled to so they survive a restart. "none" = journal turned off.*/
+	private String jobJournalFile = "/opt/gomedia/jencoder/jobs.journal";
+	
+	/** Number of archive videos whose in/out playlists are rewritten at the same time. Default is the number of processors.*/
+	private int hlsRefreshThreads = Runtime.getRuntime().availableProcessors();
+	
+	/** Seconds the in/out videos of a channel are cached before they are loaded again. Default is 300.*/
+	private int inOutCacheSeconds = 300;
+	
+	/** 1 to fsync each playlist and its directory when it is published so it survives a power loss. Default is 0.*/
+	private int playlistFsync = 0;
+	
+	/** Directory of the live segmenter output to restream as a sliding window playlist. "none" = turned off.*/
+	private String liveRestreamPath = "none";
+	
+	/** Number of segments in a live restream playlist. Default is 10.*/
+	private int liveWindowSegments = 10;
+	
+	/** Most seconds of video a live restream playlist holds, so a player joining is at most this far behind live. 0 = only LIVE_WINDOW_SEGMENTS limits it.*/
+	private int liveTargetLatencySeconds = 0;
+	
+	/** Seconds a new recording must stop growing before it is probed ahead of its job. 0 = recordings are not watched.*/
+	private int recordingStableSeconds = 30;
+	
+	/** 1 to also encode the HLS renditions of a new recording ahead of its job. Default is 0.*/
+	private int recordingPresegment = 0;
+	
+	/** Other jEncoder nodes the chunks of a long re-encode are shared with, host:port of their job intake listener separated by commas. "none" = encoded on this node only.*/
+	private String encoderNodes = "none";
+	
+	/** Seconds of the input in each chunk of a chunked encode, rounded down to whole segments. Only inputs at least two chunks long are chunked. Default is 300.*/
+	private int chunkSeconds = 300;
+	
+	/** Number of chunks of a chunked encode this node encodes at once. More than 1 chunks long re-encodes even without ENCODER_NODES, 0 = as many as the CPU budget has threads for. Default is 1.*/
+	private int chunkLocalEncodes = 1;
+	
 	protected Configuration() {
 	}
 	
@@ -62,6 +128,50 @@ public class Configuration {
 							webServerRootPath = value;
 					} else if ("JENCODER_WORKERS".equals(key)) {
 						encoderWorkers = Integer.parseInt(value);
+					} else if ("JOB_INTAKE_PORT".equals(key)) {
+						jobIntakePort = Integer.parseInt(value);
+					} else if ("JOB_INTAKE_BIND".equals(key)) {
+						jobIntakeBind = value;
+					} else if ("JOB_INTAKE_SECRET".equals(key)) {
+						jobIntakeSecret = value;
+					} else if ("ENCODING_JOBS_POLL_SECONDS".equals(key)) {
+						encodingJobsPollSeconds = Integer.parseInt(value);
+					} else if ("ENCODER_CPU_THREADS".equals(key)) {
+						encoderCpuThreads = Integer.parseInt(value);
+					} else if ("FFMPEG_STALL_SECONDS".equals(key)) {
+						ffmpegStallSeconds = Integer.parseInt(value);
+					} else if ("FFMPEG_TIMEOUT_MULTIPLIER".equals(key)) {
+						ffmpegTimeoutMultiplier = Integer.parseInt(value);
+					} else if ("FFMPEG_MIN_TIMEOUT_SECONDS".equals(key)) {
+						ffmpegMinTimeoutSeconds = Integer.parseInt(value);
+					} else if ("JOB_MAX_ATTEMPTS".equals(key)) {
+						jobMaxAttempts = Integer.parseInt(value);
+					} else if ("JOB_RETRY_BACKOFF_SECONDS".equals(key)) {
+						jobRetryBackoffSeconds = Integer.parseInt(value);
+					} else if ("JOB_JOURNAL_FILE".equals(key)) {
+						jobJournalFile = value;
+					} else if ("HLS_REFRESH_THREADS".equals(key)) {
+						hlsRefreshThreads = Integer.parseInt(value);
+					} else if ("INOUT_CACHE_SECONDS".equals(key)) {
+						inOutCacheSeconds = Integer.parseInt(value);
+					} else if ("PLAYLIST_FSYNC".equals(key)) {
+						playlistFsync = Integer.parseInt(value);
+					} else if ("LIVE_RESTREAM_PATH".equals(key)) {
+						liveRestreamPath = value;
+					} else if ("LIVE_WINDOW_SEGMENTS".equals(key)) {
+						liveWindowSegments = Integer.parseInt(value);
+					} else if ("LIVE_TARGET_LATENCY_SECONDS".equals(key)) {
+						liveTargetLatencySeconds = Integer.parseInt(value);
+					} else if ("RECORDING_STABLE_SECONDS".equals(key)) {
+						recordingStableSeconds = Integer.parseInt(value);
+					} else if ("RECORDING_PRESEGMENT".equals(key)) {
+						recordingPresegment = Integer.parseInt(value);
+					} else if ("ENCODER_NODES".equals(key)) {
+						encoderNodes = value;
+					} else if ("CHUNK_SECONDS".equals(key)) {
+						chunkSeconds = Integer.parseInt(value);
+					} else if ("CHUNK_LOCAL_ENCODES".equals(key)) {
+						chunkLocalEncodes = Integer.parseInt(value);
 					}
 				}				
 			}
@@ -76,6 +186,94 @@ public class Configuration {
 		return encoderWorkers;
 	}
 	
+	public int getJobIntakePort() {
+		return jobIntakePort;
+	}
+	
+	public String getJobIntakeBind() {
+		return jobIntakeBind;
+	}
+	
+	public String getJobIntakeSecret() {
+		return jobIntakeSecret;
+	}
+	
+	public int getEncodingJobsPollSeconds() {
+		return encodingJobsPollSeconds;
+	}
+	
+	public int getEncoderCpuThreads() {
+		return encoderCpuThreads;
+	}
+	
+	public int getFfmpegStallSeconds() {
+		return ffmpegStallSeconds;
+	}
+	
+	public int getFfmpegTimeoutMultiplier() {
+		return ffmpegTimeoutMultiplier;
+	}
+	
+	public int getFfmpegMinTimeoutSeconds() {
+		return ffmpegMinTimeoutSeconds;
+	}
+	
+	public int getJobMaxAttempts() {
+		return jobMaxAttempts;
+	}
+	
+	public int getJobRetryBackoffSeconds() {
+		return jobRetryBackoffSeconds;
+	}
+	
+	public String getJobJournalFile() {
+		return jobJournalFile;
+	}
+	
+	public int getHlsRefreshThreads() {
+		return hlsRefreshThreads;
+	}
+	
+	public int getInOutCacheSeconds() {
+		return inOutCacheSeconds;
+	}
+	
+	public int getPlaylistFsync() {
+		return playlistFsync;
+	}
+	
+	public String getLiveRestreamPath() {
+		return liveRestreamPath;
+	}
+	
+	public int getLiveWindowSegments() {
+		return liveWindowSegments;
+	}
+	
+	public int getLiveTargetLatencySeconds() {
+		return liveTargetLatencySeconds;
+	}
+	
+	public int getRecordingStableSeconds() {
+		return recordingStableSeconds;
+	}
+	
+	public int getRecordingPresegment() {
+		return recordingPresegment;
+	}
+	
+	public String getEncoderNodes() {
+		return encoderNodes;
+	}
+	
+	public int getChunkSeconds() {
+		return chunkSeconds;
+	}
+	
+	public int getChunkLocalEncodes() {
+		return chunkLocalEncodes;
+	}
+	
 	public String getEvostreamServerName() {
 		return evostreamServerName;
 	}
@@ -1,28 +1,55 @@
 package jEncoder.apple_hls;
 
-import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import jEncoder.client.*;
 import jEncoder.util.LogSystem;
 
 public class HLSupdater {
 
+	/** Clients and channels that have not been used for this long are removed. (1000 = 1 second). */
+	private static final long IDLE_EVICT_TIME = 1000L * 60 * 60 * 24;
+	
+	/** How often the idle clients and channels are removed. (1000 = 1 second). */
+	private static final long EVICT_INTERVAL = 1000L * 60 * 60;
+	
     // The only instance of this class.
     private static HLSupdater instance = null;
     
     /** The only reason ClientInfo is saved is to have a way to concurrency work correctly. The ChannelInfo
      * has concurrency to keep from the end user updating the HLS too quickly.
      * */
-    private static LinkedList<ClientInfo> ltClientInfo = new LinkedList<ClientInfo>();
+    private final IdleRegistry<Integer, ClientInfo> clients = new IdleRegistry<Integer, ClientInfo>(new IdleRegistry.Factory<Integer, ClientInfo>() {
+		@Override
+		public ClientInfo create(Integer clientInfoId) {
+			return new ClientInfo(clientInfoId);
+		}
+	});
     
     // [start] Methods: Constructor and getInstance()
 
     protected HLSupdater() {
+    	ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HLSupdater-evict");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+    	evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, EVICT_INTERVAL, EVICT_INTERVAL, TimeUnit.MILLISECONDS);
     }
     
     /** @return the only instance of this class.
      */
-    public static HLSupdater getInstance() {
+    public static synchronized HLSupdater getInstance() {
         if(instance == null) {
             instance = new HLSupdater();
         }
@@ -38,8 +65,12 @@ public class HLSupdater {
     public void updateAllHLS(int clientInfoId, int channelNo, String jobIdNumber) {
     	LogSystem.getInstance().printInfo(clientInfoId, channelNo, "Job [" + jobIdNumber + "] Refreshing all HLS inout.");
     	
-    	ClientInfo client = getClient(clientInfoId);
-    	client.updateAllHLS(channelNo, jobIdNumber);
+    	ClientInfo client = clients.acquire(clientInfoId);
+    	try {
+    		client.updateAllHLS(channelNo, jobIdNumber);
+    	} finally {
+    		clients.release(client);
+    	}
     }
     
     /** This will update a single video HLS archive.
@@ -50,19 +81,44 @@ public class HLSupdater {
     public void updateSingleHLS(int clientInfoId, int channelNo, String filename, String jobIdNumber) {
     	LogSystem.getInstance().printInfo(clientInfoId, channelNo, "Job [" + jobIdNumber + "] Refreshing HLS for file:[" + filename + "]");
     	
-    	ClientInfo client = getClient(clientInfoId);
-    	client.updateSingleHLS(channelNo, filename, jobIdNumber);    	
+    	ClientInfo client = clients.acquire(clientInfoId);
+    	try {
+    		client.updateSingleHLS(channelNo, filename, jobIdNumber);
+    	} finally {
+    		clients.release(client);
+    	}
+    }
+    
+    /** This will make the next update of the channel load its in/out videos again. Called when an in/out video of the
+     * channel has changed.
+     * @param clientInfoId is the ClientInfo.client_info_id.
+     * @param channelNo is the ChannelInfo.channel_no.
+     * */
+    public void invalidateInOutVideos(int clientInfoId, int channelNo) {
+    	ClientInfo client = clients.acquire(clientInfoId);
+    	try {
+    		client.invalidateInOutVideos(channelNo);
+    	} finally {
+    		clients.release(client);
+    	}
     }
     
-    /** @return the client's information.
+    /** This will remove the channels and then the clients that have not been used for IDLE_EVICT_TIME. A client is only
+     * removed once it has no channels left.
      * */
-    private ClientInfo getClient(int clientInfoId) {
-    	for (ClientInfo client : ltClientInfo) {
-    		if (client.isClientId(clientInfoId))
-    			return client;
+    private void evictIdle() {
+    	try {
+	    	long idleSince = System.currentTimeMillis() - IDLE_EVICT_TIME;
+	    	int channelCount = 0;
+	    	for (ClientInfo client : clients.values()) {
+	    		channelCount += client.evictIdleChannels(idleSince);
+	    	}
+	    	int clientCount = clients.evictIdle(idleSince);
+	    	
+	    	if (channelCount > 0 || clientCount > 0)
+	    		LogSystem.getInstance().printInfo(0, 0, "Removed idle clients:[" + clientCount + "] channels:[" + channelCount + "]");
+    	} catch (Exception e) {
+    		LogSystem.getInstance().printError("Unable to remove idle clients.", e);
     	}
-    	ClientInfo newClient = new ClientInfo(clientInfoId);
-    	ltClientInfo.add(newClient);
-    	return newClient;    	
     }
 }
@@ -0,0 +1,264 @@
+package jEncoder.apple_hls;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import jEncoder.Configuration;
+import jEncoder.util.LogSystem;
+
+/** This restreams what the live segmenter is writing as a sliding window playlist so viewers can watch a recording while it
+ * is still being recorded, instead of waiting for the recording job.
+ *
+ * The LIVE_RESTREAM_PATH directory and every directory under it are watched. Each time a segmenter playlist is written
+ * (ie, a new segment has been added to it) the window kept for it is updated with M3U8ChildPlaylist.updateWith() and
+ * published next to it. Example: /opt/live/1/2/SD/playlist.m3u8 is published as /opt/live/1/2/SD/playlist_live.m3u8 which
+ * holds the latest LIVE_WINDOW_SEGMENTS segments, at most LIVE_TARGET_LATENCY_SECONDS of them. The segments are the
+ * segmenter's, only the playlist is written.
+ *
+ * Once the segmenter playlist has #EXT-X-ENDLIST, or it is deleted, the window is ended the same way so players stop
+ * polling it, and it is no longer followed.
+ *
+ * The directories under LIVE_RESTREAM_PATH are expected to be <cid>/<cno>/..., the ids are only used for logging.
+ * */
+public class LiveRestream {
+
+	/** What is added to the name of the segmenter playlist for the window published next to it. */
+	private static final String LIVE_SUFFIX = "_live.m3u8";
+
+	/** The prefix of the temporary files PlaylistPublisher writes. */
+	private static final String TEMP_PREFIX = "temp";
+
+	private static LiveRestream instance = null;
+
+	/** The directory being watched, null if turned off. */
+	private final Path rootPath;
+
+	/** The windows by the segmenter playlist they follow. Only used by the watch thread. */
+	private final HashMap<Path, M3U8ChildPlaylist> mapWindows = new HashMap<Path, M3U8ChildPlaylist>();
+
+	/** The watched directories by their key. Only used by the watch thread. */
+	private final HashMap<WatchKey, Path> mapKeys = new HashMap<WatchKey, Path>();
+
+	private WatchService watchService;
+
+	// [start] Methods: Constructor and getInstance()
+
+	protected LiveRestream() {
+		String path = Configuration.getInstance().getLiveRestreamPath();
+		rootPath = "none".equals(path) || "".equals(path) ? null : Paths.get(path);
+	}
+
+	public static synchronized LiveRestream getInstance() {
+		if (instance == null) {
+			instance = new LiveRestream();
+		}
+		return instance;
+	}
+
+	// [end]
+
+	/** This will start watching LIVE_RESTREAM_PATH. Does nothing if it is turned off or already started.
+	 * */
+	public synchronized void start() {
+		if (rootPath == null || watchService != null)
+			return;
+
+		try {
+			Files.createDirectories(rootPath);
+			watchService = FileSystems.getDefault().newWatchService();
+			registerAll(rootPath);
+		} catch (Exception e) {
+			LogSystem.getInstance().printError("Unable to watch the live restream path: " + rootPath, e);
+			return;
+		}
+
+		Thread thread = new Thread("LiveRestream") {
+			public void run() {
+				watch();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+
+		LogSystem.getInstance().printInfo(0, 0, "Live restream watching: " + rootPath + " window:[" + Configuration.getInstance().getLiveWindowSegments()
+			+ " segments, " + Configuration.getInstance().getLiveTargetLatencySeconds() + " seconds]");
+	}
+
+	/** This is the watch thread. The events that come in together are collected first so a playlist written several times
+	 * in a row is only read once.
+	 * */
+	private void watch() {
+		Set<Path> setChanged = new LinkedHashSet<Path>();
+		while (true) {
+			try {
+				WatchKey key = watchService.take();
+				do {
+					collect(key, setChanged);
+				} while ((key = watchService.poll()) != null);
+
+				for (Path playlist : setChanged)
+					update(playlist);
+				setChanged.clear();
+
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			} catch (Exception e) {
+				LogSystem.getInstance().printError("Live restream error.", e);
+				setChanged.clear();
+			}
+		}
+	}
+
+	/** This will add the segmenter playlists the key has events for to the set, and start watching new directories.
+	 * */
+	private void collect(WatchKey key, Set<Path> setChanged) {
+		Path dir = mapKeys.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW)
+				continue;
+
+			Path path = dir.resolve((Path)event.context());
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+				try {
+					registerAll(path);
+				} catch (IOException e) {
+					LogSystem.getInstance().printError("Unable to watch the live restream directory: " + path, e);
+				}
+			} else if (isSegmenterPlaylist(path)) {
+				if (event.kind() != StandardWatchEventKinds.ENTRY_DELETE) {
+					setChanged.add(path);
+				} else {
+					// The recording is over, its window is ended with what it has.
+					setChanged.remove(path);
+					M3U8ChildPlaylist window = mapWindows.remove(path);
+					if (window != null)
+						end(window);
+				}
+			}
+		}
+
+		// The directory is gone, forget its windows.
+		if (!key.reset()) {
+			mapKeys.remove(key);
+			if (dir != null)
+				removeWindows(dir);
+		}
+	}
+
+	/** This will update the window of the segmenter playlist and publish it.
+	 * */
+	private void update(Path playlist) {
+		M3U8ChildPlaylist window = mapWindows.get(playlist);
+		if (window == null) {
+			int ids[] = getIds(playlist);
+			window = new M3U8ChildPlaylist(ids[0], ids[1]);
+			window.setWindow(Configuration.getInstance().getLiveWindowSegments(), Configuration.getInstance().getLiveTargetLatencySeconds());
+			window.setFilename(getLivePlaylist(playlist).toString());
+			mapWindows.put(playlist, window);
+
+			LogSystem.getInstance().printInfo(ids[0], ids[1], "Live restream started: " + window.getFilename());
+		}
+
+		// Only publish when a segment has been added.
+		TsInfo latest = window.segments.isEmpty() ? null : window.getLatestTsInfo();
+		if (window.updateWith(playlist.toString())) {
+			mapWindows.remove(playlist);
+			end(window);
+		} else if (window.countVideos() > 0 && (latest == null || !window.segments.equalTo(window.segments.size() - 1, latest))) {
+			window.write();
+		}
+	}
+
+	/** This will end the window with #EXT-X-ENDLIST and publish it, so the players know the recording is over.
+	 * */
+	private void end(M3U8ChildPlaylist window) {
+		if (window.countVideos() > 0) {
+			window.add(TsInfo.newEndList());
+			window.write();
+		}
+		LogSystem.getInstance().printInfo(window.clientId, window.channelNo, "Live restream ended: " + window.getFilename());
+	}
+
+	/** This will forget the windows of the segmenter playlists in the directory.
+	 * */
+	private void removeWindows(Path dir) {
+		Iterator<Map.Entry<Path, M3U8ChildPlaylist>> itr = mapWindows.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<Path, M3U8ChildPlaylist> entry = itr.next();
+			if (entry.getKey().startsWith(dir)) {
+				LogSystem.getInstance().printInfo(entry.getValue().clientId, entry.getValue().channelNo, "Live restream stopped: " + entry.getValue().getFilename());
+				itr.remove();
+			}
+		}
+	}
+
+	/** This will watch the directory and every directory under it. Segmenter playlists already in them are read so their
+	 * windows start out with what is there.
+	 * */
+	private void registerAll(Path start) throws IOException {
+		final Set<Path> setExisting = new LinkedHashSet<Path>();
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				mapKeys.put(key, dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (isSegmenterPlaylist(file))
+					setExisting.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		for (Path playlist : setExisting)
+			update(playlist);
+	}
+
+	/** @return true if the file is a playlist the segmenter wrote, ie, not a window or a temporary file.
+	 * */
+	private static boolean isSegmenterPlaylist(Path path) {
+		String name = path.getFileName().toString();
+		return name.endsWith(".m3u8") && !name.endsWith(LIVE_SUFFIX) && !name.startsWith(TEMP_PREFIX);
+	}
+
+	/** @return the window playlist published for the segmenter playlist. Example: SD/playlist.m3u8 -> SD/playlist_live.m3u8
+	 * */
+	private static Path getLivePlaylist(Path playlist) {
+		String name = playlist.getFileName().toString();
+		return playlist.resolveSibling(name.substring(0, name.length() - ".m3u8".length()) + LIVE_SUFFIX);
+	}
+
+	/** @return the client id and channel # of the segmenter playlist, 0 if its path does not have them.
+	 * */
+	private int[] getIds(Path playlist) {
+		int ids[] = {0, 0};
+		Path relative = rootPath.relativize(playlist);
+		for (int i=0; i < 2 && i < relative.getNameCount() - 1; i++) {
+			try {
+				ids[i] = Integer.parseInt(relative.getName(i).toString());
+			} catch (NumberFormatException e) {
+				break;
+			}
+		}
+		return ids;
+	}
+}
@@ -1,19 +1,9 @@
 package jEncoder.apple_hls;
 
-import java.io.BufferedWriter;
-import java.nio.charset.Charset;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
-import java.nio.file.attribute.PosixFilePermission;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
 import jEncoder.util.*;
 
@@ -31,12 +21,23 @@ public class M3U8ChildPlaylist {
 	String programDateTime = "";
 	/** The media sequence. */
 	int mediaSequence;
+	/** The number of discontinuities removed from the start of the list. If zero then don't print out. */
+	int discontinuitySequence;
 	/** The media version for the m3u8 file. If zero then don't print out. */
 	int version = 0;
 	/** If allow cache is turned on, YES/NO. If Blank then don't print out. */
 	String allowCache = "";
 	
-	LinkedList<TsInfo> ltTsInfo = new LinkedList<TsInfo>();
+	/** The most video files updateWith() and add() keep, the oldest are removed past it. */
+	int windowSize = 10;
+	/** The most seconds of video updateWith() keeps, 0 = no limit. It never goes below MIN_WINDOW_SIZE video files. */
+	int windowSeconds = 0;
+	
+	/** The fewest video files a live window is trimmed to by windowSeconds, players start three segments from the end. */
+	private static final int MIN_WINDOW_SIZE = 3;
+	
+	/** The segments in the order they are listed. */
+	SegmentTable segments = new SegmentTable();
 	
 	public M3U8ChildPlaylist(int clientId, int channelNo) {
 		this.clientId = clientId;
@@ -49,49 +50,93 @@ public class M3U8ChildPlaylist {
 		return programDateTime;
 	}
 	
+	/** This sets how much of the latest video updateWith() and add() keep.
+	 * @param segments is the most video files to keep.
+	 * @param seconds is the most seconds of video to keep, 0 = only segments limits it.
+	 * */
+	public void setWindow(int segments, int seconds) {
+		this.windowSize = segments;
+		this.windowSeconds = seconds;
+	}
+	
 	/** This is the filename to read or write to.
 	 * */
 	public void setFilename(String filename) {
 		this.filename = filename;
 	}
 	
+	public String getFilename() {
+		return filename;
+	}
+	
 	/** This will add an intro video to the m3u8 file.
 	 * */
 	public void addIntroVideo(M3U8ChildPlaylist intro) {
 		// Add a Discontinuity record first between intro video and archive video.
-		ltTsInfo.addFirst(TsInfo.newDiscontinuity());
-		
-		Iterator<TsInfo> i = intro.ltTsInfo.descendingIterator();
-		while (i.hasNext()) {
-			TsInfo ts = i.next();
-			if (ts.getType() == TsInfo.Type.VIDEO_FILE)
-				ltTsInfo.addFirst(ts);
-		}
+		SegmentTable table = new SegmentTable(intro.segments.size() + 1 + segments.size());
+		table.addVideoFiles(intro.segments);
+		table.add(TsInfo.Type.DISCONTINUITY);
+		table.addAll(segments);
+		segments = table;
 	}
 	
 	/** This will add an ending video to the m3u8 file.
 	 * */
 	public void addEndingVideo(M3U8ChildPlaylist ending) {
 		// Add a Discontinuity record first between ending video and archive video.
-		ltTsInfo.add(TsInfo.newDiscontinuity());
+		segments.add(TsInfo.Type.DISCONTINUITY);
+		segments.addVideoFiles(ending.segments);
+	}
+	
+	/** This will take the version, allow cache and target duration of the playlist, ie, for a playlist made from it.
+	 * */
+	public void copyHeader(M3U8ChildPlaylist m3u8) {
+		targetDuration = m3u8.targetDuration;
+		version = m3u8.version;
+		allowCache = m3u8.allowCache;
+	}
+	
+	/** @return the number of TsInfo records, including the discontinuities and the end of the list.
+	 * */
+	public int getTsInfoCount() {
+		return segments.size();
+	}
+	
+	/** @return the TsInfo record at the index, from 0 to getTsInfoCount() - 1.
+	 * */
+	public TsInfo getTsInfo(int index) {
+		return segments.get(index);
+	}
+	
+	/** This will set this to the parts of one video that were encoded on their own joined together, ie, the chunks of a
+	 * chunked encode. The header is taken from the first part and the list is ended after the last part.
+	 * */
+	public void join(List<M3U8ChildPlaylist> parts) {
+		M3U8ChildPlaylist first = parts.get(0);
+		targetDuration = first.targetDuration;
+		mediaSequence = first.mediaSequence;
+		discontinuitySequence = first.discontinuitySequence;
+		version = first.version;
+		allowCache = first.allowCache;
 		
-		Iterator<TsInfo> i = ending.ltTsInfo.iterator();
-		while (i.hasNext()) {
-			TsInfo ts = i.next();
-			if (ts.getType() == TsInfo.Type.VIDEO_FILE)
-				ltTsInfo.add(ts);
-		}
+		int size = 1;
+		for (M3U8ChildPlaylist part : parts)
+			size += part.segments.size();
+		
+		SegmentTable table = new SegmentTable(size);
+		for (M3U8ChildPlaylist part : parts)
+			table.addVideoFiles(part.segments);
+		table.add(TsInfo.Type.ENDLIST);
+		segments = table;
 	}
 	
 	/** This will update the target duration to the largest time found in the list of TsInfo.
 	 * */
 	public void updateTargetDuration() {
-		Iterator<TsInfo> i = ltTsInfo.iterator();
 		targetDuration = 0;
-		while (i.hasNext()) {
-			TsInfo ts = i.next();
-			if (ts.getDuration() > targetDuration)
-				targetDuration = (int)Math.ceil(ts.getDuration());
+		for (int i=0; i < segments.size(); i++) {
+			if (segments.getDuration(i) > targetDuration)
+				targetDuration = (int)Math.ceil(segments.getDuration(i));
 		}
 	}
 	
@@ -100,22 +145,18 @@ public class M3U8ChildPlaylist {
 	 *             is pre-appending it will look like this: /opt/gomedia/media/archive/clients/1/inout/1/in/SD/0000.ts
 	 * */
 	public void updateTSInfoPath(String path) {
-		Iterator<TsInfo> i = ltTsInfo.iterator();
-		while (i.hasNext()) {
-			TsInfo ts = i.next();
-			if (ts.type != TsInfo.Type.VIDEO_FILE)
-				continue;			
-			ts.updatePath(path);
-		}		
+		segments.updatePath(path);
 	}
 	
-	/** This will load the m3u8 file and update this with the latest video files from it.
+	/** This will load the m3u8 file and update this with the latest video files from it. If this is empty it starts out
+	 * with the latest video files of it. The window is then trimmed to setWindow().
+	 * @return true if the m3u8 file has ended, ie, it ends with #EXT-X-ENDLIST. The end of the list is not added to this.
 	 * */
-	public void updateWith(String m3u8file) {
+	public boolean updateWith(String m3u8file) {
 
 		if (!Files.exists(FileSystems.getDefault().getPath(m3u8file))) {
 			LogSystem.getInstance().printError(clientId, channelNo, "m3u8 file does not exist. " + m3u8file);
-			return;
+			return false;
 		}
 
 		// Read in the file.
@@ -124,72 +165,90 @@ public class M3U8ChildPlaylist {
 		m3u8.read();
 		
 		// Does the latest current video file exist in that m3u8? If not then need to add the discontinuity when a video file is added.
+		// The new video files are the ones after it, or all of them if it does not exist.
 		boolean bNeedDiscontinuity = false;
-		if (!ltTsInfo.isEmpty()) {		
-			TsInfo tsInfoLatest = ltTsInfo.getLast();
-			if (!m3u8.exists(tsInfoLatest) && tsInfoLatest.type == TsInfo.Type.VIDEO_FILE) {
+		int newFrom = 0;
+		if (segments.isEmpty()) {
+			// Starting out so take all of them, the ones before the window are trimmed off below.
+			mediaSequence = m3u8.mediaSequence;
+			discontinuitySequence = m3u8.discontinuitySequence;
+		} else {
+			int latest = segments.size() - 1;
+			int found = m3u8.segments.indexOf(segments, latest);
+			if (found < 0 && segments.isVideoFile(latest)) {
 				// Since the video file does not exist therefore add a discontinuity to this m3u8.
 				bNeedDiscontinuity = true;
 			}
+			newFrom = found + 1;
 		}
 
-		// Get the new video files.
-		LinkedList<TsInfo> ltAdds = compare(m3u8);
-		for (TsInfo tsInfo : ltAdds) {
-			if (tsInfo.getType() == TsInfo.Type.VIDEO_FILE) {
+		// Add the new video files.
+		for (int i=newFrom; i < m3u8.segments.size(); i++) {
+			if (m3u8.segments.isVideoFile(i)) {
 				// Add the discontinuity flag before add this video file.
 				if (bNeedDiscontinuity) {
-					ltTsInfo.add(TsInfo.newDiscontinuity());
+					segments.add(TsInfo.Type.DISCONTINUITY);
 					bNeedDiscontinuity = false;
 				}
 
-				ltTsInfo.add(tsInfo);
+				segments.add(m3u8.segments, i);
 			}
 		}
 		
 		// Update the program date time value.
 		programDateTime = m3u8.programDateTime;
+		if (m3u8.targetDuration > targetDuration)
+			targetDuration = m3u8.targetDuration;
 		
 		// Remove old video files from the m3u8 file.
-		while (countVideos() > 10) {
-			mediaSequence++;
-			ltTsInfo.removeFirst();
+		while (countVideos() > windowSize || (windowSeconds > 0 && countVideos() > MIN_WINDOW_SIZE && getTotalDuration() > windowSeconds)) {
+			removeFirst();
 		}
-		if (!ltTsInfo.isEmpty()) {
-			TsInfo tsFirst = ltTsInfo.getFirst();
-			if (tsFirst.type != TsInfo.Type.VIDEO_FILE)
-				ltTsInfo.removeFirst();
+		if (!segments.isEmpty()) {
+			if (!segments.isVideoFile(0))
+				removeFirst();
 		}
 		
+		return !m3u8.segments.isEmpty() && m3u8.getLatestTsInfo().getType() == TsInfo.Type.ENDLIST;
+	}
+	
+	/** This will remove the first segment. The media sequence counts the video files removed and the discontinuity
+	 * sequence the discontinuities, so a player still knows where it is in the list.
+	 * */
+	private void removeFirst() {
+		if (segments.isVideoFile(0))
+			mediaSequence++;
+		else if (segments.getType(0) == TsInfo.Type.DISCONTINUITY)
+			discontinuitySequence++;
+		segments.removeFirst();
 	}
 	
 	/** @return the number of videos segments found in this m3u8 file.
 	 * */
 	public int countVideos() {
-		int count = 0;
-		for (TsInfo ts : ltTsInfo) {
-			if (ts.getType() == TsInfo.Type.VIDEO_FILE)
-				count++;
+		return segments.videoCount();
+	}
+	
+	/** @return the total duration in seconds of the video segments found in this m3u8 file.
+	 * */
+	public float getTotalDuration() {
+		float duration = 0;
+		for (int i=0; i < segments.size(); i++) {
+			if (segments.isVideoFile(i))
+				duration += segments.getDuration(i);
 		}
-		return count;
+		return duration;
 	}
 	
 	public void add(TsInfo tsInfo) {
-		ltTsInfo.add(tsInfo);
-	
-		// Get count of only video files.
-		int count = 0;
-		for (TsInfo ts : ltTsInfo) {
-			if (ts.getType() == TsInfo.Type.VIDEO_FILE)
-				count++;
-		}
+		segments.add(tsInfo);
 		
 		// Remove old video file. If oldest is not a video file just continue until video file is removed.
-		if (count > 10) {
+		if (countVideos() > windowSize) {
 			// Remove an extra one if the first one is not a Video file.
-			if (ltTsInfo.getFirst().getType() != TsInfo.Type.VIDEO_FILE)
-				ltTsInfo.removeFirst();			
-			ltTsInfo.removeFirst();
+			if (!segments.isVideoFile(0))
+				segments.removeFirst();
+			segments.removeFirst();
 		}
 	}
 	
@@ -199,54 +258,11 @@ public class M3U8ChildPlaylist {
 		targetDuration = 0;
 		programDateTime = "";
 		mediaSequence = 0;
-		ltTsInfo = new LinkedList<TsInfo>();
+		discontinuitySequence = 0;
+		segments = new SegmentTable();
 		
 		try {
-			List<String> lines = Files.readAllLines(Paths.get(filename), Charset.defaultCharset());
-
-			Iterator<String> itr = lines.iterator(); 
-			while (itr.hasNext()) {
-				String line = itr.next();
-
-				// Get the value if it exists for this line.
-				String value = "";
-				int colonIndex = line.indexOf(':');
-				if (colonIndex > -1)
-					value = line.substring(colonIndex+1);
-				
-				if (line.startsWith("#EXTINF")) {
-					int commaIndex = line.indexOf(',');					
-
-					value = line.substring(colonIndex+1, commaIndex);
-					float duration = Float.valueOf(value);
-					
-					if (itr.hasNext()) {
-						String nextLine = itr.next();
-						ltTsInfo.add(new TsInfo(nextLine, duration, TsInfo.Type.VIDEO_FILE));						
-					}
-					
-				} else if (line.startsWith("#EXT-X-TARGETDURATION")) {
-					targetDuration = Integer.valueOf(value);
-					
-				} else if (line.startsWith("#EXT-X-MEDIA-SEQUENCE")) {
-					mediaSequence = Integer.valueOf(value);					
-					
-				} else if (line.startsWith("#EXT-X-PROGRAM-DATE-TIME")) {					
-					programDateTime = line.substring(colonIndex+1); 
-										
-				} else if (line.startsWith("#EXT-X-ENDLIST")) {
-					ltTsInfo.add(TsInfo.newEndList());
-					
-				} else if (line.startsWith("#EXT-X-DISCONTINUITY")) {
-					ltTsInfo.add(TsInfo.newDiscontinuity());					
-				
-				} else if (line.startsWith("#EXT-X-VERSION")) {
-					version = Integer.valueOf(value);					
-					
-				} else if (line.startsWith("#EXT-X-ALLOW-CACHE")) {
-					allowCache = value;
-				}
-			}					
+			M3U8Reader.read(this);
 		} catch (Exception e) {
 			LogSystem.getInstance().printError(clientId, channelNo, "Unable to read m3u8 file out: " + this, e);
 		}
@@ -255,45 +271,33 @@ public class M3U8ChildPlaylist {
 	/** This will write out the .m3u8 file. It will write to a temporary file and then atomically move it to the correct location. 
 	 * */
 	public void write() {
-		try {			
-			// Get a temporary file.
-	    	Path dir = Paths.get(filename).getParent();
-			Path temp = Files.createTempFile(dir, "temp", ".m3u8");					
-			BufferedWriter writer =  Files.newBufferedWriter( temp, Charset.defaultCharset(), StandardOpenOption.CREATE);
+		try {
+			PlaylistPublisher publisher = PlaylistPublisher.getInstance();
+			StringBuilder sb = publisher.getBuffer();
 
-			// Write out to the temporary file.
-			writer.write("#EXTM3U\n");
+			sb.append("#EXTM3U\n");
 								
 			if (version > 0)
-				writer.write("#EXT-X-VERSION:" + version + "\n");
+				sb.append("#EXT-X-VERSION:").append(version).append('\n');
 		
-			writer.write("#EXT-X-MEDIA-SEQUENCE:" + mediaSequence + "\n");
+			sb.append("#EXT-X-MEDIA-SEQUENCE:").append(mediaSequence).append('\n');
+			
+			if (discontinuitySequence > 0)
+				sb.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySequence).append('\n');
 			
 			if (!"".equals(allowCache))
-				writer.write("#EXT-X-ALLOW-CACHE:" + allowCache + "\n");
+				sb.append("#EXT-X-ALLOW-CACHE:").append(allowCache).append('\n');
 			
 			if (!"".equals(programDateTime))
-				writer.write("#EXT-X-PROGRAM-DATE-TIME:" + programDateTime + "\n");
+				sb.append("#EXT-X-PROGRAM-DATE-TIME:").append(programDateTime).append('\n');
 
-			writer.write("#EXT-X-TARGETDURATION:" + targetDuration + "\n");
+			sb.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
 
-			for (TsInfo tsInfo : ltTsInfo) {
-				tsInfo.write(writer);
-			} 
-			writer.close();
+			for (int i=0; i < segments.size(); i++) {
+				segments.write(i, sb);
+			}
 			
-			// Set it so that it can be read.
-			Set<PosixFilePermission> perms = new HashSet<PosixFilePermission>();
-			perms.add(PosixFilePermission.OWNER_READ);
-			perms.add(PosixFilePermission.OWNER_WRITE);
-			perms.add(PosixFilePermission.GROUP_READ);
-			perms.add(PosixFilePermission.GROUP_WRITE);
-			perms.add(PosixFilePermission.OTHERS_READ);			
-		    Files.setPosixFilePermissions(temp, perms);
-
-			// Move the file over and delete the temporary file.
-			Files.move(temp, Paths.get(filename), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-			temp.toFile().delete();
+			publisher.publish(filename, ".m3u8", sb);
 			
 		} catch (Exception e) {
 			LogSystem.getInstance().printError(clientId, channelNo, "Unable to write m3u8 file out: " + this, e);
@@ -303,18 +307,13 @@ public class M3U8ChildPlaylist {
 	/** @return the latest TsInfo record.
 	 * */
 	public TsInfo getLatestTsInfo() {
-		return ltTsInfo.getLast();
+		return segments.get(segments.size() - 1);
 	}
 	
 	/** @return true if the tsInfoExists in this m3u8 file.
 	 * */
 	public boolean exists(TsInfo tsInfoExists) {
-		for (TsInfo tsInfo : ltTsInfo) {
-			if (tsInfo.equalTo(tsInfoExists))
-				return true;
-		}
-		
-		return false;
+		return segments.indexOf(tsInfoExists) > -1;
 	}
 	
 	/** Compare the m3u8 to this one. It will take the latest one in this list and determine where
@@ -323,24 +322,12 @@ public class M3U8ChildPlaylist {
 	 * */	
 	public LinkedList<TsInfo> compare(M3U8ChildPlaylist m3u8) {
 		LinkedList<TsInfo> ltCompared = new LinkedList<TsInfo>();		
-		if (ltTsInfo.isEmpty())
+		if (segments.isEmpty())
 			return ltCompared;
-				
-		TsInfo tsInfoEnd = this.ltTsInfo.getLast();
 		
-		boolean bFoundEnd = false;
-		for (TsInfo tsInfo : m3u8.ltTsInfo) {
-			if (bFoundEnd)
-				ltCompared.add(tsInfo);
-			else {
-				if (tsInfoEnd.equalTo(tsInfo))
-					bFoundEnd = true;
-			}
-		}		
-		
-		if (!bFoundEnd) {
-			ltCompared.addAll(m3u8.ltTsInfo);
-		}
+		int found = m3u8.segments.indexOf(segments, segments.size() - 1);
+		for (int i=found + 1; i < m3u8.segments.size(); i++)
+			ltCompared.add(m3u8.segments.get(i));
 		
 		return ltCompared;
 	}
@@ -348,9 +335,7 @@ public class M3U8ChildPlaylist {
 	/** This will remove the directories for the filename.
 	 * */
 	public void removeDirectories() {
-		for (TsInfo tsInfo : ltTsInfo) {
-			tsInfo.removeDirectories();
-		}
+		segments.removeDirectories();
 	}
 	
 	/** Duration set to 10 seconds.
@@ -360,7 +345,7 @@ public class M3U8ChildPlaylist {
 	}
 	
 	public String toString() {
-		return "{M3U8\n  filename: " + filename + "\n  targetDuration: " + targetDuration + "\n  programDateTime: " + programDateTime + "\n  mediaSequence: " + mediaSequence 
-			+ "\n  ltTsInfo: " + ltTsInfo + "}";
+		return "{M3U8\n  filename: " + filename + "\n  targetDuration: " + targetDuration + "\n  programDateTime: " + programDateTime + "\n  mediaSequence: " + mediaSequence + "\n  discontinuitySequence: " + discontinuitySequence 
+			+ "\n  segments: " + segments + "}";
 	}
 }
@@ -1,18 +1,11 @@
 package jEncoder.apple_hls;
 
-import java.io.BufferedWriter;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
-import java.nio.file.attribute.PosixFilePermission;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
 import jEncoder.util.*;
 
@@ -92,35 +85,20 @@ public class M3U8MasterPlaylist {
 	 * */
 	private void write(boolean writeStream64) {				
 		try {
-			// Get a temporary file.
-	    	Path dir = Paths.get(filename).getParent();
-			Path temp = Files.createTempFile(dir, "temp", ".3u8");		
-			BufferedWriter writer =  Files.newBufferedWriter( temp, Charset.defaultCharset(), StandardOpenOption.CREATE);
+			PlaylistPublisher publisher = PlaylistPublisher.getInstance();
+			StringBuilder sb = publisher.getBuffer();
 
-			// Write out to the temporary file.
-			writer.write("#EXTM3U\n");
+			sb.append("#EXTM3U\n");
 
 			for (PlaylistInfo playlistInfo : ltPlaylistInfo) {
 				if (!writeStream64) {
 					if (!playlistInfo.isStream64())
-						playlistInfo.writeUpdated(writer);
+						playlistInfo.writeUpdated(sb);
 				} else
-					playlistInfo.writeUpdated(writer);
-			} 
-			writer.close();
-			
-			// Set it so that it can be read.
-			Set<PosixFilePermission> perms = new HashSet<PosixFilePermission>();
-			perms.add(PosixFilePermission.OWNER_READ);
-			perms.add(PosixFilePermission.OWNER_WRITE);
-			perms.add(PosixFilePermission.GROUP_READ);
-			perms.add(PosixFilePermission.GROUP_WRITE);
-			perms.add(PosixFilePermission.OTHERS_READ);			
-		    Files.setPosixFilePermissions(temp, perms);
-			
-			// Move the file over and delete the temporary file.
-			Files.move(temp, Paths.get(filename), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-			temp.toFile().delete();
+					playlistInfo.writeUpdated(sb);
+			}
+
+			publisher.publish(filename, ".3u8", sb);
 			
 		} catch (Exception e) {
 			LogSystem.getInstance().printError(clientId, channelNo, "Unable to write m3u8 file out: " + this, e);
@@ -131,31 +109,16 @@ public class M3U8MasterPlaylist {
 	 * */
 	public void writeInout() {				
 		try {
-			// Get a temporary file.
-	    	Path dir = Paths.get(filename).getParent();
-			Path temp = Files.createTempFile(dir, "temp", ".3u8");		
-			BufferedWriter writer =  Files.newBufferedWriter( temp, Charset.defaultCharset(), StandardOpenOption.CREATE);
+			PlaylistPublisher publisher = PlaylistPublisher.getInstance();
+			StringBuilder sb = publisher.getBuffer();
 
-			// Write out to the temporary file.
-			writer.write("#EXTM3U\n");
+			sb.append("#EXTM3U\n");
 
 			for (PlaylistInfo playlistInfo : ltPlaylistInfo) {
-				playlistInfo.writeInout(writer);
-			} 
-			writer.close();
-			
-			// Set it so that it can be read.
-			Set<PosixFilePermission> perms = new HashSet<PosixFilePermission>();
-			perms.add(PosixFilePermission.OWNER_READ);
-			perms.add(PosixFilePermission.OWNER_WRITE);
-			perms.add(PosixFilePermission.GROUP_READ);
-			perms.add(PosixFilePermission.GROUP_WRITE);
-			perms.add(PosixFilePermission.OTHERS_READ);			
-		    Files.setPosixFilePermissions(temp, perms);
-			
-			// Move the file over and delete the temporary file.
-			Files.move(temp, Paths.get(filename), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-			temp.toFile().delete();
+				playlistInfo.writeInout(sb);
+			}
+
+			publisher.publish(filename, ".3u8", sb);
 			
 		} catch (Exception e) {
 			LogSystem.getInstance().printError(clientId, channelNo, "Unable to write m3u8 file out: " + this, e);
@@ -166,31 +129,16 @@ public class M3U8MasterPlaylist {
 	 * */
 	public void writeManual() {				
 		try {
-			// Get a temporary file.
-	    	Path dir = Paths.get(filename).getParent();
-			Path temp = Files.createTempFile(dir, "temp", ".3u8");		
-			BufferedWriter writer =  Files.newBufferedWriter( temp, Charset.defaultCharset(), StandardOpenOption.CREATE);
+			PlaylistPublisher publisher = PlaylistPublisher.getInstance();
+			StringBuilder sb = publisher.getBuffer();
 
-			// Write out to the temporary file.
-			writer.write("#EXTM3U\n");
+			sb.append("#EXTM3U\n");
 
 			for (PlaylistInfo playlistInfo : ltPlaylistInfo) {
-				playlistInfo.writeChildPlaylist(writer);
-			} 
-			writer.close();
-			
-			// Set it so that it can be read.
-			Set<PosixFilePermission> perms = new HashSet<PosixFilePermission>();
-			perms.add(PosixFilePermission.OWNER_READ);
-			perms.add(PosixFilePermission.OWNER_WRITE);
-			perms.add(PosixFilePermission.GROUP_READ);
-			perms.add(PosixFilePermission.GROUP_WRITE);
-			perms.add(PosixFilePermission.OTHERS_READ);			
-		    Files.setPosixFilePermissions(temp, perms);
-			
-			// Move the file over and delete the temporary file.
-			Files.move(temp, Paths.get(filename), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-			temp.toFile().delete();
+				playlistInfo.writeChildPlaylist(sb);
+			}
+
+			publisher.publish(filename, ".3u8", sb);
 			
 		} catch (Exception e) {
 			LogSystem.getInstance().printError(clientId, channelNo, "Unable to write m3u8 file out: " + this, e);
@@ -0,0 +1,243 @@
+package jEncoder.apple_hls;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** This reads a m3u8 file into a M3U8ChildPlaylist. The file is read into a byte buffer that is kept for the next read by
+ * the same thread, then the lines are parsed in place: the tags are matched and the numbers parsed straight from the bytes
+ * and the segments go into the playlist's SegmentTable. Only the program date time and allow cache values become Strings.
+ *
+ * It reads the same as the line based reader did: lines end at \n, \r\n, or \r, the tags are matched by prefix, and a
+ * #EXTINF takes the next line as the segment's name whatever it is. A file that is not in the default charset is not read.
+ * */
+class M3U8Reader {
+
+	/** Buffers bigger than this are not kept for the next read. */
+	private static final int MAX_POOLED_BUFFER = 4 * 1024 * 1024;
+
+	/** The powers of ten that are exact as a float. */
+	private static final float FLOAT_POW10[] = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+	/** The largest integer a float holds exactly. */
+	private static final long FLOAT_MAX_EXACT = 1L << 24;
+
+	private static final byte EXTINF[] = ascii("#EXTINF");
+	private static final byte TARGETDURATION[] = ascii("#EXT-X-TARGETDURATION");
+	private static final byte MEDIA_SEQUENCE[] = ascii("#EXT-X-MEDIA-SEQUENCE");
+	private static final byte PROGRAM_DATE_TIME[] = ascii("#EXT-X-PROGRAM-DATE-TIME");
+	private static final byte ENDLIST[] = ascii("#EXT-X-ENDLIST");
+	private static final byte DISCONTINUITY[] = ascii("#EXT-X-DISCONTINUITY");
+	private static final byte DISCONTINUITY_SEQUENCE[] = ascii("#EXT-X-DISCONTINUITY-SEQUENCE");
+	private static final byte VERSION[] = ascii("#EXT-X-VERSION");
+	private static final byte ALLOW_CACHE[] = ascii("#EXT-X-ALLOW-CACHE");
+
+	/** The read buffer of each thread. */
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[64 * 1024];
+		}
+	};
+
+	/** This will read the playlist's file into it. The segments and header values found are set on the playlist.
+	 * @throws NumberFormatException if a number in the file can not be parsed, the playlist has what was read before it.
+	 * */
+	static void read(M3U8ChildPlaylist m3u8) throws IOException {
+		byte buf[] = buffers.get();
+		int length = 0;
+
+		try (FileChannel channel = FileChannel.open(Paths.get(m3u8.filename), StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			if (fileSize >= Integer.MAX_VALUE)
+				throw new IOException("m3u8 file is too large: " + fileSize);
+			if (buf.length <= fileSize)
+				buf = new byte[(int)fileSize + 1];
+
+			// Read until the end of the file, it may have grown since its size was taken.
+			while (true) {
+				if (length == buf.length) {
+					byte newBuf[] = new byte[buf.length * 2];
+					System.arraycopy(buf, 0, newBuf, 0, length);
+					buf = newBuf;
+				}
+				int n = channel.read(ByteBuffer.wrap(buf, length, buf.length - length));
+				if (n < 0)
+					break;
+				length += n;
+			}
+		} finally {
+			if (buf.length <= MAX_POOLED_BUFFER)
+				buffers.set(buf);
+		}
+
+		checkCharset(buf, length);
+		parse(m3u8, buf, length);
+	}
+
+	/** This will throw the same exception reading the lines with the default charset would if the file is not in it.
+	 * Nothing is decoded when the file is plain ASCII.
+	 * */
+	private static void checkCharset(byte buf[], int length) throws IOException {
+		for (int i=0; i < length; i++) {
+			if (buf[i] < 0) {
+				Charset.defaultCharset().newDecoder().decode(ByteBuffer.wrap(buf, 0, length));
+				return;
+			}
+		}
+	}
+
+	private static void parse(M3U8ChildPlaylist m3u8, byte buf[], int length) {
+		Charset charset = Charset.defaultCharset();
+		SegmentTable segments = m3u8.segments;
+
+		int pos = 0;
+		while (pos < length) {
+			int end = lineEnd(buf, pos, length);
+			int next = nextLine(buf, end, length);
+
+			// Where the value starts if it exists for this line.
+			int colon = indexOf(buf, pos, end, (byte)':');
+			int valueStart = colon > -1 ? colon + 1 : end;
+
+			if (startsWith(buf, pos, end, EXTINF)) {
+				int comma = indexOf(buf, pos, end, (byte)',');
+				if (colon < 0 || comma < colon + 1)
+					throw new NumberFormatException("Bad #EXTINF: " + new String(buf, pos, end - pos, charset));
+				float duration = parseFloat(buf, colon + 1, comma);
+
+				if (next < length) {
+					int nameEnd = lineEnd(buf, next, length);
+					segments.add(TsInfo.Type.VIDEO_FILE, duration, buf, next, nameEnd - next, charset);
+					next = nextLine(buf, nameEnd, length);
+				}
+
+			} else if (startsWith(buf, pos, end, TARGETDURATION)) {
+				m3u8.targetDuration = parseInt(buf, valueStart, end);
+
+			} else if (startsWith(buf, pos, end, MEDIA_SEQUENCE)) {
+				m3u8.mediaSequence = parseInt(buf, valueStart, end);
+
+			} else if (startsWith(buf, pos, end, PROGRAM_DATE_TIME)) {
+				int start = colon > -1 ? colon + 1 : pos;
+				m3u8.programDateTime = new String(buf, start, end - start, charset);
+
+			} else if (startsWith(buf, pos, end, ENDLIST)) {
+				segments.add(TsInfo.Type.ENDLIST);
+
+			} else if (startsWith(buf, pos, end, DISCONTINUITY_SEQUENCE)) {
+				// Before the discontinuity as it starts with the same tag.
+				m3u8.discontinuitySequence = parseInt(buf, valueStart, end);
+
+			} else if (startsWith(buf, pos, end, DISCONTINUITY)) {
+				segments.add(TsInfo.Type.DISCONTINUITY);
+
+			} else if (startsWith(buf, pos, end, VERSION)) {
+				m3u8.version = parseInt(buf, valueStart, end);
+
+			} else if (startsWith(buf, pos, end, ALLOW_CACHE)) {
+				m3u8.allowCache = new String(buf, valueStart, end - valueStart, charset);
+			}
+
+			pos = next;
+		}
+	}
+
+	/** @return the index of the \r or \n that ends the line, length if it is the last line.
+	 * */
+	private static int lineEnd(byte buf[], int pos, int length) {
+		while (pos < length && buf[pos] != '\n' && buf[pos] != '\r')
+			pos++;
+		return pos;
+	}
+
+	/** @return the index the line after the line end starts at.
+	 * */
+	private static int nextLine(byte buf[], int end, int length) {
+		if (end < length && buf[end] == '\r') {
+			end++;
+			if (end < length && buf[end] == '\n')
+				end++;
+			return end;
+		}
+		if (end < length && buf[end] == '\n')
+			return end + 1;
+		return end;
+	}
+
+	private static int indexOf(byte buf[], int start, int end, byte b) {
+		for (int i=start; i < end; i++) {
+			if (buf[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(byte buf[], int start, int end, byte prefix[]) {
+		if (end - start < prefix.length)
+			return false;
+		for (int i=0; i < prefix.length; i++) {
+			if (buf[start + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	/** @return the int in the bytes, parsed the way Integer.valueOf() would.
+	 * */
+	private static int parseInt(byte buf[], int start, int end) {
+		// Plain digits that can not overflow are parsed in place, anything else goes to Integer.parseInt().
+		if (end > start && end - start <= 9) {
+			int value = 0;
+			int i = start;
+			for (; i < end; i++) {
+				int digit = buf[i] - '0';
+				if (digit < 0 || digit > 9)
+					break;
+				value = value * 10 + digit;
+			}
+			if (i == end)
+				return value;
+		}
+		return Integer.parseInt(new String(buf, start, end - start, StandardCharsets.ISO_8859_1));
+	}
+
+	/** @return the float in the bytes, parsed the way Float.valueOf() would.
+	 * */
+	private static float parseFloat(byte buf[], int start, int end) {
+		// Digits with an optional decimal point are parsed in place when both the digits and the power of ten are exact
+		// as floats. One float division is then correctly rounded, the same as Float.valueOf(). Anything else goes to it.
+		long mantissa = 0;
+		int scale = -1;
+		int digits = 0;
+		boolean plain = end > start;
+		for (int i=start; i < end && plain; i++) {
+			byte b = buf[i];
+			if (b == '.' && scale < 0) {
+				scale = 0;
+			} else if (b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				if (scale >= 0)
+					scale++;
+				if (++digits > 18)
+					plain = false;
+			} else {
+				plain = false;
+			}
+		}
+		if (scale < 0)
+			scale = 0;
+
+		if (plain && digits > 0 && mantissa <= FLOAT_MAX_EXACT && scale < FLOAT_POW10.length)
+			return (float)mantissa / FLOAT_POW10[scale];
+		return Float.parseFloat(new String(buf, start, end - start, StandardCharsets.ISO_8859_1));
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -1,7 +1,5 @@
 package jEncoder.apple_hls;
 
-import java.io.BufferedWriter;
-
 public class PlaylistInfo {
 	/** The header information. 
 	 *  Example: #EXT-X-STREAM-INF:PROGRAM-ID=1,BANDWIDTH=125952 */
@@ -29,23 +27,23 @@ public class PlaylistInfo {
 	
 	/** This will write out the PlaylistInfo using the childPlaylist information.
 	 * */
-	public void writeChildPlaylist(BufferedWriter bw) throws Exception {
-		bw.write(header + "\n");
-		bw.write(childPlaylist + "\n");
+	public void writeChildPlaylist(StringBuilder sb) {
+		sb.append(header).append('\n');
+		sb.append(childPlaylist).append('\n');
 	}
 	
 	/** This will write out the PlaylistInfo as updated.
 	 * */
-	public void writeUpdated(BufferedWriter bw) throws Exception {
-		bw.write(header + "\n");
-		bw.write(streamName + "/updated.m3u8\n");
+	public void writeUpdated(StringBuilder sb) {
+		sb.append(header).append('\n');
+		sb.append(streamName).append("/updated.m3u8\n");
 	}	
 	
 	/** This will write out the PlaylistInfo as inout.
 	 * */
-	public void writeInout(BufferedWriter bw) throws Exception {
-		bw.write(header + "\n");
-		bw.write(streamName + "/inout.m3u8\n");
+	public void writeInout(StringBuilder sb) {
+		sb.append(header).append('\n');
+		sb.append(streamName).append("/inout.m3u8\n");
 	}	
 	
 	/** Is this stream64?
@@ -0,0 +1,243 @@
+package jEncoder.apple_hls;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jEncoder.Configuration;
+
+/** This writes out the playlists. A playlist is put together in the StringBuilder from getBuffer() and then published:
+ * it is written to a temporary file in the same directory with one write and atomically moved over the playlist, so a
+ * player never sees part of one. The buffers are kept for the next playlist written by the same thread.
+ *
+ * The temporary file is created readable by everyone, rw-rw-r--. If the umask takes some of that away the permissions
+ * are set again after it is written, the same as was always done.
+ *
+ * When PLAYLIST_FSYNC is 1 the file is synced before it is moved and the directory after, so the playlist survives a
+ * power loss.
+ * */
+public class PlaylistPublisher {
+
+	/** The permissions of a playlist. */
+	private static final Set<PosixFilePermission> PERMISSIONS = PosixFilePermissions.fromString("rw-rw-r--");
+
+	private static final FileAttribute<Set<PosixFilePermission>> PERMISSIONS_ATTRIBUTE = PosixFilePermissions.asFileAttribute(PERMISSIONS);
+
+	/** How the temporary file is opened. */
+	private static final Set<StandardOpenOption> CREATE_OPTIONS = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+	/** Buffers bigger than this are not kept for the next playlist. */
+	private static final int MAX_POOLED_BUFFER = 1024 * 1024;
+
+	/** The powers of ten used by appendFixed(). */
+	private static final long POW10[] = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
+
+	private static PlaylistPublisher instance = null;
+
+	/** The playlist being put together by each thread. */
+	private final ThreadLocal<StringBuilder> builders = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(8 * 1024);
+		}
+	};
+
+	/** The bytes of the playlist being written by each thread. */
+	private final ThreadLocal<ByteBuffer> byteBuffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(8 * 1024);
+		}
+	};
+
+	/** True if a file created with PERMISSIONS_ATTRIBUTE gets all of them, ie, the umask does not take any away. */
+	private volatile boolean permissionsKept = false;
+
+	/** True once permissionsKept has been checked. */
+	private volatile boolean permissionsChecked = false;
+
+	/** True if the default charset writes ASCII as the same bytes. */
+	private final boolean asciiCharset;
+
+	/** True if String.format("%.5f") formats as appendFixed() does in the default locale. */
+	private final boolean fastFormat;
+
+	// [start] Methods: Constructor and getInstance()
+
+	protected PlaylistPublisher() {
+		fastFormat = String.format("%.5f", 1234.5f).equals("1234.50000");
+		asciiCharset = Arrays.equals("#EXTM3U\n".getBytes(Charset.defaultCharset()), "#EXTM3U\n".getBytes(StandardCharsets.US_ASCII));
+	}
+
+	public static synchronized PlaylistPublisher getInstance() {
+		if (instance == null) {
+			instance = new PlaylistPublisher();
+		}
+		return instance;
+	}
+
+	// [end]
+
+	/** @return the empty buffer of the thread to put a playlist together in. It must be published before the thread asks
+	 * for it again.
+	 * */
+	public StringBuilder getBuffer() {
+		StringBuilder sb = builders.get();
+		if (sb.capacity() > MAX_POOLED_BUFFER) {
+			sb = new StringBuilder(8 * 1024);
+			builders.set(sb);
+		}
+		sb.setLength(0);
+		return sb;
+	}
+
+	/** This will append the value with the decimals, the same as String.format("%.5f", value) for 5 decimals.
+	 * @param decimals is 0 to 6.
+	 * */
+	public void appendFixed(StringBuilder sb, float value, int decimals) {
+		// String.format() rounds the digits Double.toString() would give half up. Away from a tie rounding the value itself
+		// gives the same digits, close to a tie or for values it can not do exactly String.format() is used.
+		double scaled = (double)value * POW10[decimals];
+		double fraction = scaled - Math.floor(scaled);
+		if (!fastFormat || !(value >= 0 && value < 1e6f) || Math.abs(fraction - 0.5) < 1e-3) {
+			sb.append(String.format("%." + decimals + "f", value));
+			return;
+		}
+
+		long rounded = (long)Math.floor(scaled + 0.5);
+		long whole = rounded / POW10[decimals];
+		long part = rounded % POW10[decimals];
+		sb.append(whole);
+		if (decimals > 0) {
+			sb.append('.');
+			for (long p = POW10[decimals - 1]; p > 1 && part < p; p /= 10)
+				sb.append('0');
+			sb.append(part);
+		}
+	}
+
+	/** This will write the playlist out to the file.
+	 * @param filename is the full path to the playlist.
+	 * @param tempSuffix is the extension of the temporary file, ie, ".m3u8".
+	 * @param content is the playlist, usually the buffer from getBuffer().
+	 * */
+	public void publish(String filename, String tempSuffix, CharSequence content) throws IOException {
+		Path path = Paths.get(filename);
+		Path dir = path.getParent();
+		ByteBuffer bytes = encode(content);
+		boolean fsync = Configuration.getInstance().getPlaylistFsync() == 1;
+
+		Path temp = null;
+		try {
+			// Write out to the temporary file.
+			FileChannel channel = null;
+			while (channel == null) {
+				temp = dir.resolve("temp" + (ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) + tempSuffix);
+				try {
+					channel = FileChannel.open(temp, CREATE_OPTIONS, PERMISSIONS_ATTRIBUTE);
+				} catch (FileAlreadyExistsException e) {
+					;
+				}
+			}
+			try {
+				while (bytes.hasRemaining())
+					channel.write(bytes);
+				if (fsync)
+					channel.force(true);
+			} finally {
+				channel.close();
+			}
+
+			// Set it so that it can be read, if the umask did not let it be.
+			if (!permissionsKept)
+				checkPermissions(temp);
+
+			// Move the file over.
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			temp = null;
+
+			if (fsync) {
+				try (FileChannel dirChannel = FileChannel.open(dir, StandardOpenOption.READ)) {
+					dirChannel.force(true);
+				}
+			}
+		} finally {
+			if (temp != null)
+				Files.deleteIfExists(temp);
+		}
+	}
+
+	/** This will set the permissions of the file if it did not get all of them when it was created. The first file
+	 * checked decides if the files after it need to be checked, the umask does not change.
+	 * */
+	private void checkPermissions(Path file) throws IOException {
+		if (permissionsChecked) {
+			Files.setPosixFilePermissions(file, PERMISSIONS);
+			return;
+		}
+
+		boolean kept = Files.getPosixFilePermissions(file).equals(PERMISSIONS);
+		if (!kept)
+			Files.setPosixFilePermissions(file, PERMISSIONS);
+		permissionsKept = kept;
+		permissionsChecked = true;
+	}
+
+	/** @return the content in the default charset, the same bytes a writer would write. The buffer is the thread's.
+	 * */
+	private ByteBuffer encode(CharSequence content) throws IOException {
+		ByteBuffer bytes = byteBuffers.get();
+		int length = content.length();
+
+		// Playlists are plain ASCII, which most charsets write as one byte a char.
+		boolean ascii = asciiCharset;
+		for (int i=0; i < length && ascii; i++) {
+			if (content.charAt(i) >= 0x80)
+				ascii = false;
+		}
+
+		if (ascii) {
+			if (bytes.capacity() < length)
+				bytes = ByteBuffer.allocate(length);
+			bytes.clear();
+			for (int i=0; i < length; i++)
+				bytes.put((byte)content.charAt(i));
+		} else {
+			CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+			int capacity = (int)Math.ceil(length * encoder.maxBytesPerChar());
+			if (bytes.capacity() < capacity)
+				bytes = ByteBuffer.allocate(capacity);
+			bytes.clear();
+			CharBuffer chars = CharBuffer.wrap(content);
+			CoderResult result = encoder.encode(chars, bytes, true);
+			if (!result.isUnderflow())
+				result.throwException();
+			result = encoder.flush(bytes);
+			if (!result.isUnderflow())
+				result.throwException();
+		}
+		bytes.flip();
+
+		if (bytes.capacity() <= MAX_POOLED_BUFFER)
+			byteBuffers.set(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,412 @@
+package jEncoder.apple_hls;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/** These are the segments of a m3u8 playlist in the order they are listed. Instead of a TsInfo object for each segment
+ * they are kept in parallel arrays, and the names of all of the segments share one char pool. An archive with thousands
+ * of segments is then a handful of arrays rather than thousands of objects.
+ *
+ * A segment is looked at by its index: 0 is the first segment, size()-1 the latest. Segments are only added at the end
+ * and removed from the front, which is what a live playlist does. Removing from the front moves the head forward and the
+ * arrays are shifted down once more than half of them is in front of the head.
+ *
+ * The number of video files is kept as segments are added and removed, and the segments are hashed by type, duration,
+ * and name so indexOf() does not have to look through all of them.
+ * */
+class SegmentTable {
+
+	private static final TsInfo.Type TYPES[] = TsInfo.Type.values();
+
+	private static final byte VIDEO_FILE = (byte)TsInfo.Type.VIDEO_FILE.ordinal();
+
+	/** The number of segments there is room for when created. */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** The TsInfo.Type ordinal of each segment. */
+	private byte types[];
+	/** The duration in seconds of each segment. 0 if not a video file. */
+	private float durations[];
+	/** Where the name of each segment starts in the pool. */
+	private int nameStarts[];
+	/** The length of the name of each segment. */
+	private int nameLengths[];
+	/** The hash of each segment, see hash(). */
+	private int hashes[];
+	/** The slot of the segment added before it to the same bucket, -1 if none. A chain goes from the latest slot down. */
+	private int chains[];
+	/** The slot of the last segment added to each bucket, -1 if none. The length is a power of two. */
+	private int buckets[];
+
+	/** The slot of the first segment. The slots in front of it have been removed. */
+	private int head = 0;
+	/** The number of segments. */
+	private int size = 0;
+	/** The number of segments that are video files. */
+	private int videoCount = 0;
+
+	/** The names of the segments. Names that are no longer used are dropped when the pool has to grow. */
+	private char pool[];
+	/** The number of chars used in the pool. */
+	private int poolSize = 0;
+
+	SegmentTable() {
+		this(INITIAL_CAPACITY);
+	}
+
+	SegmentTable(int capacity) {
+		capacity = Math.max(capacity, INITIAL_CAPACITY);
+		types = new byte[capacity];
+		durations = new float[capacity];
+		nameStarts = new int[capacity];
+		nameLengths = new int[capacity];
+		hashes = new int[capacity];
+		chains = new int[capacity];
+		buckets = newBuckets(capacity);
+		pool = new char[capacity * 16];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** @return the number of segments that are video files.
+	 * */
+	int videoCount() {
+		return videoCount;
+	}
+
+	TsInfo.Type getType(int index) {
+		return TYPES[types[head + index]];
+	}
+
+	boolean isVideoFile(int index) {
+		return types[head + index] == VIDEO_FILE;
+	}
+
+	float getDuration(int index) {
+		return durations[head + index];
+	}
+
+	String getName(int index) {
+		return new String(pool, nameStarts[head + index], nameLengths[head + index]);
+	}
+
+	/** @return the segment as a TsInfo. It is a copy, changing it does not change the table.
+	 * */
+	TsInfo get(int index) {
+		if (index < 0 || index >= size)
+			throw new NoSuchElementException();
+		return new TsInfo(getName(index), getDuration(index), getType(index));
+	}
+
+	void add(TsInfo tsInfo) {
+		int start = reserve(tsInfo.filename.length());
+		tsInfo.filename.getChars(0, tsInfo.filename.length(), pool, start);
+		append((byte)tsInfo.type.ordinal(), tsInfo.duration, start, tsInfo.filename.length());
+	}
+
+	/** This will add a segment without a name, ie, a discontinuity or end list.
+	 * */
+	void add(TsInfo.Type type) {
+		append((byte)type.ordinal(), 0, poolSize, 0);
+	}
+
+	/** This will add a segment whose name is in the bytes. They are usually plain ASCII which is copied straight in,
+	 * anything else is decoded with the charset.
+	 * */
+	void add(TsInfo.Type type, float duration, byte src[], int offset, int length, Charset charset) {
+		for (int i=offset; i < offset + length; i++) {
+			if (src[i] < 0) {
+				String name = new String(src, offset, length, charset);
+				int start = reserve(name.length());
+				name.getChars(0, name.length(), pool, start);
+				append((byte)type.ordinal(), duration, start, name.length());
+				return;
+			}
+		}
+
+		int start = reserve(length);
+		for (int i=0; i < length; i++)
+			pool[start + i] = (char)src[offset + i];
+		append((byte)type.ordinal(), duration, start, length);
+	}
+
+	/** This will add a segment of another table.
+	 * */
+	void add(SegmentTable other, int index) {
+		int slot = other.head + index;
+		int length = other.nameLengths[slot];
+		int start = reserve(length);
+		System.arraycopy(other.pool, other.nameStarts[slot], pool, start, length);
+		append(other.types[slot], other.durations[slot], start, length);
+	}
+
+	/** This will add the video files of another table.
+	 * */
+	void addVideoFiles(SegmentTable other) {
+		for (int i=0; i < other.size; i++) {
+			if (other.isVideoFile(i))
+				add(other, i);
+		}
+	}
+
+	/** This will add all of the segments of another table.
+	 * */
+	void addAll(SegmentTable other) {
+		for (int i=0; i < other.size; i++)
+			add(other, i);
+	}
+
+	/** This will remove the first segment.
+	 * */
+	void removeFirst() {
+		if (size == 0)
+			throw new NoSuchElementException();
+		if (types[head] == VIDEO_FILE)
+			videoCount--;
+		head++;
+		size--;
+
+		// Shift the segments down once the removed ones take up more room than the ones left.
+		if (head > size && head >= INITIAL_CAPACITY)
+			resize(types.length);
+	}
+
+	/** @return true if the segment is the same as the segment of the other table, ie same type, filename, and duration.
+	 * */
+	boolean equalTo(int index, SegmentTable other, int otherIndex) {
+		return equalSlots(head + index, other, other.head + otherIndex);
+	}
+
+	/** @return true if the segment is the same as the tsInfo ie same type, filename, and duration.
+	 * */
+	boolean equalTo(int index, TsInfo tsInfo) {
+		int slot = head + index;
+		if (types[slot] != tsInfo.type.ordinal())
+			return false;
+		if (durations[slot] != tsInfo.duration)
+			return false;
+
+		int length = nameLengths[slot];
+		if (length != tsInfo.filename.length())
+			return false;
+		int start = nameStarts[slot];
+		for (int i=0; i < length; i++) {
+			if (pool[start + i] != tsInfo.filename.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/** @return the index of the first segment that is the same as the segment of the other table, -1 if none.
+	 * */
+	int indexOf(SegmentTable other, int otherIndex) {
+		int otherSlot = other.head + otherIndex;
+		int hash = other.hashes[otherSlot];
+
+		int first = -1;
+		for (int slot = buckets[hash & (buckets.length - 1)]; slot >= head; slot = chains[slot]) {
+			if (hashes[slot] == hash && equalSlots(slot, other, otherSlot))
+				first = slot;
+		}
+		return first > -1 ? first - head : -1;
+	}
+
+	/** @return the index of the first segment that is the same as the tsInfo, -1 if none.
+	 * */
+	int indexOf(TsInfo tsInfo) {
+		int hash = tsInfo.filename.hashCode();
+		hash = hash(tsInfo.type.ordinal(), tsInfo.duration, hash);
+
+		int first = -1;
+		for (int slot = buckets[hash & (buckets.length - 1)]; slot >= head; slot = chains[slot]) {
+			if (hashes[slot] == hash && equalTo(slot - head, tsInfo))
+				first = slot;
+		}
+		return first > -1 ? first - head : -1;
+	}
+
+	/** This will place the path before the name of each video file.
+	 * */
+	void updatePath(String path) {
+		for (int i=0; i < size; i++) {
+			if (!isVideoFile(i))
+				continue;
+			rename(head + i, path + getName(i));
+		}
+		rehash();
+	}
+
+	/** This will remove the directories from the name of each segment.
+	 * */
+	void removeDirectories() {
+		for (int i=0; i < size; i++) {
+			String name = getName(i);
+			String newName = new File(name).getName();
+			if (!newName.equals(name))
+				rename(head + i, newName);
+		}
+		rehash();
+	}
+
+	/** This will write out the segment the same way TsInfo.write() does.
+	 * */
+	void write(int index, StringBuilder sb) {
+		int slot = head + index;
+		if (types[slot] == VIDEO_FILE) {
+			sb.append("#EXTINF:");
+			PlaylistPublisher.getInstance().appendFixed(sb, durations[slot], 5);
+			sb.append(",\n");
+			sb.append(pool, nameStarts[slot], nameLengths[slot]);
+			sb.append('\n');
+		} else if (getType(index) == TsInfo.Type.DISCONTINUITY) {
+			sb.append("#EXT-X-DISCONTINUITY\n");
+		} else if (getType(index) == TsInfo.Type.ENDLIST) {
+			sb.append("#EXT-X-ENDLIST\n");
+		}
+	}
+
+	private boolean equalSlots(int slot, SegmentTable other, int otherSlot) {
+		if (types[slot] != other.types[otherSlot])
+			return false;
+		if (durations[slot] != other.durations[otherSlot])
+			return false;
+
+		int length = nameLengths[slot];
+		if (length != other.nameLengths[otherSlot])
+			return false;
+		int start = nameStarts[slot];
+		int otherStart = other.nameStarts[otherSlot];
+		for (int i=0; i < length; i++) {
+			if (pool[start + i] != other.pool[otherStart + i])
+				return false;
+		}
+		return true;
+	}
+
+	private void rename(int slot, String name) {
+		int start = reserve(name.length());
+		name.getChars(0, name.length(), pool, start);
+		nameStarts[slot] = start;
+		nameLengths[slot] = name.length();
+	}
+
+	private void append(byte type, float duration, int nameStart, int nameLength) {
+		if (head + size == types.length)
+			resize(size < types.length / 2 ? types.length : types.length * 2);
+
+		int slot = head + size;
+		types[slot] = type;
+		durations[slot] = duration;
+		nameStarts[slot] = nameStart;
+		nameLengths[slot] = nameLength;
+		index(slot);
+		size++;
+		if (type == VIDEO_FILE)
+			videoCount++;
+	}
+
+	/** This will move the segments to the front of arrays of the capacity and hash them again.
+	 * */
+	private void resize(int capacity) {
+		if (capacity != types.length) {
+			types = Arrays.copyOf(types, capacity);
+			durations = Arrays.copyOf(durations, capacity);
+			nameStarts = Arrays.copyOf(nameStarts, capacity);
+			nameLengths = Arrays.copyOf(nameLengths, capacity);
+			hashes = new int[capacity];
+			chains = new int[capacity];
+		}
+		System.arraycopy(types, head, types, 0, size);
+		System.arraycopy(durations, head, durations, 0, size);
+		System.arraycopy(nameStarts, head, nameStarts, 0, size);
+		System.arraycopy(nameLengths, head, nameLengths, 0, size);
+		head = 0;
+		rehash();
+	}
+
+	/** This will hash all of the segments again, ie, after they have been moved or renamed.
+	 * */
+	private void rehash() {
+		if (buckets.length < 2 * types.length)
+			buckets = newBuckets(types.length);
+		else
+			Arrays.fill(buckets, -1);
+
+		for (int slot=head; slot < head + size; slot++)
+			index(slot);
+	}
+
+	/** This will hash the segment into its bucket.
+	 * */
+	private void index(int slot) {
+		int hash = 0;
+		int start = nameStarts[slot];
+		for (int i=0; i < nameLengths[slot]; i++)
+			hash = 31 * hash + pool[start + i];
+		hash = hash(types[slot], durations[slot], hash);
+
+		int bucket = hash & (buckets.length - 1);
+		hashes[slot] = hash;
+		chains[slot] = buckets[bucket];
+		buckets[bucket] = slot;
+	}
+
+	/** @return the hash of a segment.
+	 * @param nameHash is the String.hashCode() of the name.
+	 * */
+	private static int hash(int type, float duration, int nameHash) {
+		int hash = nameHash * 31 + Float.floatToIntBits(duration);
+		hash = hash * 31 + type;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int[] newBuckets(int capacity) {
+		int length = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) * 2;
+		int buckets[] = new int[length];
+		Arrays.fill(buckets, -1);
+		return buckets;
+	}
+
+	/** @return where in the pool to put a name of the length. If the pool is full the names still in use are copied to
+	 * a new pool, so the names of removed or renamed segments do not pile up in a live playlist.
+	 * */
+	private int reserve(int length) {
+		if (poolSize + length > pool.length) {
+			int used = length;
+			for (int slot=head; slot < head + size; slot++)
+				used += nameLengths[slot];
+
+			char newPool[] = new char[Math.max(used * 2, INITIAL_CAPACITY * 16)];
+			int newPoolSize = 0;
+			for (int slot=head; slot < head + size; slot++) {
+				System.arraycopy(pool, nameStarts[slot], newPool, newPoolSize, nameLengths[slot]);
+				nameStarts[slot] = newPoolSize;
+				newPoolSize += nameLengths[slot];
+			}
+			pool = newPool;
+			poolSize = newPoolSize;
+		}
+
+		int start = poolSize;
+		poolSize += length;
+		return start;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer("[");
+		for (int i=0; i < size; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(get(i));
+		}
+		return sb.append("]").toString();
+	}
+}
@@ -52,7 +52,8 @@ public class TsInfo {
 	
 	public void write(BufferedWriter bw) throws Exception {
 		if (type == Type.VIDEO_FILE) {
-			String sDuration = String.format("%.5f", duration);
+			StringBuilder sDuration = new StringBuilder(16);
+			PlaylistPublisher.getInstance().appendFixed(sDuration, duration, 5);
 			bw.write("#EXTINF:" + sDuration + ",\n");
 			bw.write(filename + "\n");
 		} else if (type == Type.DISCONTINUITY) {
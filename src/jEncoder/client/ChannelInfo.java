@@ -1,5 +1,7 @@
 package jEncoder.client;
 
+import jEncoder.Configuration;
+import jEncoder.media.EncoderMetrics;
 import jEncoder.util.LogSystem;
 import jEncoder.web.Web;
 
@@ -8,40 +10,68 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.simple.JSONObject;
 
 import jEncoder.apple_hls.M3U8ChildPlaylist;
 import jEncoder.apple_hls.M3U8MasterPlaylist;
 
-public class ChannelInfo {
+public class ChannelInfo extends IdleTracked {
 	
 	private final String CONFIG_ARCHIVE_PATH = "/opt/clients/";
 	
+	/** The number of archive videos updated before the in/out index is saved. */
+	private static final int REFRESH_BATCH_SIZE = 100;
+	
+	/** Rewrites the in/out playlists of the archive videos. Shared by all of the channels, sized by HLS_REFRESH_THREADS. */
+	private static final ExecutorService refreshExecutor = Executors.newFixedThreadPool(Math.max(1, Configuration.getInstance().getHlsRefreshThreads()), new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "HLSRefresh-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
 	/** ChannelInfo.channel_no. */
 	private int channelNo;
 	    
 	/** ClientInfo.client_info_id. */
 	private int clientInfoId;
     
-	/** The in-video's m3u8 playlist. HD, SD, LOW, and audio64k. */
-	private M3U8ChildPlaylist inVideo[] = new M3U8ChildPlaylist[4];
+	/** Which in/out videos each archive video was last stitched with. */
+	private InOutIndex inOutIndex;
 	
-	/** The out-video's m3u8 playlist. HD, SD, LOW, and audio64k. */
-	private M3U8ChildPlaylist outVideo[] = new M3U8ChildPlaylist[4];
+	/** The in/out videos last loaded, null if they need to be loaded. See getInOutVideos(). */
+	private volatile InOutVideos inOutCache = null;
 	
     // [start] Methods: Constructor and getInstance()
 
     public ChannelInfo(int clientInfoId, int channelNo) {
     	this.clientInfoId = clientInfoId;
     	this.channelNo = channelNo;
+    	this.inOutIndex = new InOutIndex(CONFIG_ARCHIVE_PATH + clientInfoId + "/inout/" + channelNo + "/inout.index");
     }
     
     // [end]    
     
-    /** This will update all HLS archive videos for a given channel #.
+    /** This will update all HLS archive videos for a given channel #. Only the archive videos that were not stitched with
+     * the current in/out videos are rewritten, see InOutIndex. The archive videos of a batch are rewritten at the same time
+     * and the index is saved after each batch so an interrupted refresh only has the rest to do the next time.
      * */
-    synchronized public void updateAllHLS(String jobIdNumber) {
+    synchronized public void updateAllHLS(final String jobIdNumber) {
     	
     	// Log this call.
     	LogSystem.getInstance().printInfo(clientInfoId, channelNo, formatMessageForLog(jobIdNumber, "Update all HLS."));
@@ -50,37 +80,98 @@ public class ChannelInfo {
 		Path pathDirectory = Paths.get(CONFIG_ARCHIVE_PATH + clientInfoId);
 
 		// Load in the in/out videos for the channel.
-		loadInOutVideos(jobIdNumber);
+		final InOutVideos inOut = getInOutVideos(jobIdNumber);
+		inOutIndex.load();
 		
+		// Find the archive videos of the channel that are stale.
+		List<Path> ltStale = new ArrayList<Path>();
+		HashSet<String> setDirNames = new HashSet<String>();
 		try (DirectoryStream<Path> paths = Files.newDirectoryStream(pathDirectory, "*_*")) {
     		for (Path path : paths) {
     			
-    			// Skip non-directories.
-    			if(!Files.isDirectory(path))
+    			// Skip non-directories and the archive videos of other channels.
+    			String dirName = path.getFileName().toString();
+    			if (!isChannelArchive(dirName) || !Files.isDirectory(path))
     				continue;
     			
-    			// process the HLS.
-    			updateSingleHLS(path, jobIdNumber);
-    			
+    			setDirNames.add(dirName);
+    			if (!inOutIndex.isCurrent(dirName, inOut.getSignature()) || !Files.exists(path.resolve("64k/inout.m3u8")))
+    				ltStale.add(path);
     		}
     	} catch (IOException e) {
 			LogSystem.getInstance().printError(0, 0, formatMessageForLog(jobIdNumber, "Unable to get directory of files to process."), e);
-    	}			
+    	}
+		inOutIndex.retainOnly(setDirNames);
+		
+		LogSystem.getInstance().printInfo(clientInfoId, channelNo, formatMessageForLog(jobIdNumber, "Archive videos:[" + setDirNames.size() + "] stale:[" + ltStale.size() + "]"));
+		
+		// process the HLS.
+		for (int start=0; start < ltStale.size(); start += REFRESH_BATCH_SIZE) {
+			List<Callable<Void>> ltTasks = new ArrayList<Callable<Void>>();
+			for (final Path path : ltStale.subList(start, Math.min(start + REFRESH_BATCH_SIZE, ltStale.size()))) {
+				ltTasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						updateSingleHLS(path, jobIdNumber, inOut);
+						return null;
+					}
+				});
+			}
+			runAll(ltTasks, jobIdNumber);
+			inOutIndex.save();
+		}
 
     	LogSystem.getInstance().printInfo(clientInfoId, channelNo, "Done.");
     }
     
+    /** This will run the tasks on the refresh executor and wait for all of them to finish.
+     * */
+    private void runAll(List<Callable<Void>> ltTasks, String jobIdNumber) {
+    	List<Future<Void>> ltFutures;
+    	try {
+    		ltFutures = refreshExecutor.invokeAll(ltTasks);
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		LogSystem.getInstance().printError(clientInfoId, channelNo, formatMessageForLog(jobIdNumber, "Interrupted while updating HLS."), e);
+    		return;
+    	}
+    	
+    	for (Future<Void> future : ltFutures) {
+    		try {
+    			future.get();
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			return;
+    		} catch (ExecutionException e) {
+    			LogSystem.getInstance().printError(clientInfoId, channelNo, formatMessageForLog(jobIdNumber, "Unable to update HLS."), e.getCause());
+    		}
+    	}
+    }
+    
+    /** @return true if the archive video directory belongs to this channel. Directories are named <client id>_<channel no>_<date>,
+     * a name that is not in that format is treated as belonging to the channel.
+     * */
+    private boolean isChannelArchive(String dirName) {
+    	String parts[] = dirName.split("_");
+    	if (parts.length < 3 || !parts[0].matches("[0-9]+") || !parts[1].matches("[0-9]+"))
+    		return true;
+    	return Integer.parseInt(parts[0]) == clientInfoId && Integer.parseInt(parts[1]) == channelNo;
+    }
+    
     /** This will update a single video HLS archive.
      * @param filename is the name of the file to update it's HLS archive. ex: 1_1_20150505145533.mp4.
      * */
     synchronized public void updateSingleHLS(String filename, String jobIdNumber) {
 		// Load in the in/out videos for the channel.
-		loadInOutVideos(jobIdNumber);
+		InOutVideos inOut = getInOutVideos(jobIdNumber);
+		inOutIndex.load();
 		
 		// Process the single file.
 		String[] components = filename.split("\\.");
 		String dirFilename = CONFIG_ARCHIVE_PATH + clientInfoId + "/" + components[0];
-		updateSingleHLS(Paths.get(dirFilename), jobIdNumber);
+		updateSingleHLS(Paths.get(dirFilename), jobIdNumber, inOut);
+		
+		inOutIndex.save();
     }
     
     /** @return true if clientInfoId is equal to this clientInfoId.
@@ -89,11 +180,13 @@ public class ChannelInfo {
     	 return this.channelNo == channelNo;
     }
 
-    /** This will update the HLS for a given archive video. 
+    /** This will update the HLS for a given archive video. It only reads the in/out videos so several archive videos can be
+     * updated at the same time.
      * @param pathArchiveDir is the path to the archive's video directory that contains the HLS for the video. 
      * Example: /opt/gomedia/media/archive/clients/1/1_2_20150206125348
+     * @param inOut are the in/out videos to stitch to the archive video.
      * */
-    private void updateSingleHLS(Path pathArchiveDir, String jobIdNumber) {    	
+    private void updateSingleHLS(Path pathArchiveDir, String jobIdNumber, InOutVideos inOut) {    	
     	StringBuffer sBufferOut = new StringBuffer();
     	sBufferOut.append("Updating in/out HLS for file:[" + pathArchiveDir.getFileName().toString() + "]  bitrates:[");
     	
@@ -124,14 +217,14 @@ public class ChannelInfo {
 	    	
 	    	// Add in the intro/ending videos. Check for the current bitrate and if it doesn't exist than add a lower version in.
 	    	for (int j=i; j < bitrates.length; j++) {
-	    		if (inVideo[j] != null) {
-	    			archiveVideo.addIntroVideo(inVideo[j]);
+	    		if (inOut.getInVideo(j) != null) {
+	    			archiveVideo.addIntroVideo(inOut.getInVideo(j));
 	    			break;
 	    		}
 	    	}	    	
 	    	for (int j=i; j < bitrates.length; j++) {
-	    		if (outVideo[j] != null) {
-	    			archiveVideo.addEndingVideo(outVideo[j]);
+	    		if (inOut.getOutVideo(j) != null) {
+	    			archiveVideo.addEndingVideo(inOut.getOutVideo(j));
 	    			break;
 	    		}
 	    	}
@@ -175,12 +268,43 @@ public class ChannelInfo {
     	}
     	sBufferOut.append("]");
 
-    	LogSystem.getInstance().printInfo(clientInfoId, channelNo, formatMessageForLog(jobIdNumber, sBufferOut.toString()));    	
+    	LogSystem.getInstance().printInfo(clientInfoId, channelNo, formatMessageForLog(jobIdNumber, sBufferOut.toString()));
+    	
+    	// Remember which in/out videos it was stitched with.
+    	inOutIndex.update(pathArchiveDir.getFileName().toString(), inOut.getSignature());
+    }
+    
+    /** This will make the next update load the in/out videos again. Called when an in/out video of the channel changes.
+     * It does not wait on an update that is running.
+     * */
+    public void invalidateInOutVideos() {
+    	inOutCache = null;
+    }
+    
+    /** @return the in/out videos of the channel. They are only loaded if they were invalidated, INOUT_CACHE_SECONDS has
+     * gone by, or one of their playlist files has changed.
+     * */
+    private InOutVideos getInOutVideos(String jobIdNumber) {
+    	InOutVideos inOut = inOutCache;
+    	long maxAge = 1000L * Configuration.getInstance().getInOutCacheSeconds();
+    	if (inOut != null && System.currentTimeMillis() - inOut.getLoadedAt() < maxAge && inOut.isUnchanged()) {
+    		EncoderMetrics.getInstance().increment("inout_cache_hits");
+    		return inOut;
+    	}
+    	
+    	EncoderMetrics.getInstance().increment("inout_cache_misses");
+    	inOut = loadInOutVideos(jobIdNumber);
+    	inOutCache = inOut;
+    	return inOut;
     }
     
     /** This will load the in/out videos. It will query the database on the web server to determine if in/out videos should be loaded.
+     * @return the in/out videos that were loaded.
      * */
-    private void loadInOutVideos(String jobIdNumber) {
+    private InOutVideos loadInOutVideos(String jobIdNumber) {
+    	M3U8ChildPlaylist inVideo[] = new M3U8ChildPlaylist[4];
+    	M3U8ChildPlaylist outVideo[] = new M3U8ChildPlaylist[4];
+    	
     	// Pull from database if in/out videos should be loaded.
     	boolean inVideoActive = false;
     	boolean outVideoActive = false;
@@ -222,9 +346,6 @@ public class ChannelInfo {
     			inVideo[i].updateTSInfoPath("/video/clients/" + clientInfoId + "/inout/" + channelNo + "/" + in_video_info_id + "/" + bitrates[i] + "/");    			
     		}
     		sBufferOut.append("]");
-    	} else {
-    		for (int i=0; i < inVideo.length; i++)
-    			inVideo[i] = null;
     	}
     	
     	// Load in the outVideo and update it.
@@ -251,12 +372,11 @@ public class ChannelInfo {
     		}
     		sBufferOut.append("]");
     		
-    	} else {
-    		for (int i=0; i < outVideo.length; i++)
-    			outVideo[i] = null;
     	}
 
     	LogSystem.getInstance().printInfo(clientInfoId, channelNo, formatMessageForLog(jobIdNumber, sBufferOut.toString()));
+    	
+    	return new InOutVideos(inVideoActive ? in_video_info_id : 0, inVideo, outVideoActive ? out_video_info_id : 0, outVideo);
     }
     
 	private String formatMessageForLog(String jobIdNumber, String message) {
@@ -1,21 +1,25 @@
 package jEncoder.client;
 
-import java.util.LinkedList;
-
-public class ClientInfo {
+public class ClientInfo extends IdleTracked {
     
 	/** ClientInfo.client_info_id. */
-	private int clientInfoId;
+	private final int clientInfoId;
 	
     /** The only reason ChannelInfo is saved is to have a way to concurrency work correctly. The ChannelInfo
      * has concurrency to keep from the end user updating the HLS too quickly.
      * */
-    private LinkedList<ChannelInfo> ltChannelInfo = new LinkedList<ChannelInfo>();
+    private final IdleRegistry<Integer, ChannelInfo> channels;
     
     // [start] Methods: Constructor and getInstance()
 
-    public ClientInfo(int clientInfoId) {
+    public ClientInfo(final int clientInfoId) {
     	this.clientInfoId = clientInfoId;
+    	this.channels = new IdleRegistry<Integer, ChannelInfo>(new IdleRegistry.Factory<Integer, ChannelInfo>() {
+			@Override
+			public ChannelInfo create(Integer channelNo) {
+				return new ChannelInfo(clientInfoId, channelNo);
+			}
+		});
     }
     
     // [end]    
@@ -24,8 +28,12 @@ public class ClientInfo {
      * @param channelNo is the ChannelInfo.channel_no.
      * */
     public void updateAllHLS(int channelNo, String jobIdNumber) {
-    	ChannelInfo channel = getChannel(channelNo);
-    	channel.updateAllHLS(jobIdNumber);
+    	ChannelInfo channel = channels.acquire(channelNo);
+    	try {
+    		channel.updateAllHLS(jobIdNumber);
+    	} finally {
+    		channels.release(channel);
+    	}
     }
     
     /** This will update a single video HLS archive.
@@ -33,20 +41,38 @@ public class ClientInfo {
      * @param filename is the name of the file to update it's HLS archive. ex: 1_1_20150505145533.mp4.
      * */
     public void updateSingleHLS(int channelNo, String filename, String jobIdNumber) {
-    	ChannelInfo channel = getChannel(channelNo);
-    	channel.updateSingleHLS(filename, jobIdNumber);
+    	ChannelInfo channel = channels.acquire(channelNo);
+    	try {
+    		channel.updateSingleHLS(filename, jobIdNumber);
+    	} finally {
+    		channels.release(channel);
+    	}
     }
     
-    /** @return the channel's information.
+    /** This will make the next update of the channel load its in/out videos again.
+     * @param channelNo is the ChannelInfo.channel_no.
      * */
-    private ChannelInfo getChannel(int channelNo) {
-    	for (ChannelInfo channel : ltChannelInfo) {
-    		if (channel.isChannelNo(channelNo))
-    			return channel;
+    public void invalidateInOutVideos(int channelNo) {
+    	ChannelInfo channel = channels.acquire(channelNo);
+    	try {
+    		channel.invalidateInOutVideos();
+    	} finally {
+    		channels.release(channel);
     	}
-    	ChannelInfo newChannel = new ChannelInfo(clientInfoId, channelNo);
-    	ltChannelInfo.add(newChannel);
-    	return newChannel;    	
+    }
+    
+    /** This will remove the channels that have not been used since the time.
+     * @return the number of channels removed.
+     * */
+    public int evictIdleChannels(long idleSince) {
+    	return channels.evictIdle(idleSince);
+    }
+    
+    /** A client is only removed once all of its channels have been.
+     * */
+    @Override
+    protected boolean canRetire() {
+    	return channels.isEmpty();
     }
     
     /** @return true if clientInfoId is equal to this clientInfoId.
@@ -0,0 +1,80 @@
+package jEncoder.client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** This is a thread safe registry that creates an entry the first time its key is asked for and removes the entries that
+ * have not been used for a while. Two threads asking for the same key at the same time always get the same entry, even
+ * while it is being removed, so the locking done on an entry (ie, ChannelInfo) is not defeated.
+ *
+ * acquire() and release() have to be paired:
+ *   V value = registry.acquire(key);
+ *   try { ... } finally { registry.release(value); }
+ * */
+public class IdleRegistry<K, V extends IdleTracked> {
+
+	/** Creates the entry of a key. */
+	public interface Factory<K, V> {
+		V create(K key);
+	}
+
+	/** The entries by key. */
+	private final ConcurrentHashMap<K, V> map = new ConcurrentHashMap<K, V>();
+
+	/** Creates the entries. */
+	private final Factory<K, V> factory;
+
+	public IdleRegistry(Factory<K, V> factory) {
+		this.factory = factory;
+	}
+
+	/** @return the entry of the key, it is created if need be. It will not be removed until it is released.
+	 * */
+	public V acquire(K key) {
+		while (true) {
+			V value = map.get(key);
+			if (value == null) {
+				V newValue = factory.create(key);
+				value = map.putIfAbsent(key, newValue);
+				if (value == null)
+					value = newValue;
+			}
+
+			if (value.acquire())
+				return value;
+
+			// It was retired, make sure it is gone and create a new one.
+			map.remove(key, value);
+		}
+	}
+
+	public void release(V value) {
+		value.release();
+	}
+
+	/** This will remove the entries nobody is using that have not been used since the time.
+	 * @return the number of entries removed.
+	 * */
+	public int evictIdle(long idleSince) {
+		int count = 0;
+		for (Map.Entry<K, V> entry : map.entrySet()) {
+			if (entry.getValue().retire(idleSince) && map.remove(entry.getKey(), entry.getValue()))
+				count++;
+		}
+		return count;
+	}
+
+	/** @return the entries, only for looking at.
+	 * */
+	public Iterable<V> values() {
+		return map.values();
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+}
@@ -0,0 +1,50 @@
+package jEncoder.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** This is something in an IdleRegistry. It counts the threads using it and remembers when it was last used so that
+ * it can be removed from the registry once it has not been used for a while.
+ *
+ * The count is -1 once it has been retired, ie, removed from the registry. A retired one can not be used again, the
+ * registry creates a new one instead.
+ * */
+public abstract class IdleTracked {
+
+	/** The number of threads using it, -1 once retired. */
+	private final AtomicInteger users = new AtomicInteger();
+
+	/** When it was last released. (milliseconds) */
+	private volatile long lastUsed = System.currentTimeMillis();
+
+	/** @return true if it was acquired, false if it has been retired.
+	 * */
+	boolean acquire() {
+		while (true) {
+			int count = users.get();
+			if (count < 0)
+				return false;
+			if (users.compareAndSet(count, count + 1))
+				return true;
+		}
+	}
+
+	void release() {
+		lastUsed = System.currentTimeMillis();
+		users.decrementAndGet();
+	}
+
+	/** This will retire it if nobody is using it and it has not been used since the time.
+	 * @return true if it was retired.
+	 * */
+	boolean retire(long idleSince) {
+		if (lastUsed > idleSince || !canRetire())
+			return false;
+		return users.compareAndSet(0, -1);
+	}
+
+	/** @return true if there is nothing else keeping it in the registry.
+	 * */
+	protected boolean canRetire() {
+		return true;
+	}
+}
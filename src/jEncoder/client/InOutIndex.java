@@ -0,0 +1,140 @@
+package jEncoder.client;
+
+import jEncoder.util.LogSystem;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/** This remembers, for each archive video of a channel, which in/out videos its inout.m3u8 playlists were last stitched
+ * with. A refresh of all of the archive videos then only has to rewrite the ones that are stale.
+ *
+ * The index is saved as one line per archive video directory:
+ *   <directory name><tab><in/out signature>
+ * Lines are appended as archive videos are updated so an interrupted refresh picks up where it left off. The last line
+ * of a directory wins. The file is rewritten once it has twice as many lines as directories.
+ * */
+public class InOutIndex {
+
+	/** The index file. */
+	private final Path indexFile;
+
+	/** The directory name to the in/out signature it was stitched with. */
+	private HashMap<String, String> mapSignatures = new HashMap<String, String>();
+
+	/** The updates that have not been saved yet. */
+	private LinkedHashMap<String, String> mapUnsaved = new LinkedHashMap<String, String>();
+
+	/** The number of lines in the index file. */
+	private int fileLines = 0;
+
+	/** True once the index file has been read. */
+	private boolean loaded = false;
+
+	/** @param indexFile is the absolute path to the index file. Example: /opt/clients/1/inout/2/inout.index
+	 * */
+	public InOutIndex(String indexFile) {
+		this.indexFile = Paths.get(indexFile);
+	}
+
+	/** This will read the index file if it has not been read yet. A missing or unreadable file is an empty index, ie,
+	 * every archive video is stale.
+	 * */
+	public synchronized void load() {
+		if (loaded)
+			return;
+		loaded = true;
+
+		if (!Files.exists(indexFile))
+			return;
+
+		try (BufferedReader in = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				fileLines++;
+				int tab = line.indexOf('\t');
+				if (tab < 1)
+					continue;
+				mapSignatures.put(line.substring(0, tab), line.substring(tab + 1));
+			}
+		} catch (Exception e) {
+			LogSystem.getInstance().printError("Unable to read the in/out index: " + indexFile, e);
+			mapSignatures.clear();
+		}
+	}
+
+	/** @return true if the archive video directory was last stitched with the in/out videos of the signature.
+	 * */
+	public synchronized boolean isCurrent(String dirName, String signature) {
+		return signature.equals(mapSignatures.get(dirName));
+	}
+
+	/** This will record that the archive video directory has been stitched with the in/out videos of the signature.
+	 * It is not written to the file until save() is called.
+	 * */
+	public synchronized void update(String dirName, String signature) {
+		mapSignatures.put(dirName, signature);
+		mapUnsaved.put(dirName, signature);
+	}
+
+	/** This will forget the archive video directories that are not in the set, ie, they have been deleted.
+	 * */
+	public synchronized void retainOnly(Set<String> setDirNames) {
+		Iterator<String> itr = mapSignatures.keySet().iterator();
+		while (itr.hasNext()) {
+			if (!setDirNames.contains(itr.next()))
+				itr.remove();
+		}
+	}
+
+	/** This will write the updates to the index file.
+	 * */
+	public synchronized void save() {
+		try {
+			if (indexFile.getParent() != null)
+				Files.createDirectories(indexFile.getParent());
+
+			if (fileLines + mapUnsaved.size() > 2 * Math.max(mapSignatures.size(), 64)) {
+				rewrite();
+			} else if (!mapUnsaved.isEmpty()) {
+				try (BufferedWriter out = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+					writeLines(out, mapUnsaved);
+				}
+				fileLines += mapUnsaved.size();
+			}
+			mapUnsaved.clear();
+		} catch (Exception e) {
+			LogSystem.getInstance().printError("Unable to save the in/out index: " + indexFile, e);
+		}
+	}
+
+	/** This will rewrite the index file with one line for each directory.
+	 * */
+	private void rewrite() throws Exception {
+		Path tempFile = Paths.get(indexFile.toString() + ".tmp");
+		try (BufferedWriter out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+			writeLines(out, mapSignatures);
+		}
+		Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		fileLines = mapSignatures.size();
+	}
+
+	private static void writeLines(BufferedWriter out, Map<String, String> mapLines) throws Exception {
+		for (Map.Entry<String, String> entry : mapLines.entrySet()) {
+			out.write(entry.getKey());
+			out.write('\t');
+			out.write(entry.getValue());
+			out.write('\n');
+		}
+	}
+}
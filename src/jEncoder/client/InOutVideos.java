@@ -0,0 +1,100 @@
+package jEncoder.client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import jEncoder.apple_hls.M3U8ChildPlaylist;
+
+/** These are the in/out videos of a channel as they were loaded at one time. Once created it is not changed so it can be
+ * shared by the threads stitching the archive videos and cached by the channel, a reload creates a new one.
+ * */
+public class InOutVideos {
+
+	/** The names of the renditions in the order of the playlists. */
+	private static final String BITRATES[] = {"HD", "SD", "LOW", "64k"};
+
+	/** The in video, 0 if it is turned off. */
+	private final int inVideoInfoId;
+
+	/** The in-video's m3u8 playlist. HD, SD, LOW, and audio64k. null if the rendition does not exist. */
+	private final M3U8ChildPlaylist inVideo[];
+
+	/** The out video, 0 if it is turned off. */
+	private final int outVideoInfoId;
+
+	/** The out-video's m3u8 playlist. HD, SD, LOW, and audio64k. null if the rendition does not exist. */
+	private final M3U8ChildPlaylist outVideo[];
+
+	/** Identifies the in/out videos, see computeSignature(). */
+	private final String signature;
+
+	/** When they were loaded. (milliseconds) */
+	private final long loadedAt;
+
+	public InOutVideos(int inVideoInfoId, M3U8ChildPlaylist inVideo[], int outVideoInfoId, M3U8ChildPlaylist outVideo[]) {
+		this.inVideoInfoId = inVideoInfoId;
+		this.inVideo = inVideo.clone();
+		this.outVideoInfoId = outVideoInfoId;
+		this.outVideo = outVideo.clone();
+		this.signature = computeSignature();
+		this.loadedAt = System.currentTimeMillis();
+	}
+
+	/** @return the in video of the rendition, null if it does not exist.
+	 * @param index is the rendition: 0=HD, 1=SD, 2=LOW, 3=64k.
+	 * */
+	public M3U8ChildPlaylist getInVideo(int index) {
+		return inVideo[index];
+	}
+
+	/** @return the out video of the rendition, null if it does not exist.
+	 * @param index is the rendition: 0=HD, 1=SD, 2=LOW, 3=64k.
+	 * */
+	public M3U8ChildPlaylist getOutVideo(int index) {
+		return outVideo[index];
+	}
+
+	public String getSignature() {
+		return signature;
+	}
+
+	public long getLoadedAt() {
+		return loadedAt;
+	}
+
+	/** @return true if none of the playlist files have been modified since they were loaded.
+	 * */
+	public boolean isUnchanged() {
+		return signature.equals(computeSignature());
+	}
+
+	/** @return the signature of the in/out videos. It changes when an in/out video is turned on or off, is replaced
+	 * by another, or is encoded again. Example: in:12[HD:1431020304000 SD:...] out:0[]
+	 * */
+	private String computeSignature() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("in:").append(inVideoInfoId).append(getPlaylistsSignature(inVideo));
+		sb.append(" out:").append(outVideoInfoId).append(getPlaylistsSignature(outVideo));
+		return sb.toString();
+	}
+
+	/** @return the renditions of the playlists and when their files were last modified. Example: [HD:1431020304000 64k:1431020304000]
+	 * */
+	private static String getPlaylistsSignature(M3U8ChildPlaylist playlists[]) {
+		StringBuffer sb = new StringBuffer("[");
+		for (int i=0; i < playlists.length; i++) {
+			if (playlists[i] == null)
+				continue;
+
+			long lastModified = 0;
+			try {
+				lastModified = Files.getLastModifiedTime(Paths.get(playlists[i].getFilename())).toMillis();
+			} catch (IOException e) {
+				;
+			}
+			sb.append(sb.length() > 1 ? " " : "").append(BITRATES[i]).append(':').append(lastModified);
+		}
+		return sb.append("]").toString();
+	}
+}
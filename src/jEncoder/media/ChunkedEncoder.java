@@ -0,0 +1,633 @@
+package jEncoder.media;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jEncoder.Configuration;
+import jEncoder.apple_hls.M3U8ChildPlaylist;
+import jEncoder.apple_hls.TsInfo;
+import jEncoder.util.LogSystem;
+import jEncoder.web.JobIntakeServer;
+
+import org.apache.http.client.fluent.Request;
+import org.apache.http.entity.ContentType;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/** This encodes the re-encoded renditions of a long input in chunks that are shared with the other jEncoder nodes in
+ * ENCODER_NODES, so a two hour recording is not left to one node. The input is cut into CHUNK_SECONDS long chunks on the
+ * 10 second segment boundaries. A re-encode puts a key frame on each of them, so every chunk starts a GOP and its segments
+ * are the same ones one ffmpeg over the whole input would cut. Each chunk is numbered and timed where it falls in the
+ * output and written to its own segment list, which are joined into the rendition's playlist once all are done.
+ *
+ * The nodes are sent the chunk with POST /chunk to their job intake listener, see encodeChunk(JSONObject). The input and
+ * output directories must be on storage every node shares. This node takes chunks as well, CHUNK_LOCAL_ENCODES of them at
+ * once, and encodes any chunk that failed once more after the rest are done. With more than one at once a long re-encode is
+ * chunked even without other nodes, so one job uses the cores a single ffmpeg with -threads 2 leaves idle. The chunks are
+ * still limited by the CpuBudget like any other encode.
+ *
+ * Each attempt at a chunk is written to its own directory in the rendition's, ie, HD/chunk0003.1/, and only moved next to
+ * the other chunks once it is done. A node that was given up on may still be writing its attempt, it can not write over
+ * the one that replaces it.
+ *
+ * Each node's listener must be bound to an address the others can reach, see JOB_INTAKE_BIND, and every node must have
+ * the same JOB_INTAKE_SECRET. A node only encodes a chunk of a recording or an archive video into the archive.
+ *
+ * The renditions that are copied and the 64k audio are not chunked, they are quick and copied video can only be cut on
+ * the input's key frames. They are encoded here at the same time as the chunks.
+ * */
+public class ChunkedEncoder {
+
+	/** The prefix of the segment list of each chunk. */
+	private static final String CHUNK_PLAYLIST = "chunk";
+
+	/** Milliseconds to wait for a node to accept a chunk. */
+	private static final int CONNECT_TIMEOUT = 10000;
+
+	/** How far the length of a chunk's segments may be from the chunk's, ie, its last frame. (seconds) */
+	private static final float DURATION_TOLERANCE = 1.0f;
+
+	/** The segment list of an attempt a node is sent. Example: chunk0003.2/chunk0003.m3u8 */
+	private static final Pattern ATTEMPT_PLAYLIST = Pattern.compile(CHUNK_PLAYLIST + "(\\d{4})\\.\\d+/" + CHUNK_PLAYLIST + "\\1\\.m3u8");
+
+	/** One chunk of the input. */
+	private static class Chunk {
+		/** The number of the chunk, from 0. */
+		final int index;
+		/** Where the chunk starts in the input. (seconds) */
+		final int start;
+		/** The length of the chunk, 0 = to the end of the input. (seconds) */
+		final int duration;
+		/** Where the chunk starts in the output. (seconds) */
+		final int offset;
+
+		Chunk(int index, int start, int duration, int offset) {
+			this.index = index;
+			this.start = start;
+			this.duration = duration;
+			this.offset = offset;
+		}
+
+		int getFirstSegment() {
+			return offset / FFmpeg.SEGMENT_SECONDS;
+		}
+
+		String getPlaylist() {
+			return getChunkPlaylist(index);
+		}
+
+		/** The number of times it has been started. Only used by the one encoding it. */
+		int attempts;
+
+		/** @return the directory an attempt is written to. Example: chunk0003.2 */
+		String getAttemptDir(int attempt) {
+			return String.format("%s%04d.%d", CHUNK_PLAYLIST, index, attempt);
+		}
+
+		/** @return the segment list of an attempt. Example: chunk0003.2/chunk0003.m3u8 */
+		String getAttemptPlaylist(int attempt) {
+			return getAttemptDir(attempt) + "/" + getPlaylist();
+		}
+	}
+
+	// Client information.
+	private int clientId;
+	private int channelNo;
+
+	/** The input file. */
+	private String inputFile;
+
+	/** The job ID number. */
+	private String jobIdNumber;
+
+	public ChunkedEncoder(int clientId, int channelNo, String inputFile, String jobIdNumber) {
+		this.clientId = clientId;
+		this.channelNo = channelNo;
+		this.inputFile = inputFile;
+		this.jobIdNumber = jobIdNumber;
+	}
+
+	private String formatMessageForLog(String message) {
+		return "Job [" + jobIdNumber + "] " + message;
+	}
+
+	/** This will encode the renditions in chunks, the same as FFmpeg.encodeM3U8Ladder() would in one pass.
+	 * @return false if the input is not chunked, ie, there are no other nodes and one chunk at a time is encoded here, it
+	 *         is too short, nothing is re-encoded, or a chunk could not be encoded. Nothing is left in the rendition
+	 *         directories, encode it in one pass.
+	 * @param outputDir is the directory the renditions will be created in. Should not have a slash at the end.
+	 * @param startingPositionSeconds the starting position in seconds to be encoding at.
+	 * @param durationSeconds the duration in seconds the video should be cropped to. 0 = use full video.
+	 * @param renditions are the renditions to encode.
+	 * */
+	public boolean encodeM3U8Ladder(final String outputDir, final int startingPositionSeconds, final int durationSeconds, List<Rendition> renditions) {
+		// Only the re-encoded video renditions are chunked.
+		final List<Rendition> ltChunked = new ArrayList<Rendition>();
+		final List<Rendition> ltWhole = new ArrayList<Rendition>();
+		for (Rendition rendition : renditions) {
+			if (rendition.reEncodeBitRate > 0 && !rendition.audio64kOnly)
+				ltChunked.add(rendition);
+			else
+				ltWhole.add(rendition);
+		}
+		if (ltChunked.isEmpty())
+			return false;
+
+		List<String> ltNodes = getNodes();
+		int localEncodes = getLocalEncodes(ltChunked);
+		if (ltNodes.isEmpty() && localEncodes < 2)
+			return false;
+
+		final FFmpeg ffmpeg = new FFmpeg(clientId, channelNo, inputFile, jobIdNumber);
+		List<Chunk> ltChunks = planChunks(ffmpeg, startingPositionSeconds, durationSeconds);
+		if (ltChunks.size() < 2)
+			return false;
+
+		LogSystem.getInstance().printInfo(clientId, channelNo, formatMessageForLog("Encoding " + ltChunks.size() + " chunks of " + ltChunked + " " + localEncodes + " at once here and on nodes " + ltNodes));
+		EncoderMetrics.getInstance().increment("chunked_encodes");
+
+		// The chunks are taken by this node and each of the other nodes as they finish their last one.
+		final ConcurrentLinkedQueue<Chunk> queue = new ConcurrentLinkedQueue<Chunk>(ltChunks);
+		final ConcurrentLinkedQueue<Chunk> failed = new ConcurrentLinkedQueue<Chunk>();
+		SubTaskGroup tasks = new SubTaskGroup();
+		tasks.submit(new Runnable() {
+			public void run() {
+				ffmpeg.encodeM3U8Ladder(outputDir, startingPositionSeconds, durationSeconds, ltWhole);
+			}
+		});
+		for (int i=0; i < localEncodes; i++) {
+			tasks.submit(new Runnable() {
+				public void run() {
+					Chunk chunk;
+					while ((chunk = queue.poll()) != null) {
+						if (!encodeLocal(ffmpeg, outputDir, ltChunked, chunk))
+							failed.add(chunk);
+					}
+				}
+			});
+		}
+		for (final String node : ltNodes) {
+			tasks.submit(new Runnable() {
+				public void run() {
+					Chunk chunk;
+					while ((chunk = queue.poll()) != null) {
+						if (!encodeRemote(node, outputDir, ltChunked, chunk)) {
+							// The node is left out of the rest of this encode.
+							failed.add(chunk);
+							return;
+						}
+					}
+				}
+			});
+		}
+		tasks.await();
+
+		// What failed is encoded here once more. A chunk that fails again is not chunked, it is encoded in one pass.
+		boolean encoded = true;
+		Chunk chunk;
+		while (encoded && (chunk = failed.poll()) != null)
+			encoded = encodeLocal(ffmpeg, outputDir, ltChunked, chunk);
+		removeAttempts(outputDir, ltChunked, ltChunks);
+		if (!encoded) {
+			removeChunked(outputDir, ltChunked);
+			return false;
+		}
+
+		// Join the chunks of each rendition.
+		for (Rendition rendition : ltChunked) {
+			if (!join(outputDir, rendition, ltChunks)) {
+				removeChunked(outputDir, ltChunked);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return the chunks of the input from the start for the duration. The chunks are a whole number of segments long
+	 * except for the last one.
+	 * */
+	private List<Chunk> planChunks(FFmpeg ffmpeg, int startingPositionSeconds, int durationSeconds) {
+		List<Chunk> ltChunks = new ArrayList<Chunk>();
+		int chunkSeconds = Configuration.getInstance().getChunkSeconds() / FFmpeg.SEGMENT_SECONDS * FFmpeg.SEGMENT_SECONDS;
+		if (chunkSeconds <= 0)
+			return ltChunks;
+
+		int totalSeconds = durationSeconds > 0 ? durationSeconds : (int)(ffmpeg.getExpectedDuration(0) - startingPositionSeconds);
+		if (totalSeconds < chunkSeconds * 2)
+			return ltChunks;
+
+		// A last chunk shorter than a segment is added to the one before it.
+		int count = totalSeconds / chunkSeconds;
+		if (totalSeconds - count * chunkSeconds >= FFmpeg.SEGMENT_SECONDS)
+			count++;
+
+		for (int i=0; i < count; i++) {
+			int offset = i * chunkSeconds;
+			int length = chunkSeconds;
+
+			// The last chunk of the whole input goes to its end so no frame is lost to rounding.
+			if (i == count - 1)
+				length = durationSeconds > 0 ? totalSeconds - offset : 0;
+
+			ltChunks.add(new Chunk(i, startingPositionSeconds + offset, length, offset));
+		}
+
+		if (!checkPlan(ltChunks, startingPositionSeconds, durationSeconds > 0 ? totalSeconds : 0))
+			ltChunks.clear();
+		return ltChunks;
+	}
+
+	/** This will check the chunks cover the input with no gap or overlap, each starting on a segment boundary.
+	 * @param totalSeconds is the length of the input the chunks cover, 0 = the last chunk goes to the end of it.
+	 * @return false if they do not, the error is logged.
+	 * */
+	private boolean checkPlan(List<Chunk> ltChunks, int startingPositionSeconds, int totalSeconds) {
+		String error = null;
+		int offset = 0;
+		for (Chunk chunk : ltChunks) {
+			boolean last = chunk == ltChunks.get(ltChunks.size() - 1);
+			if (chunk.offset != offset || chunk.start != startingPositionSeconds + offset)
+				error = "starts at " + chunk.offset + " instead of " + offset;
+			else if (chunk.offset % FFmpeg.SEGMENT_SECONDS != 0)
+				error = "does not start on a segment";
+			else if (chunk.duration <= 0 && !(last && totalSeconds == 0))
+				error = "has no length";
+			if (error != null) {
+				LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Chunk " + chunk.index + " of " + ltChunks.size() + " " + error + ", it is not chunked."));
+				return false;
+			}
+			offset += chunk.duration;
+		}
+
+		if (totalSeconds > 0 && offset != totalSeconds) {
+			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Chunks cover " + offset + " of " + totalSeconds + " seconds, it is not chunked."));
+			return false;
+		}
+		return true;
+	}
+
+	/** This will encode the chunk on this node.
+	 * @return true if it was encoded whole and placed next to the other chunks.
+	 * */
+	private boolean encodeLocal(FFmpeg ffmpeg, String outputDir, List<Rendition> renditions, Chunk chunk) {
+		int attempt = ++chunk.attempts;
+		boolean encoded = ffmpeg.encodeM3U8Chunk(outputDir, chunk.start, chunk.duration, renditions, chunk.offset, chunk.getFirstSegment(), chunk.getAttemptPlaylist(attempt));
+		EncoderMetrics.getInstance().increment("chunks_local");
+		if (encoded && place(outputDir, renditions, chunk, attempt))
+			return true;
+
+		EncoderMetrics.getInstance().increment("chunks_local_failed");
+		return false;
+	}
+
+	/** This will have the node encode the chunk.
+	 * @return true if the node encoded it.
+	 * */
+	@SuppressWarnings("unchecked")
+	private boolean encodeRemote(String node, String outputDir, List<Rendition> renditions, Chunk chunk) {
+		int attempt = ++chunk.attempts;
+		JSONArray jsonRenditions = new JSONArray();
+		for (Rendition rendition : renditions) {
+			JSONObject obj = new JSONObject();
+			obj.put("name", rendition.name);
+			obj.put("reEncodeBitRate", rendition.reEncodeBitRate);
+			obj.put("audio64kOnly", rendition.audio64kOnly);
+			obj.put("bandwidth", rendition.bandwidth);
+			jsonRenditions.add(obj);
+		}
+
+		JSONObject request = new JSONObject();
+		request.put("cid", clientId);
+		request.put("cno", channelNo);
+		request.put("job", jobIdNumber);
+		request.put("input", inputFile);
+		request.put("output", outputDir);
+		request.put("start", chunk.start);
+		request.put("duration", chunk.duration);
+		request.put("offset", chunk.offset);
+		request.put("first", chunk.getFirstSegment());
+		request.put("playlist", chunk.getAttemptPlaylist(attempt));
+		request.put("renditions", jsonRenditions);
+
+		// The node is given as long as its own watchdog gives the encode.
+		Configuration config = Configuration.getInstance();
+		int chunkSeconds = chunk.duration > 0 ? chunk.duration : config.getChunkSeconds() * 2;
+		int timeoutSeconds = Math.max(config.getFfmpegMinTimeoutSeconds(), chunkSeconds * config.getFfmpegTimeoutMultiplier()) + 60;
+
+		long startTime = System.currentTimeMillis();
+		try {
+			Request post = Request.Post("http://" + node + "/chunk")
+				.connectTimeout(CONNECT_TIMEOUT)
+				.socketTimeout(timeoutSeconds * 1000)
+				.bodyString(request.toJSONString(), ContentType.APPLICATION_JSON);
+			String secret = config.getJobIntakeSecret();
+			if (secret != null && !"none".equals(secret) && !secret.isEmpty())
+				post.addHeader(JobIntakeServer.SECRET_HEADER, secret);
+			String response = post.execute().returnContent().asString();
+
+			Object parsed = JSONValue.parse(response);
+			if (!(parsed instanceof JSONObject) || !Boolean.TRUE.equals(((JSONObject)parsed).get("done")))
+				throw new IllegalStateException("Unexpected response: " + response);
+
+			EncoderMetrics.getInstance().increment("chunks_remote");
+			LogSystem.getInstance().printInfo(clientId, channelNo, formatMessageForLog("Node [" + node + "] encoded " + chunk.getPlaylist() + " in " + (System.currentTimeMillis() - startTime) / 1000 + " seconds"));
+			if (!place(outputDir, renditions, chunk, attempt))
+				throw new IllegalStateException("Unable to place " + chunk.getAttemptDir(attempt));
+			return true;
+
+		} catch (Exception e) {
+			EncoderMetrics.getInstance().increment("chunks_remote_failed");
+			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Node [" + node + "] unable to encode " + chunk.getPlaylist() + ", it will be encoded here."), e);
+			return false;
+		}
+	}
+
+	/** This will join the segment lists of the rendition's chunks into its playlist and remove them.
+	 * @return false if a chunk is missing or is not whole, or the playlist does not number and time them as one pass would.
+	 * */
+	private boolean join(String outputDir, Rendition rendition, List<Chunk> ltChunks) {
+		List<M3U8ChildPlaylist> ltParts = new ArrayList<M3U8ChildPlaylist>();
+		for (Chunk chunk : ltChunks) {
+			String filename = outputDir + "/" + rendition.name + "/" + chunk.getPlaylist();
+			if (!Files.exists(Paths.get(filename))) {
+				LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Chunk is missing: " + filename));
+				return false;
+			}
+
+			M3U8ChildPlaylist part = new M3U8ChildPlaylist(clientId, channelNo);
+			part.setFilename(filename);
+			part.read();
+			if (!checkChunk(part, chunk))
+				return false;
+			ltParts.add(part);
+		}
+
+		M3U8ChildPlaylist m3u8 = new M3U8ChildPlaylist(clientId, channelNo);
+		m3u8.setFilename(outputDir + "/" + rendition.getChildPlaylist());
+		m3u8.join(ltParts);
+		m3u8.removeDirectories();
+		m3u8.setDurationTimeTo10Seconds();
+		if (!checkJoined(m3u8, ltChunks))
+			return false;
+		m3u8.write();
+
+		for (M3U8ChildPlaylist part : ltParts) {
+			try {
+				Files.deleteIfExists(Paths.get(part.getFilename()));
+			} catch (Exception e) {
+				LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Unable to delete chunk: " + part.getFilename()), e);
+			}
+		}
+		return true;
+	}
+
+	/** This will check the chunk's segment list has the segments of the whole chunk.
+	 * @return false if it does not, the error is logged.
+	 * */
+	private boolean checkChunk(M3U8ChildPlaylist part, Chunk chunk) {
+		String error = null;
+		if (part.countVideos() == 0)
+			error = "has no segments";
+
+		// A chunk cut short would leave a gap in the joined playlist, one cut into more segments would number one the
+		// same as the next chunk's first. The last chunk of the whole input is as long as what is left of it.
+		else if (chunk.duration > 0 && part.countVideos() != getSegmentCount(chunk))
+			error = "has " + part.countVideos() + " segments instead of " + getSegmentCount(chunk);
+		else if (chunk.duration > 0 && Math.abs(part.getTotalDuration() - chunk.duration) > DURATION_TOLERANCE)
+			error = "is " + part.getTotalDuration() + " seconds instead of " + chunk.duration;
+
+		if (error != null) {
+			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Chunk " + error + ": " + part.getFilename()));
+			return false;
+		}
+		return true;
+	}
+
+	/** This will check the joined playlist has the chunks' segments numbered one after the other from the first chunk's,
+	 * is as long as the chunks, and is ended.
+	 * @return false if it does not, the error is logged.
+	 * */
+	private boolean checkJoined(M3U8ChildPlaylist m3u8, List<Chunk> ltChunks) {
+		String error = null;
+		int number = ltChunks.get(0).getFirstSegment();
+		int count = m3u8.getTsInfoCount();
+		for (int i=0; i < count - 1 && error == null; i++) {
+			TsInfo tsInfo = m3u8.getTsInfo(i);
+			String expected = String.format("%04d.ts", number++);
+			if (tsInfo.getType() != TsInfo.Type.VIDEO_FILE || !expected.equals(tsInfo.getFilename()))
+				error = "has " + tsInfo.getFilename() + " instead of " + expected;
+		}
+
+		Chunk last = ltChunks.get(ltChunks.size() - 1);
+		float duration = m3u8.getTotalDuration();
+		if (error == null) {
+			if (count == 0 || m3u8.getLatestTsInfo().getType() != TsInfo.Type.ENDLIST)
+				error = "is not ended";
+			else if (last.duration > 0 && Math.abs(duration - (last.offset + last.duration)) > DURATION_TOLERANCE * ltChunks.size())
+				error = "is " + duration + " seconds instead of " + (last.offset + last.duration);
+			else if (last.duration == 0 && duration <= last.offset)
+				error = "is " + duration + " seconds, the last chunk starts at " + last.offset;
+		}
+
+		if (error != null) {
+			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Joined playlist " + error + ": " + m3u8.getFilename()));
+			return false;
+		}
+		return true;
+	}
+
+	/** This will move the segment list and the .ts files of the attempt out of its directory, next to the other chunks.
+	 * @return false if the attempt did not write the whole segment list of every rendition or they could not be moved.
+	 * */
+	private boolean place(String outputDir, List<Rendition> renditions, Chunk chunk, int attempt) {
+		for (Rendition rendition : renditions) {
+			Path playlist = Paths.get(outputDir, rendition.name, chunk.getAttemptPlaylist(attempt));
+			if (!Files.exists(playlist)) {
+				LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Chunk is missing: " + playlist));
+				return false;
+			}
+
+			M3U8ChildPlaylist part = new M3U8ChildPlaylist(clientId, channelNo);
+			part.setFilename(playlist.toString());
+			part.read();
+			if (!checkChunk(part, chunk))
+				return false;
+		}
+
+		for (Rendition rendition : renditions) {
+			Path dir = Paths.get(outputDir, rendition.name);
+			Path attemptDir = dir.resolve(chunk.getAttemptDir(attempt));
+			try {
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(attemptDir)) {
+					for (Path file : stream)
+						Files.move(file, dir.resolve(file.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+				}
+				Files.delete(attemptDir);
+			} catch (Exception e) {
+				LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Unable to move chunk out of: " + attemptDir), e);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** This will remove the attempts at the chunks that were given up on.
+	 * */
+	private void removeAttempts(String outputDir, List<Rendition> renditions, List<Chunk> ltChunks) {
+		for (Rendition rendition : renditions) {
+			for (Chunk chunk : ltChunks) {
+				for (int attempt=1; attempt <= chunk.attempts; attempt++) {
+					Path attemptDir = Paths.get(outputDir, rendition.name, chunk.getAttemptDir(attempt));
+					try {
+						if (Files.exists(attemptDir))
+							MediaProcess.deleteRecursively(attemptDir);
+					} catch (Exception e) {
+						LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Unable to delete: " + attemptDir), e);
+					}
+				}
+			}
+		}
+	}
+
+	/** This will remove what was encoded of the chunked renditions so they can be encoded again.
+	 * */
+	private void removeChunked(String outputDir, List<Rendition> renditions) {
+		for (Rendition rendition : renditions) {
+			Path dir = Paths.get(outputDir, rendition.name);
+			try {
+				if (Files.exists(dir))
+					MediaProcess.deleteRecursively(dir);
+			} catch (Exception e) {
+				LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Unable to delete: " + dir), e);
+			}
+		}
+	}
+
+	/** This is a chunk sent by another node, see encodeRemote(). It is encoded on this node.
+	 * @return true if the chunk was encoded. false if it could not be, or the request is not for a chunk of a recording or
+	 *         an archive video into a rendition in the archive.
+	 * */
+	public static boolean encodeChunk(JSONObject request) {
+		int clientId = ((Number)request.get("cid")).intValue();
+		int channelNo = ((Number)request.get("cno")).intValue();
+		String jobIdNumber = (String)request.get("job");
+		String inputFile = (String)request.get("input");
+		String outputDir = (String)request.get("output");
+		String playlist = (String)request.get("playlist");
+
+		List<Rendition> renditions = new LinkedList<Rendition>();
+		for (Object obj : (JSONArray)request.get("renditions")) {
+			JSONObject rendition = (JSONObject)obj;
+			renditions.add(new Rendition((String)rendition.get("name"), ((Number)rendition.get("reEncodeBitRate")).intValue(),
+				Boolean.TRUE.equals(rendition.get("audio64kOnly")), ((Number)rendition.get("bandwidth")).intValue()));
+		}
+
+		// Only what a chunked encode would send is encoded.
+		Path input = Paths.get(inputFile).toAbsolutePath().normalize();
+		Path output = Paths.get(outputDir).toAbsolutePath().normalize();
+		Path recordingRoot = Paths.get(ProcessParameters.RECORDING_PATH);
+		Path archiveRoot = Paths.get(ProcessParameters.ARCHIVE_PATH);
+		String error = null;
+		if (!(input.startsWith(recordingRoot) || input.startsWith(archiveRoot)) || input.equals(recordingRoot) || input.equals(archiveRoot))
+			error = "Chunk input is not a recording or an archive video: " + inputFile;
+		else if (!output.startsWith(archiveRoot) || output.getNameCount() <= archiveRoot.getNameCount() + 1)
+			error = "Chunk output is not in a client's archive: " + outputDir;
+		else if (playlist == null || !ATTEMPT_PLAYLIST.matcher(playlist).matches())
+			error = "Chunk segment list is not a chunk's: " + playlist;
+		for (Rendition rendition : renditions) {
+			if (error == null && !Arrays.asList(MediaProcess.ARCHIVE_RENDITIONS).contains(rendition.name))
+				error = "Chunk rendition is not known: " + rendition.name;
+		}
+		if (error != null) {
+			LogSystem.getInstance().printError(clientId, channelNo, "Job [" + jobIdNumber + "] " + error);
+			EncoderMetrics.getInstance().increment("chunks_rejected");
+			return false;
+		}
+		inputFile = input.toString();
+		outputDir = output.toString();
+
+		if (!Files.exists(input)) {
+			LogSystem.getInstance().printError(clientId, channelNo, "Job [" + jobIdNumber + "] Chunk input does not exist on this node: " + inputFile);
+			return false;
+		}
+
+		FFmpeg ffmpeg = new FFmpeg(clientId, channelNo, inputFile, jobIdNumber);
+		boolean encoded = ffmpeg.encodeM3U8Chunk(outputDir, ((Number)request.get("start")).intValue(), ((Number)request.get("duration")).intValue(), renditions,
+			((Number)request.get("offset")).intValue(), ((Number)request.get("first")).intValue(), playlist);
+		EncoderMetrics.getInstance().increment("chunks_for_nodes");
+		if (!encoded)
+			return false;
+
+		// The same check the node that sent it makes, so a chunk that is not whole is not reported done.
+		Matcher matcher = ATTEMPT_PLAYLIST.matcher(playlist);
+		matcher.matches();
+		Chunk chunk = new Chunk(Integer.parseInt(matcher.group(1)), ((Number)request.get("start")).intValue(), ((Number)request.get("duration")).intValue(),
+			((Number)request.get("offset")).intValue());
+		ChunkedEncoder encoder = new ChunkedEncoder(clientId, channelNo, inputFile, jobIdNumber);
+		for (Rendition rendition : renditions) {
+			Path file = Paths.get(outputDir, rendition.name, playlist);
+			if (!Files.exists(file))
+				return false;
+
+			M3U8ChildPlaylist part = new M3U8ChildPlaylist(clientId, channelNo);
+			part.setFilename(file.toString());
+			part.read();
+			if (!encoder.checkChunk(part, chunk))
+				return false;
+		}
+		return true;
+	}
+
+	/** @return the number of .ts files the chunk is cut into.
+	 * */
+	private static int getSegmentCount(Chunk chunk) {
+		return (chunk.duration + FFmpeg.SEGMENT_SECONDS - 1) / FFmpeg.SEGMENT_SECONDS;
+	}
+
+	/** @return the filename of the segment list of the chunk. Example: chunk0003.m3u8
+	 * */
+	private static String getChunkPlaylist(int index) {
+		return String.format("%s%04d.m3u8", CHUNK_PLAYLIST, index);
+	}
+
+	/** @return the number of chunks of the renditions this node encodes at once, see CHUNK_LOCAL_ENCODES.
+	 * */
+	private static int getLocalEncodes(List<Rendition> renditions) {
+		int localEncodes = Configuration.getInstance().getChunkLocalEncodes();
+		if (localEncodes > 0)
+			return localEncodes;
+
+		// As many as the budget has the threads for.
+		int threads = 0;
+		for (Rendition rendition : renditions)
+			threads += FFmpeg.getThreadCost(rendition.reEncodeBitRate, rendition.audio64kOnly);
+		return Math.max(1, CpuBudget.getInstance().getTotalThreads() / Math.max(1, threads));
+	}
+
+	/** @return the other nodes in ENCODER_NODES.
+	 * */
+	private static List<String> getNodes() {
+		List<String> ltNodes = new ArrayList<String>();
+		String nodes = Configuration.getInstance().getEncoderNodes();
+		if (nodes == null || "none".equals(nodes))
+			return ltNodes;
+
+		for (String node : nodes.split(",")) {
+			node = node.trim();
+			if (!node.isEmpty())
+				ltNodes.add(node);
+		}
+		return ltNodes;
+	}
+}
@@ -0,0 +1,65 @@
+package jEncoder.media;
+
+import java.util.concurrent.Semaphore;
+
+import jEncoder.Configuration;
+
+/** This is the number of ffmpeg threads the whole engine is allowed to run at once. Every ffmpeg encode takes the
+ * number of threads it will use from the budget before it starts and gives them back when it is done, so workers
+ * and the sub-tasks of their jobs together never oversubscribe the box.
+ * */
+public class CpuBudget {
+
+	/** The total number of threads in the budget. */
+	private int totalThreads;
+
+	/** The threads that are free. */
+	private Semaphore available;
+
+    // The only instance of this class.
+    private static CpuBudget instance = null;
+
+    // [start] Methods: Constructor and getInstance()
+
+    protected CpuBudget() {
+    	totalThreads = Math.max(1, Configuration.getInstance().getEncoderCpuThreads());
+    	available = new Semaphore(totalThreads, true);
+    }
+
+    /** @return the only instance of this class.
+     */
+    public static synchronized CpuBudget getInstance() {
+        if(instance == null) {
+            instance = new CpuBudget();
+        }
+        return instance;
+    }
+
+    // [end]
+
+	/** This will wait until the threads are free and take them. A request for more than the total budget takes the whole budget.
+	 * @return the number of threads taken, pass it to release().
+	 * */
+	public int acquire(int threads) {
+		int taken = Math.max(1, Math.min(threads, totalThreads));
+		available.acquireUninterruptibly(taken);
+		return taken;
+	}
+
+	/** This will give the threads back to the budget.
+	 * @param threads is the value returned by acquire().
+	 * */
+	public void release(int threads) {
+		available.release(threads);
+	}
+
+	/** @return the number of threads that are free right now.
+	 * */
+	public int getAvailableThreads() {
+		return available.availablePermits();
+	}
+
+	public int getTotalThreads() {
+		return totalThreads;
+	}
+}
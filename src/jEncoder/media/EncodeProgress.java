@@ -0,0 +1,143 @@
+package jEncoder.media;
+
+import org.json.simple.JSONObject;
+
+/** This is how far a running ffmpeg encode has got. It is filled from the "-progress" key=value lines ffmpeg writes
+ * while encoding, see ProgressParser.
+ * */
+public class EncodeProgress {
+
+	/** The client information of the job. */
+	public final int clientId;
+	public final int channelNo;
+
+	/** The job ID number. */
+	public final String jobIdNumber;
+
+	/** The label of the encode. Example: HD, MP3. */
+	public final String textTag;
+
+	/** When the encode started. (milliseconds) */
+	public final long startTime;
+
+	/** How much of the output has been encoded. (microseconds) */
+	private volatile long outTimeMicros = 0;
+
+	/** The number of frames encoded. */
+	private volatile long frame = 0;
+
+	/** The frames per second encoded. */
+	private volatile float fps = 0;
+
+	/** The speed of the encode compared to real time. Example: 2.5 for 2.5x. */
+	private volatile float speed = 0;
+
+	/** The bitrate of the output. Example: 1234.5 for 1234.5kbits/s. */
+	private volatile float bitrate = 0;
+
+	/** The last time the out time moved forward. (milliseconds) */
+	private volatile long lastAdvanceTime;
+
+	/** True once ffmpeg reported progress=end. */
+	private volatile boolean finished = false;
+
+	public EncodeProgress(int clientId, int channelNo, String jobIdNumber, String textTag) {
+		this.clientId = clientId;
+		this.channelNo = channelNo;
+		this.jobIdNumber = jobIdNumber;
+		this.textTag = textTag;
+		this.startTime = System.currentTimeMillis();
+		this.lastAdvanceTime = startTime;
+	}
+
+	/** This will update the progress with a key=value pair from ffmpeg. Unknown keys and "N/A" values are ignored.
+	 * */
+	public void update(String key, String value) {
+		if (value == null || value.startsWith("N/A"))
+			return;
+
+		try {
+			// out_time_ms is also in microseconds, it is the older name of out_time_us.
+			if ("out_time_us".equals(key) || "out_time_ms".equals(key)) {
+				long micros = Long.parseLong(value);
+				if (micros > outTimeMicros) {
+					outTimeMicros = micros;
+					lastAdvanceTime = System.currentTimeMillis();
+				}
+			} else if ("frame".equals(key)) {
+				frame = Long.parseLong(value);
+			} else if ("fps".equals(key)) {
+				fps = Float.parseFloat(value);
+			} else if ("speed".equals(key)) {
+				speed = Float.parseFloat(stripUnit(value, "x"));
+			} else if ("bitrate".equals(key)) {
+				bitrate = Float.parseFloat(stripUnit(value, "kbits/s"));
+			} else if ("progress".equals(key)) {
+				if ("end".equals(value))
+					finished = true;
+			}
+		} catch (NumberFormatException e) {
+			// Ignore a value that can not be read, the next progress block will have it.
+		}
+	}
+
+	private static String stripUnit(String value, String unit) {
+		value = value.trim();
+		if (value.endsWith(unit))
+			return value.substring(0, value.length() - unit.length()).trim();
+		return value;
+	}
+
+	/** @return how much of the output has been encoded in seconds.
+	 * */
+	public float getOutTimeSeconds() {
+		return outTimeMicros / 1000000f;
+	}
+
+	public long getFrame() {
+		return frame;
+	}
+
+	public float getFps() {
+		return fps;
+	}
+
+	public float getSpeed() {
+		return speed;
+	}
+
+	public float getBitrate() {
+		return bitrate;
+	}
+
+	public long getLastAdvanceTime() {
+		return lastAdvanceTime;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/** @return the progress as json.
+	 * */
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON() {
+		JSONObject obj = new JSONObject();
+		obj.put("cid", clientId);
+		obj.put("cno", channelNo);
+		obj.put("job", jobIdNumber);
+		obj.put("tag", textTag);
+		obj.put("running_seconds", (System.currentTimeMillis() - startTime) / 1000);
+		obj.put("out_time_seconds", getOutTimeSeconds());
+		obj.put("frame", frame);
+		obj.put("fps", fps);
+		obj.put("speed", speed);
+		obj.put("bitrate_kbits", bitrate);
+		obj.put("finished", finished);
+		return obj;
+	}
+
+	public String toString() {
+		return "{EncodeProgress job:[" + jobIdNumber + "] tag:[" + textTag + "] out_time:[" + getOutTimeSeconds() + "] fps:[" + fps + "] speed:[" + speed + "x] bitrate:[" + bitrate + "kbits/s]}";
+	}
+}
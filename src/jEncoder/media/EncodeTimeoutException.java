@@ -0,0 +1,20 @@
+package jEncoder.media;
+
+/** This is thrown when an ffmpeg encode was killed by its EncodeWatchdog. The job did not finish and should be tried
+ * again, see MediaEncoderEngine.
+ * */
+public class EncodeTimeoutException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	/** Why the encode was killed. */
+	private final EncodeWatchdog.Reason reason;
+
+	public EncodeTimeoutException(EncodeWatchdog.Reason reason, String message) {
+		super(message);
+		this.reason = reason;
+	}
+
+	public EncodeWatchdog.Reason getReason() {
+		return reason;
+	}
+}
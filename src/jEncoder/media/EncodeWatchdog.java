@@ -0,0 +1,129 @@
+package jEncoder.media;
+
+import jEncoder.Configuration;
+import jEncoder.util.LogSystem;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.ExecuteWatchdog;
+
+/** This kills an ffmpeg encode that is no longer getting anywhere. It is driven by the EncodeProgress of the encode
+ * instead of a fixed timeout:
+ *   Stalled: the out time has not moved forward for FFMPEG_STALL_SECONDS.
+ *   Timeout: the encode has run longer than FFMPEG_TIMEOUT_MULTIPLIER times the duration of the media, but never
+ *            less than FFMPEG_MIN_TIMEOUT_SECONDS. Only checked if the duration is known.
+ *
+ * All of the watchdogs are checked by one shared thread.
+ * */
+public class EncodeWatchdog extends ExecuteWatchdog {
+
+	/** Why the encode was killed. */
+	public enum Reason {STALLED, TIMEOUT};
+
+	/** How often the running encodes are checked. (1000 = 1 second). */
+	private static final long CHECK_INTERVAL = 1000 * 5;
+
+	/** The watchdogs of the encodes that are running. */
+	private static final Set<EncodeWatchdog> setWatchdogs = Collections.newSetFromMap(new ConcurrentHashMap<EncodeWatchdog, Boolean>());
+
+	/** The thread that checks the watchdogs. */
+	private static final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "EncodeWatchdog");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static {
+		checker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (EncodeWatchdog watchdog : setWatchdogs) {
+					try {
+						watchdog.check();
+					} catch (Exception e) {
+						LogSystem.getInstance().printError("Encode watchdog error.", e);
+					}
+				}
+			}
+		}, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/** The progress of the encode being watched. */
+	private final EncodeProgress progress;
+
+	/** How long the out time can stand still. (milliseconds) */
+	private final long stallTimeout;
+
+	/** How long the encode can run. 0 = no limit. (milliseconds) */
+	private final long hardTimeout;
+
+	/** True once the process has been started, ie, it can be killed. */
+	private volatile boolean started = false;
+
+	/** Why the encode was killed, null if it was not. */
+	private volatile Reason reason = null;
+
+	/** @param progress is the progress of the encode.
+	 * @param mediaDurationSeconds is the duration of the media being encoded. 0 if unknown.
+	 * */
+	public EncodeWatchdog(EncodeProgress progress, float mediaDurationSeconds) {
+		super(ExecuteWatchdog.INFINITE_TIMEOUT);
+		this.progress = progress;
+
+		Configuration config = Configuration.getInstance();
+		this.stallTimeout = 1000L * config.getFfmpegStallSeconds();
+		if (mediaDurationSeconds > 0)
+			this.hardTimeout = 1000L * Math.max(config.getFfmpegMinTimeoutSeconds(), (long)(mediaDurationSeconds * config.getFfmpegTimeoutMultiplier()));
+		else
+			this.hardTimeout = 0;
+	}
+
+	@Override
+	public synchronized void start(Process process) {
+		super.start(process);
+		started = true;
+		setWatchdogs.add(this);
+	}
+
+	@Override
+	public synchronized void stop() {
+		setWatchdogs.remove(this);
+		super.stop();
+	}
+
+	/** This will kill the encode if it has stalled or run past its timeout.
+	 * */
+	private void check() {
+		if (!started || reason != null)
+			return;
+
+		long now = System.currentTimeMillis();
+		if (stallTimeout > 0 && now - progress.getLastAdvanceTime() > stallTimeout)
+			kill(Reason.STALLED, "out time has not moved from [" + progress.getOutTimeSeconds() + "] for [" + (now - progress.getLastAdvanceTime()) / 1000 + "] seconds");
+		else if (hardTimeout > 0 && now - progress.startTime > hardTimeout)
+			kill(Reason.TIMEOUT, "running for [" + (now - progress.startTime) / 1000 + "] seconds, the limit is [" + hardTimeout / 1000 + "] seconds");
+	}
+
+	private void kill(Reason reason, String message) {
+		this.reason = reason;
+		setWatchdogs.remove(this);
+
+		LogSystem.getInstance().printError(progress.clientId, progress.channelNo, "Job [" + progress.jobIdNumber + "] Killing ffmpeg [" + progress.textTag + "] " + reason + ": " + message);
+		EncoderMetrics.getInstance().increment("ffmpeg_killed_" + reason.toString().toLowerCase());
+		destroyProcess();
+	}
+
+	/** @return why the encode was killed, null if it was not.
+	 * */
+	public Reason getReason() {
+		return reason;
+	}
+}
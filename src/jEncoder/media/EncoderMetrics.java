@@ -0,0 +1,81 @@
+package jEncoder.media;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+/** These are the counters of what the encoder has done since it started. Example: ffmpeg_killed_stalled, jobs_requeued.
+ * A counter is created the first time it is used.
+ * */
+public class EncoderMetrics {
+
+	/** The counters by name. */
+	private ConcurrentHashMap<String, AtomicLong> mapCounters = new ConcurrentHashMap<String, AtomicLong>();
+
+    // The only instance of this class.
+    private static EncoderMetrics instance = null;
+
+    // [start] Methods: Constructor and getInstance()
+
+    protected EncoderMetrics() {
+    }
+
+    /** @return the only instance of this class.
+     */
+    public static synchronized EncoderMetrics getInstance() {
+        if(instance == null) {
+            instance = new EncoderMetrics();
+        }
+        return instance;
+    }
+
+    // [end]
+
+	/** This will add one to the counter.
+	 * */
+	public void increment(String name) {
+		add(name, 1);
+	}
+
+	/** This will add the amount to the counter.
+	 * */
+	public void add(String name, long amount) {
+		AtomicLong counter = mapCounters.get(name);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = mapCounters.putIfAbsent(name, newCounter);
+			if (counter == null)
+				counter = newCounter;
+		}
+		counter.addAndGet(amount);
+	}
+
+	/** @return the value of the counter, 0 if it has not been used.
+	 * */
+	public long get(String name) {
+		AtomicLong counter = mapCounters.get(name);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/** @return the counters by name in alphabetical order.
+	 * */
+	public Map<String, Long> getCounters() {
+		Map<String, Long> mapValues = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : mapCounters.entrySet()) {
+			mapValues.put(entry.getKey(), entry.getValue().get());
+		}
+		return mapValues;
+	}
+
+	/** @return the counters as json. Example: {"ffmpeg_killed_stalled":1, "jobs_requeued":1}
+	 * */
+	@SuppressWarnings("unchecked")
+	public JSONObject getAsJSON() {
+		JSONObject obj = new JSONObject();
+		obj.putAll(getCounters());
+		return obj;
+	}
+}
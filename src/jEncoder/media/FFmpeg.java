@@ -1,24 +1,27 @@
 package jEncoder.media;
 
 import jEncoder.apple_hls.M3U8ChildPlaylist;
+import jEncoder.apple_hls.PlaylistPublisher;
+import jEncoder.apple_hls.TsInfo;
 import jEncoder.util.LogSystem;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.StringReader;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
+import java.util.Locale;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.exec.PumpStreamHandler;
 
 public class FFmpeg {
     public static final String FFMPEG_PATH = "/opt/gomedia/bin/programs/ffmpeg";
+    
+    /** The length in seconds the segmenter cuts the .ts files at. */
+    static final int SEGMENT_SECONDS = 10;
 
     // Client information.
     int clientId;
@@ -56,7 +59,8 @@ public class FFmpeg {
     	
     	cmdLine.addArgument("-n");
     	cmdLine.addArgument("-loglevel");
-    	cmdLine.addArgument("quiet");
+    	cmdLine.addArgument("error");
+    	addProgressArguments(cmdLine);
 
     	// Set the input file.
     	cmdLine.addArgument("-i");
@@ -74,18 +78,10 @@ public class FFmpeg {
 
     	LogSystem.getInstance().printInfo(clientId, channelNo, formatMessageForLog("encodeMP4 cmd:[" + cmdLine + "] "));
     	
-		// Set up the streams to get the out/err from the executable.
-		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-		ByteArrayOutputStream errStream = new ByteArrayOutputStream();
-		PumpStreamHandler streamHandler = new PumpStreamHandler(outStream, errStream);
-
-    	DefaultExecutor executor = new DefaultExecutor();
-    	executor.setStreamHandler(streamHandler);
-    	int exitValues[] = {0,1};
-    	executor.setExitValues(exitValues);
-
     	try {
-    		executor.execute(cmdLine);
+    		execute(cmdLine, 1, "MP4", getExpectedDuration(0));
+    	} catch (EncodeTimeoutException e) {
+    		throw e;
     	} catch (Exception e) {    		
     		// Executing the FFMPEG it will output error messages for things we don't care about. Just verify that the duration times.
     		    		  
@@ -96,6 +92,93 @@ public class FFmpeg {
     	}
 	}
 
+	/** This will put the .ts files of the playlist, the inputFile, together into a fragmented MP4 without re-encoding
+	 * them. The .ts files are listed with their #EXTINF durations in a concat list for ffmpeg's concat demuxer, so ffmpeg
+	 * reads them one after the other instead of through its HLS demuxer and does not have to probe each one for its
+	 * duration. The MP4 is written in fragments after an empty moov, so it can be served while it is still written. The moov
+	 * is written before the first .ts file is read, so an MP4 that was cut short is not empty. Only an exit value of 0 is
+	 * taken as done.
+	 * @param outputMp4 is the output MP4 file.
+	 * @return false if the playlist has no .ts files or ffmpeg did not finish the MP4, nothing is left of it. Use encodeMP4().
+	 * */
+	public boolean encodeMP4FromSegments(String outputMp4) {
+		M3U8ChildPlaylist m3u8 = new M3U8ChildPlaylist(clientId, channelNo);
+		m3u8.setFilename(inputFile);
+		m3u8.read();
+		if (m3u8.countVideos() == 0)
+			return false;
+		
+		// List the .ts files with their durations.
+		PlaylistPublisher publisher = PlaylistPublisher.getInstance();
+		StringBuilder sb = publisher.getBuffer();
+		sb.append("ffconcat version 1.0\n");
+		File inputDir = new File(inputFile).getAbsoluteFile().getParentFile();
+		float duration = 0;
+		for (int i=0; i < m3u8.getTsInfoCount(); i++) {
+			TsInfo tsInfo = m3u8.getTsInfo(i);
+			if (tsInfo.getType() != TsInfo.Type.VIDEO_FILE)
+				continue;
+			
+			String tsFile = new File(inputDir, new File(tsInfo.getFilename()).getName()).getPath();
+			sb.append("file '").append(tsFile.replace("'", "'\\''")).append("'\n");
+			sb.append("duration ");
+			publisher.appendFixed(sb, tsInfo.getDuration(), 5);
+			sb.append('\n');
+			duration += tsInfo.getDuration();
+		}
+		
+		String concatFile = outputMp4 + ".ffconcat";
+		try {
+			new File(outputMp4).getAbsoluteFile().getParentFile().mkdirs();
+			publisher.publish(concatFile, ".ffconcat", sb);
+			
+	    	CommandLine cmdLine = new CommandLine(FFMPEG_PATH);
+	    	cmdLine.addArgument("-n");
+	    	cmdLine.addArgument("-loglevel");
+	    	cmdLine.addArgument("error");
+	    	addProgressArguments(cmdLine);
+	    	
+	    	cmdLine.addArgument("-f");
+	    	cmdLine.addArgument("concat");
+	    	cmdLine.addArgument("-safe");
+	    	cmdLine.addArgument("0");
+	    	cmdLine.addArgument("-i");
+	    	cmdLine.addArgument(concatFile);
+	    	
+	    	cmdLine.addArgument("-map");
+	    	cmdLine.addArgument("0");
+			cmdLine.addArgument("-codec");
+			cmdLine.addArgument("copy");
+			cmdLine.addArgument("-bsf:a");
+			cmdLine.addArgument("aac_adtstoasc");
+			cmdLine.addArgument("-movflags");
+			cmdLine.addArgument("+frag_keyframe+empty_moov+default_base_moof");
+			cmdLine.addArgument("-f");
+			cmdLine.addArgument("mp4");
+	    	cmdLine.addArgument(outputMp4);
+	    	
+	    	LogSystem.getInstance().printInfo(clientId, channelNo, formatMessageForLog("encodeMP4FromSegments cmd:[" + cmdLine + "] "));
+	    	int exitValues[] = {0};
+	    	execute(cmdLine, 1, "MP4", duration, exitValues);
+	    	
+		} catch (EncodeTimeoutException e) {
+			new File(outputMp4).delete();
+			throw e;
+		} catch (Exception e) {
+			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Unable to put the .ts files together into an MP4."), e);
+			new File(outputMp4).delete();
+			return false;
+		} finally {
+			new File(concatFile).delete();
+		}
+		
+		if (new File(outputMp4).length() == 0) {
+			new File(outputMp4).delete();
+			return false;
+		}
+		return true;
+	}
+
 	/** @param copyOnly is true if only copy the audio to the MP3 file.
 	 * */
     public void encodeMP3(String outputFileMP3, int startingPositionSeconds, int durationSeconds, String title, String artist, String album, boolean copyOnly) {
@@ -110,6 +193,7 @@ public class FFmpeg {
     	cmdLine.addArgument("-n");
     ///	cmdLine.addArgument("-loglevel");
     //	cmdLine.addArgument("quiet");
+    	addProgressArguments(cmdLine);
 
     	// Set the start position.
     	if (startingPositionSeconds > 0) {
@@ -159,18 +243,10 @@ public class FFmpeg {
 
     	LogSystem.getInstance().printInfo(clientId, channelNo, formatMessageForLog("encodeMP3 cmd:[" + cmdLine + "] "));
     	
-		// Set up the streams to get the out/err from the executable.
-		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-		ByteArrayOutputStream errStream = new ByteArrayOutputStream();
-		PumpStreamHandler streamHandler = new PumpStreamHandler(outStream, errStream);
-
-    	DefaultExecutor executor = new DefaultExecutor();
-    	executor.setStreamHandler(streamHandler);
-    	int exitValues[] = {0,1};
-    	executor.setExitValues(exitValues);
-
     	try {
-    		executor.execute(cmdLine);
+    		execute(cmdLine, 1, "MP3", getExpectedDuration(durationSeconds));
+    	} catch (EncodeTimeoutException e) {
+    		throw e;
     	} catch (Exception e) {    		
     		// Executing the FFMPEG it will output error messages for things we don't care about. Just verify that the duration times.
     		    		
@@ -194,9 +270,6 @@ public class FFmpeg {
     		}
     	}
 
-//    	System.out.println("OUTSTREAM: " + outStream.toString());
-//    	System.out.println("ERRSTREAM: " + errStream.toString());
-
     }
     
     /** This will perform an encoding of the .m3u8 and .ts files for the inputFile.
@@ -208,16 +281,158 @@ public class FFmpeg {
 	 * @param textTag is a label for this encoding in the log file.
      * */
     public void encodeM3U8(String outputFileM3U8, int startingPositionSeconds, int durationSeconds, int reEncodeBitRate, boolean audio64kOnly, String textTag) {
-    	// Create the parent directories if need be.
-    	File parentFilePath = new File(outputFileM3U8).getParentFile();
-    	    
-    	// Make sure parent directories are created.
-    	parentFilePath.mkdirs();
+    	// WARNING: ffmpeg options are dependant on where they are placed before or after the -i <input_file> command.
+    	CommandLine cmdLine = newSegmentCommandLine(startingPositionSeconds, durationSeconds);
     	
-    	// The ts files wild card.
-    	String tsFiles = parentFilePath.toString() + "/%04d.ts";
+    	// encoding, map and output settings. 
+    	addSegmentOutput(cmdLine, outputFileM3U8, reEncodeBitRate, audio64kOnly, getFirstVideoAudioStreams());
+    	
+    	LogSystem.getInstance().printInfo(clientId, channelNo, formatMessageForLog("encodeM3U8 [" + textTag + "] cmd:[" + cmdLine + "] "));
+
+    	try {
+    		execute(cmdLine, getThreadCost(reEncodeBitRate, audio64kOnly), textTag, getExpectedDuration(durationSeconds));
+    	} catch (EncodeTimeoutException e) {
+    		throw e;
+    	} catch (Exception e) {
+    		// Executing the FFMPEG it will output error messages for things we don't care about. Just verify that it created the .ts files.
+    		verifySegments(outputFileM3U8, durationSeconds, textTag, e);
+    	}
+    	
+    	cleanUpSegmentList(outputFileM3U8, reEncodeBitRate);
+    }
+    
+    /** This will encode the whole HLS ladder in one ffmpeg process, ie, the input is only read and decoded once and each
+     * rendition is a separate output of that process. Each rendition is written to <outputDir>/<name>/<name>.m3u8 along
+     * with its .ts files.
+     * @param outputDir is the directory the renditions will be created in. Should not have a slash at the end.
+	 * @param startingPositionSeconds the starting position in seconds to be encoding at.
+ 	 * @param durationSeconds the duration in seconds the video should be cropped to. 0 = use full video.
+ 	 * @param renditions are the renditions to encode.
+     * */
+    public void encodeM3U8Ladder(String outputDir, int startingPositionSeconds, int durationSeconds, List<Rendition> renditions) {
+    	if (renditions.isEmpty())
+    		return;
     	
     	// WARNING: ffmpeg options are dependant on where they are placed before or after the -i <input_file> command.
+    	CommandLine cmdLine = newSegmentCommandLine(startingPositionSeconds, durationSeconds);
+    	
+    	// Each rendition is its own output of the one input.
+    	LinkedList<String> ltChannels = getFirstVideoAudioStreams();
+    	StringBuffer textTag = new StringBuffer();
+    	int threads = 0;
+    	for (Rendition rendition : renditions) {
+    		addSegmentOutput(cmdLine, outputDir + "/" + rendition.getChildPlaylist(), rendition.reEncodeBitRate, rendition.audio64kOnly, ltChannels);
+    		textTag.append(textTag.length() == 0 ? "" : " ").append(rendition.name);
+    		threads += getThreadCost(rendition.reEncodeBitRate, rendition.audio64kOnly);
+    	}
+    	
+    	LogSystem.getInstance().printInfo(clientId, channelNo, formatMessageForLog("encodeM3U8Ladder [" + textTag + "] cmd:[" + cmdLine + "] "));
+
+    	try {
+    		execute(cmdLine, threads, textTag.toString(), getExpectedDuration(durationSeconds));
+    	} catch (EncodeTimeoutException e) {
+    		throw e;
+    	} catch (Exception e) {
+    		// Executing the FFMPEG it will output error messages for things we don't care about. Just verify that it created the .ts files.
+    		for (Rendition rendition : renditions) {
+    			verifySegments(outputDir + "/" + rendition.getChildPlaylist(), durationSeconds, rendition.name, e);
+    		}
+    	}
+    	
+    	for (Rendition rendition : renditions) {
+    		cleanUpSegmentList(outputDir + "/" + rendition.getChildPlaylist(), rendition.reEncodeBitRate);
+    	}
+    }
+    
+    /** This will encode one chunk of the renditions, ie, the part of the input from startingPositionSeconds for
+     * durationSeconds. The chunk's segments are numbered and timed as if the whole input had been encoded in one pass
+     * so the chunks can be joined into one playlist. Each rendition's segment list is written to
+     * <outputDir>/<name>/<chunkPlaylist> and its .ts files next to the other chunks'.
+     * @param outputDir is the directory the renditions will be created in. Should not have a slash at the end.
+	 * @param startingPositionSeconds the starting position in seconds of the chunk in the input.
+ 	 * @param durationSeconds the duration in seconds of the chunk. 0 = to the end of the input.
+ 	 * @param renditions are the renditions to encode, they must be re-encoded so each chunk starts on a key frame.
+ 	 * @param offsetSeconds is where the chunk starts in the output, its timestamps start there.
+ 	 * @param firstSegment is the number of the chunk's first .ts file.
+ 	 * @param chunkPlaylist is the filename of the chunk's segment list. Example: chunk0003.m3u8
+ 	 * @return false if ffmpeg failed, ie, the chunk may have been cut short.
+     * */
+    public boolean encodeM3U8Chunk(String outputDir, int startingPositionSeconds, int durationSeconds, List<Rendition> renditions, int offsetSeconds, int firstSegment, String chunkPlaylist) {
+    	if (renditions.isEmpty())
+    		return true;
+    	
+    	// WARNING: ffmpeg options are dependant on where they are placed before or after the -i <input_file> command.
+    	CommandLine cmdLine = newSegmentCommandLine(startingPositionSeconds, durationSeconds);
+    	
+    	LinkedList<String> ltChannels = getFirstVideoAudioStreams();
+    	StringBuffer textTag = new StringBuffer();
+    	int threads = 0;
+    	for (Rendition rendition : renditions) {
+    		addSegmentOutput(cmdLine, outputDir + "/" + rendition.name + "/" + chunkPlaylist, rendition.reEncodeBitRate, rendition.audio64kOnly, ltChannels, offsetSeconds, firstSegment);
+    		textTag.append(textTag.length() == 0 ? "" : " ").append(rendition.name);
+    		threads += getThreadCost(rendition.reEncodeBitRate, rendition.audio64kOnly);
+    	}
+    	textTag.append(" ").append(chunkPlaylist);
+    	
+    	LogSystem.getInstance().printInfo(clientId, channelNo, formatMessageForLog("encodeM3U8Chunk [" + textTag + "] cmd:[" + cmdLine + "] "));
+
+    	// The chunk is checked by the caller, the last .ts file verifySegments() looks for is the whole input's.
+    	// A chunk cut short would leave a gap in the joined playlist, so only a clean exit is accepted.
+    	int exitValues[] = {0};
+    	try {
+    		execute(cmdLine, threads, textTag.toString(), durationSeconds > 0 ? durationSeconds : getExpectedDuration(0) - startingPositionSeconds, exitValues);
+    	} catch (EncodeTimeoutException e) {
+    		throw e;
+    	} catch (Exception e) {
+    		LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("encodeM3U8Chunk [" + textTag + "] Encoding error. "), e);
+    		return false;
+    	}
+    	return true;
+    }
+    
+    /** This will cut a part of the input .ts file out without re-encoding it, ie, the first or last segment of a clip.
+     * The timestamps are kept so it plays on into the segments after it.
+     * @param outputTs is the .ts file that will be created.
+     * @param startSeconds is where the part starts in the input. It starts at the key frame before it.
+     * @param durationSeconds is the length of the part. 0 = to the end of the input.
+     * */
+    public void cutSegment(String outputTs, float startSeconds, float durationSeconds) throws Exception {
+    	CommandLine cmdLine = new CommandLine(FFMPEG_PATH);
+    	
+    	cmdLine.addArgument("-n");
+    	cmdLine.addArgument("-loglevel");
+    	cmdLine.addArgument("error");
+    	addProgressArguments(cmdLine);
+    	
+    	if (startSeconds > 0) {
+    		cmdLine.addArgument("-ss");
+    		cmdLine.addArgument(String.format(Locale.US, "%.3f", startSeconds));
+    	}
+    	if (durationSeconds > 0) {
+    		cmdLine.addArgument("-t");
+    		cmdLine.addArgument(String.format(Locale.US, "%.3f", durationSeconds));
+    	}
+    	
+    	cmdLine.addArgument("-i");
+    	cmdLine.addArgument(inputFile);
+    	cmdLine.addArgument("-map");
+    	cmdLine.addArgument("0");
+    	cmdLine.addArgument("-codec");
+    	cmdLine.addArgument("copy");
+    	cmdLine.addArgument("-copyts");
+    	cmdLine.addArgument("-f");
+    	cmdLine.addArgument("mpegts");
+    	cmdLine.addArgument(outputTs);
+    	
+    	LogSystem.getInstance().printInfo(clientId, channelNo, formatMessageForLog("cutSegment cmd:[" + cmdLine + "] "));
+    	execute(cmdLine, 1, "cut " + new File(outputTs).getName(), durationSeconds);
+    }
+    
+    /** @return the ffmpeg command line up to and including the input file for a segmenting encode.
+	 * @param startingPositionSeconds the starting position in seconds to be encoding at.
+ 	 * @param durationSeconds the duration in seconds the video should be cropped to. 0 = use full video.
+     * */
+    private CommandLine newSegmentCommandLine(int startingPositionSeconds, int durationSeconds) {
     	CommandLine cmdLine = new CommandLine(FFMPEG_PATH);
     	
     	cmdLine.addArgument("-analyzeduration");
@@ -228,7 +443,8 @@ public class FFmpeg {
     	
     	cmdLine.addArgument("-n");
     	cmdLine.addArgument("-loglevel");
-    	cmdLine.addArgument("quiet");
+    	cmdLine.addArgument("error");
+    	addProgressArguments(cmdLine);
 	   	 
 	  	// Set the start position.
 	  	if (startingPositionSeconds > 0) {
@@ -246,6 +462,33 @@ public class FFmpeg {
     	cmdLine.addArgument("-i");
     	cmdLine.addArgument(inputFile);
     	
+    	return cmdLine;
+    }
+    
+    /** This will add a segmenting output to the command line.
+     * @param outputM3U8File is the .m3u8 file that will be created. The directory will be created if need be.
+ 	 * @param reEncodeBitRate is the video bitrate it should be encoded at, ex: 500000. 0 = copy video over.
+	 * @param audio64kOnly is true if should encode audio only and at 64k.
+	 * @param ltChannels are the input streams to map to the output. Example: 0:0, 0:1
+     * */
+    private void addSegmentOutput(CommandLine cmdLine, String outputFileM3U8, int reEncodeBitRate, boolean audio64kOnly, LinkedList<String> ltChannels) {
+    	addSegmentOutput(cmdLine, outputFileM3U8, reEncodeBitRate, audio64kOnly, ltChannels, 0, 0);
+    }
+    
+    /** This will add a segmenting output to the command line that starts part way into the output.
+ 	 * @param offsetSeconds is added to the timestamps of the output.
+ 	 * @param firstSegment is the number of the first .ts file.
+     * */
+    private void addSegmentOutput(CommandLine cmdLine, String outputFileM3U8, int reEncodeBitRate, boolean audio64kOnly, LinkedList<String> ltChannels, int offsetSeconds, int firstSegment) {
+    	// Create the parent directories if need be.
+    	File parentFilePath = new File(outputFileM3U8).getParentFile();
+    	    
+    	// Make sure parent directories are created.
+    	parentFilePath.mkdirs();
+    	
+    	// The ts files wild card.
+    	String tsFiles = parentFilePath.toString() + "/%04d.ts";
+    	
     	cmdLine.addArgument("-threads");
     	cmdLine.addArgument("2");
     	
@@ -265,7 +508,6 @@ public class FFmpeg {
     		}
     		
     	} else if (reEncodeBitRate > 0) {
-    		reEncodeBitRate /= 1000;
     		cmdLine.addArgument("-f");
     		cmdLine.addArgument("ssegment");
     		cmdLine.addArgument("-vcodec");
@@ -273,7 +515,7 @@ public class FFmpeg {
     		cmdLine.addArgument("-acodec");
     		cmdLine.addArgument("libfdk_aac");
     		cmdLine.addArgument("-b:v");
-    		cmdLine.addArgument("" + reEncodeBitRate + "k");
+    		cmdLine.addArgument("" + (reEncodeBitRate / 1000) + "k");
     		cmdLine.addArgument("-profile:v");
     		cmdLine.addArgument("main");
     		cmdLine.addArgument("-level");
@@ -291,8 +533,6 @@ public class FFmpeg {
     	}
     	
     	// map and output settings. 
-    	
-    	LinkedList<String> ltChannels = getFirstVideoAudioStreams();
     	for (String channel : ltChannels) {
         	cmdLine.addArgument("-map");
         	cmdLine.addArgument(channel);
@@ -301,41 +541,125 @@ public class FFmpeg {
     	cmdLine.addArgument("-segment_list");
     	cmdLine.addArgument(outputFileM3U8);
     	cmdLine.addArgument("-segment_time");
-    	cmdLine.addArgument("10");
+    	cmdLine.addArgument("" + SEGMENT_SECONDS);
+    	
+    	// The segments are still cut every 10 seconds from the start of this output, the offset is added after.
+    	if (offsetSeconds > 0) {
+    		cmdLine.addArgument("-initial_offset");
+    		cmdLine.addArgument("" + offsetSeconds);
+    	}
+    	if (firstSegment > 0) {
+    		cmdLine.addArgument("-segment_start_number");
+    		cmdLine.addArgument("" + firstSegment);
+    	}
     	cmdLine.addArgument(tsFiles);
+    }
+    
+    /** @return the number of threads of the CpuBudget a segmenting output uses. Video re-encodes run with -threads 2, copies and audio use one.
+     * */
+    static int getThreadCost(int reEncodeBitRate, boolean audio64kOnly) {
+    	if (reEncodeBitRate > 0 && !audio64kOnly)
+    		return 2;
+    	return 1;
+    }
+    
+    /** This will have ffmpeg write its progress as key=value lines to stdout, see ProgressParser.
+     * */
+    private void addProgressArguments(CommandLine cmdLine) {
+    	cmdLine.addArgument("-nostats");
+    	cmdLine.addArgument("-progress");
+    	cmdLine.addArgument("pipe:1");
+    }
+    
+    /** This will run the ffmpeg encode once the threads it uses are free in the CpuBudget. While it runs its progress is 
+     * available from MediaEncoderEngine.getEncodeProgress() and it is watched by an EncodeWatchdog.
+     * @param threads is the number of threads the encode uses.
+     * @param textTag is a label for this encoding.
+     * @param mediaDurationSeconds is the duration of the media being encoded. 0 if unknown.
+     * @throws EncodeTimeoutException if the watchdog killed the encode.
+     * */
+    private void execute(CommandLine cmdLine, int threads, String textTag, float mediaDurationSeconds) throws Exception {
+    	int exitValues[] = {0,1};
+    	execute(cmdLine, threads, textTag, mediaDurationSeconds, exitValues);
+    }
+    
+    /** This will run the ffmpeg encode the same as execute() above.
+     * @param exitValues are the exit values of ffmpeg that are not an error. ffmpeg exits with 1 on most errors, an encode
+     *        whose output is no use if it was cut short must only accept 0.
+     * */
+    private void execute(CommandLine cmdLine, int threads, String textTag, float mediaDurationSeconds, int exitValues[]) throws Exception {
+    	int taken = CpuBudget.getInstance().acquire(threads);
     	
-    	LogSystem.getInstance().printInfo(clientId, channelNo, formatMessageForLog("encodeM3U8 [" + textTag + "] cmd:[" + cmdLine + "] "));
-
-		// Set up the streams to get the out/err from the executable.
-		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-		ByteArrayOutputStream errStream = new ByteArrayOutputStream();
-		PumpStreamHandler streamHandler = new PumpStreamHandler(outStream, errStream);
+    	// The progress and watchdog start once the threads are free, the wait for them is not part of the encode.
+    	EncodeProgress progress = new EncodeProgress(clientId, channelNo, jobIdNumber, textTag);
+    	EncodeWatchdog watchdog = new EncodeWatchdog(progress, mediaDurationSeconds);
+    	
+		// Set up the streams to get the out/err from the executable. The out is the progress and only the last lines of the err are kept.
+		OutputTail errTail = new OutputTail();
+		PumpStreamHandler streamHandler = new PumpStreamHandler(new ProgressParser(progress), errTail);
 
     	DefaultExecutor executor = new DefaultExecutor();
     	executor.setStreamHandler(streamHandler);
-    	int exitValues[] = {0,1};
+    	executor.setWatchdog(watchdog);
     	executor.setExitValues(exitValues);
-
+    	
+    	MediaEncoderEngine.getInstance().addEncodeProgress(progress);
     	try {
     		executor.execute(cmdLine);
-    	} catch (Exception e) {
-    		// Executing the FFMPEG it will output error messages for things we don't care about. Just verify that it created the .ts files.
-    		    		
-    		// Get the encoding duration.
-    		int newEncodingDuration = durationSeconds;
-    		if (newEncodingDuration == 0) {
-    			newEncodingDuration = getDuration();
-    		}
-    		
-    		// Get the last Ts file that is generated.
-    		int totalTSfiles = newEncodingDuration / 10;
-    		String lastTsFile = parentFilePath.toString() + "/" + String.format("%04d", totalTSfiles) + ".ts"; 
-     
-    		if (!Files.exists(Paths.get(lastTsFile))) {
-    			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("encodeM3U8 [" + textTag + "] Encoding error. "), e);
-    		}    		
+    	} catch (ExecuteException e) {
+    		if (!watchdog.killedProcess())
+    			throw new ExecuteException(e.getMessage() + " stderr: [" + errTail.getTail() + "]", e.getExitValue(), e);
+    	} finally {
+    		MediaEncoderEngine.getInstance().removeEncodeProgress(progress);
+    		CpuBudget.getInstance().release(taken);
     	}
     	
+    	if (watchdog.killedProcess())
+    		throw new EncodeTimeoutException(watchdog.getReason(), formatMessageForLog("ffmpeg [" + textTag + "] was killed, " + watchdog.getReason() + ". stderr: [" + errTail.getTail() + "]"));
+    }
+    
+    /** @return the duration in seconds of the media an encode will produce. 0 if unknown.
+     * @param durationSeconds the duration in seconds the video should be cropped to. 0 = use full video.
+     * */
+    float getExpectedDuration(int durationSeconds) {
+    	if (durationSeconds > 0)
+    		return durationSeconds;
+    	
+    	try {
+    		// An m3u8 file has the duration of each segment in it.
+    		if (inputFile.endsWith("m3u8")) {
+    			M3U8ChildPlaylist m3u8 = new M3U8ChildPlaylist(clientId, channelNo);
+    			m3u8.setFilename(inputFile);
+    			m3u8.read();
+    			return m3u8.getTotalDuration();
+    		}
+    		return getMediaInfo().getDuration();
+    	} catch (Exception e) {
+    		return 0;
+    	}
+    }
+    
+    /** This will log an error if the last .ts file of the segmenting encode was not created.
+     * */
+    private void verifySegments(String outputFileM3U8, int durationSeconds, String textTag, Exception e) {
+		// Get the encoding duration.
+		int newEncodingDuration = durationSeconds;
+		if (newEncodingDuration == 0) {
+			newEncodingDuration = getDuration();
+		}
+		
+		// Get the last Ts file that is generated.
+		int totalTSfiles = newEncodingDuration / 10;
+		String lastTsFile = new File(outputFileM3U8).getParent() + "/" + String.format("%04d", totalTSfiles) + ".ts"; 
+ 
+		if (!Files.exists(Paths.get(lastTsFile))) {
+			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("encodeM3U8 [" + textTag + "] Encoding error. "), e);
+		}    		
+    }
+    
+    /** This will remove the full path from the .m3u8 file the segmenter wrote and set the target duration for re-encodes.
+     * */
+    private void cleanUpSegmentList(String outputFileM3U8, int reEncodeBitRate) {
     	// Remove the full path from the .m3u8 file.
     	M3U8ChildPlaylist m3u8 = new M3U8ChildPlaylist(clientId, channelNo);
     	m3u8.setFilename(outputFileM3U8);
@@ -368,265 +692,35 @@ public class FFmpeg {
      * @return duration in seconds for the input file.
      * */
     public int getDuration() {
-    	String theInputFile = this.inputFile;
-    	
-		// It is an m3u8 file.
-		String last4Characters = inputFile.substring(inputFile.length() - 4); 
-		if (last4Characters.equals("m3u8")) {
-			theInputFile = Paths.get(inputFile).getParent().toString() + "/0000.ts";
-		} 	
-    	
-    	Map<String, Object> map = new HashMap<String, Object>();
-    	map.put("file", new File(theInputFile));
-    	
-    	CommandLine cmdLine = new CommandLine(FFMPEG_PATH);
-
-    	cmdLine.addArgument("-analyzeduration");
-    	cmdLine.addArgument("2147483647");
-
-    	cmdLine.addArgument("-probesize");
-    	cmdLine.addArgument("2147483647");
-    	
-    	cmdLine.addArgument("-i");
-    	cmdLine.addArgument("${file}");
-    	cmdLine.setSubstitutionMap(map);
-    	    	
-    	// Set up the streams to get the out/err from the executable.
-    	ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-    	ByteArrayOutputStream errStream = new ByteArrayOutputStream();
-    	PumpStreamHandler streamHandler = new PumpStreamHandler(outStream, errStream);
-    	
-    	DefaultExecutor executor = new DefaultExecutor();
-    	executor.setStreamHandler(streamHandler);
-    	int exitValues[] = {0,1};
-    	executor.setExitValues(exitValues);
-    	
-    	try {
-    		executor.execute(cmdLine);
-    	} catch (Exception e) {
-    		// Do Nothing.
-    		// e.printStackTrace();
-    	}
-    	
-    	try {
-	    	BufferedReader rdr = new BufferedReader(new StringReader(errStream.toString()));
-	    	for (String line = rdr.readLine(); line != null; line = rdr.readLine()) {
-	    		
-	    		// The line that has the Duration is what we are interested in.
-	    		if (line.indexOf("Duration") > -1) {
-	    			
-	    			//   Duration: 01:40:24.05, start: -7.105011, bitrate: 2064 kb/s
-	    			int start = line.indexOf(":");
-	    			int end = line.indexOf(",");
-	    			String []tokens = line.substring(start+2, end).split(":");
-	    			
-	    			// Convert it to seconds.
-	    			int hours = Integer.parseInt(tokens[0]);
-	    			int minutes = Integer.parseInt(tokens[1]);
-	    			float seconds = Float.parseFloat(tokens[2]);	    			
-	    			return hours * (60 * 60) + minutes * 60 + (int)seconds;
-	    		}
-	    		
-	    	}
-	    	rdr.close();
-    	} catch (Exception e) {
-			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Get duration error. cmdLine: [" + cmdLine + "] "), e);
-    	}
-    	
-    	// lines now contains all the strings between line breaks
-    	
-    	return 0;
+    	return (int)getMediaInfo().getDuration();
     }
     
     /** This will get the bitrate from the input file. 
      * @return bitrate in raw bits, ie, will return 500000 for a 500k bitrate.
      * */
     public int getBitrate() {
-    	String theInputFile = this.inputFile;
-    	
-		// It is an m3u8 file.
-		String last4Characters = inputFile.substring(inputFile.length() - 4); 
-		if (last4Characters.equals("m3u8")) {
-			theInputFile = Paths.get(inputFile).getParent().toString() + "/0000.ts";
-		} 	
-    	
-    	Map<String, Object> map = new HashMap<String, Object>();
-    	map.put("file", new File(theInputFile));
-    	
-    	CommandLine cmdLine = new CommandLine(FFMPEG_PATH);
-
-    	cmdLine.addArgument("-analyzeduration");
-    	cmdLine.addArgument("2147483647");
-
-    	cmdLine.addArgument("-probesize");
-    	cmdLine.addArgument("2147483647");
-    	
-    	cmdLine.addArgument("-i");
-    	cmdLine.addArgument("${file}");
-    	cmdLine.setSubstitutionMap(map);
-    	    	
-    	// Set up the streams to get the out/err from the executable.
-    	ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-    	ByteArrayOutputStream errStream = new ByteArrayOutputStream();
-    	PumpStreamHandler streamHandler = new PumpStreamHandler(outStream, errStream);
-    	
-    	DefaultExecutor executor = new DefaultExecutor();
-    	executor.setStreamHandler(streamHandler);
-    	int exitValues[] = {0,1};
-    	executor.setExitValues(exitValues);
-
-    	try {
-    		executor.execute(cmdLine);
-    	} catch (Exception e) {
-    		// Do nothing.
-    		// e.printStackTrace();
-    	}
-
-    	try {
-	    	BufferedReader rdr = new BufferedReader(new StringReader(errStream.toString()));
-	    	for (String line = rdr.readLine(); line != null; line = rdr.readLine()) {	    		
-	    		if (line.indexOf("Duration") > -1) {
-	    			// Duration: 01:40:24.05, start: -7.105011, bitrate: 2064 kb/s
-	    			int start = line.lastIndexOf(":");
-	    			String []tokens = line.substring(start+2).split(" ");
-	    			int bitrate = Integer.parseInt(tokens[0]);
-	    			return bitrate * 1000;
-	    		}
-	    		
-	    	}
-	    	rdr.close();
-    	} catch (Exception e) {
-			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Get bitrate error. cmdLine: [" + cmdLine + "] "), e);
-    	}
-    	
-    	return 0;
+    	return getMediaInfo().getBitrate();
     }
     
     /** This will get the first video and audio streams from the video file. 
      * @return Linkedlist of strings of the first video and audio streams. Example: 0:0, 0:1
      * */
     public LinkedList<String> getFirstVideoAudioStreams() {
-    	LinkedList<String> ltChannels = new LinkedList<String>();
-    	
+    	return getMediaInfo().getFirstVideoAudioStreams();
+    }
+    
+    /** @return the probed information of the input file. For an m3u8 file it is the information of the first .ts file.
+     * The information is shared through the MediaInfoCache so the file is only probed once.
+     * */
+    public MediaInfo getMediaInfo() {
     	String theInputFile = this.inputFile;
     	
-    	/* Input #0, mov,mp4,m4a,3gp,3g2,mj2, from '/opt/gomedia/media/recordings/17/17_1_U201592085447.mp4':
-  Metadata:
-    major_brand     : qt
-    minor_version   : 537199360
-    compatible_brands: qt
-    creation_time   : 2015-10-19 18:50:02
-  Duration: 01:05:59.29, start: 0.000000, bitrate: 356 kb/s
-    Stream #0:0(eng): Audio: aac (mp4a / 0x6134706D), 32000 Hz, stereo, fltp, 78 kb/s
-    Metadata:
-      creation_time   : 2015-10-19 18:50:02
-      handler_name    : Apple Alias Data Handler
-    Stream #0:1(eng): Video: h264 (Main) (avc1 / 0x31637661), yuv420p, 420x280, 230 kb/s, 29.97 fps, 29.97 tbr, 2997 tbn, 5994 tbc
-    Metadata:
-      creation_time   : 2015-10-19 18:50:02
-      handler_name    : Apple Alias Data Handler
-    Stream #0:2(eng): Data: none (rtp  / 0x20707472), 32 kb/s
-    Metadata:
-      creation_time   : 2015-10-19 18:50:02
-      handler_name    : Apple Alias Data Handler
-    Stream #0:3(eng): Data: none (rtp  / 0x20707472), 6 kb/s
-    Metadata:
-      creation_time   : 2015-10-19 18:50:02
-      handler_name    : Apple Alias Data Handler. */    	
-    	
 		// It is an m3u8 file.
 		String last4Characters = inputFile.substring(inputFile.length() - 4); 
 		if (last4Characters.equals("m3u8")) {
 			theInputFile = Paths.get(inputFile).getParent().toString() + "/0000.ts";
 		} 	
-    	
-    	Map<String, Object> map = new HashMap<String, Object>();
-    	map.put("file", new File(theInputFile));
-    	
-    	CommandLine cmdLine = new CommandLine(FFMPEG_PATH);
-
-    	cmdLine.addArgument("-analyzeduration");
-    	cmdLine.addArgument("2147483647");
-
-    	cmdLine.addArgument("-probesize");
-    	cmdLine.addArgument("2147483647");
-    	
-    	cmdLine.addArgument("-i");
-    	cmdLine.addArgument("${file}");
-    	cmdLine.setSubstitutionMap(map);
-    	    	
-    	// Set up the streams to get the out/err from the executable.
-    	ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-    	ByteArrayOutputStream errStream = new ByteArrayOutputStream();
-    	PumpStreamHandler streamHandler = new PumpStreamHandler(outStream, errStream);
-    	
-    	DefaultExecutor executor = new DefaultExecutor();
-    	executor.setStreamHandler(streamHandler);
-    	int exitValues[] = {0,1};
-    	executor.setExitValues(exitValues);
-
-    	try {
-    		executor.execute(cmdLine);
-    	} catch (Exception e) {
-    		// Do nothing.
-    		// e.printStackTrace();
-    	}
-
-    	// Get output of ffmpeg and parse the data.
-    	try {
-    		boolean bFoundVideo = false;
-    		boolean bFoundAudio = false;
-	    	BufferedReader rdr = new BufferedReader(new StringReader(errStream.toString()));
-	    	for (String line = rdr.readLine(); line != null; line = rdr.readLine()) {
-	    		// The line that has the stream for the Video has been found.
-	    		if (!bFoundVideo && line.indexOf("Stream") > -1 && line.indexOf("Video") > -1) {
-	    			bFoundVideo = true;
-
-	    			// Add the video channel in.
-	    			int channelNo = stream2ChannelNo(line);
-	    			ltChannels.add("0:" + channelNo);
-	    		}
-
-	    		// The line that has the stream for the Audio has been found.
-	    		if (!bFoundAudio && line.indexOf("Stream") > -1 && line.indexOf("Audio") > -1) {
-	    			bFoundAudio = true;
-
-	    			// Add the audio channel in.
-	    			int channelNo = stream2ChannelNo(line);
-	    			ltChannels.add("0:" + channelNo);
-	    		}
-	    	}
-	    	rdr.close();
-    	} catch (Exception e) {
-			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Get first audio stream error. cmdLine: [" + cmdLine + "] "), e);
-    	}
-    	
-    	return ltChannels;
-    }
-
-    /** This will retrieve the stream's channel no.
-     * */
-    private int stream2ChannelNo(String line) {
-		// Example of this token "#0:0(eng)"
-		//    Stream #0:0[0x100]: Video: h264 (Main) ([27][0][0][0] / 0x001B), yuv420p, 640x360, 30 fps, 30 tbr, 90k tbn, 60 tbc
-		//    Stream #0:1(eng): Video: h264 (Main) (avc1 / 0x31637661), yuv420p, 420x280, 230 kb/s, 29.97 fps, 29.97 tbr, 2997 tbn, 5994 tbc
-		//    Stream #0:1[0x101](und): Audio: aac (LC) ([15][0][0][0] / 0x000F), 44100 Hz, stereo, fltp, 126 kb/s
-		//    Stream #0:1: Audio: aac (LC) ([15][0][0][0] / 0x000F), 44100 Hz, stereo, fltp, 126 kb/s
-
-    	// The input will always be 0 for the first number.
-		String []tokens = line.split(":");
-		String channelString = tokens[1];
-
-		int index = channelString.length();
-    	for (int i=0; i < channelString.length(); i++) {
-    		if (!Character.isDigit(channelString.charAt(i))) {
-    			index = i;
-    			break;
-    		}
-    	}    		
-    	
-    	String parsed = channelString.substring(0, index);
-    	return Integer.parseInt(parsed);
+		
+		return MediaInfoCache.getInstance().get(clientId, channelNo, theInputFile, jobIdNumber);
     }
-    
 }
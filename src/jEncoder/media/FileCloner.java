@@ -0,0 +1,113 @@
+package jEncoder.media;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.PumpStreamHandler;
+
+/** This puts a copy of a file somewhere else without reading and writing it when the file system lets it. In order it is
+ * tried as:
+ *   A hard link, nothing is copied. Only on the same file system.
+ *   A reflink, cp --reflink=always, the blocks are shared until one of the files is written to. Only on a file system
+ *   that has them, ie, btrfs or xfs.
+ *   A copy with FileChannel.transferTo(), the kernel copies it without it going through the JVM.
+ * */
+public class FileCloner {
+	public static final String CP_PATH = "/bin/cp";
+
+	/** How long cp can run before it is killed. (1000 = 1 second). */
+	private static final long TIMEOUT = 1000 * 60 * 10;
+
+	/** The most bytes transferTo() is asked for at once. */
+	private static final long TRANSFER_SIZE = 64L * 1024 * 1024;
+
+	/** How the file was copied. */
+	public enum Strategy {HARD_LINK, REFLINK, TRANSFER};
+
+	/** The file systems reflinks did not work on, they are not tried again. */
+	private static final ConcurrentHashMap<FileStore, Boolean> mapNoReflink = new ConcurrentHashMap<FileStore, Boolean>();
+
+	/** This will copy the source to the target.
+	 * @return how it was copied.
+	 * @throws FileAlreadyExistsException if the target exists, it is never replaced.
+	 * */
+	public static Strategy cloneFile(Path source, Path target) throws IOException {
+		if (Files.exists(target))
+			throw new FileAlreadyExistsException(target.toString());
+
+		try {
+			Files.createLink(target, source);
+			return Strategy.HARD_LINK;
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (IOException | UnsupportedOperationException | SecurityException e) {
+			;
+		}
+
+		if (reflink(source, target))
+			return Strategy.REFLINK;
+
+		transfer(source, target);
+		return Strategy.TRANSFER;
+	}
+
+	/** @return true if the target was made a reflink of the source.
+	 * */
+	private static boolean reflink(Path source, Path target) throws IOException {
+		FileStore store = Files.getFileStore(target.toAbsolutePath().getParent());
+		if (mapNoReflink.containsKey(store))
+			return false;
+
+		CommandLine cmdLine = new CommandLine(CP_PATH);
+		cmdLine.addArgument("--reflink=always");
+		cmdLine.addArgument(source.toString(), false);
+		cmdLine.addArgument(target.toString(), false);
+
+		// What cp says when it can not reflink is expected, it is not printed.
+		DefaultExecutor executor = new DefaultExecutor();
+		executor.setStreamHandler(new PumpStreamHandler(new OutputTail(), new OutputTail()));
+		executor.setWatchdog(new ExecuteWatchdog(TIMEOUT));
+		try {
+			executor.execute(cmdLine);
+			return true;
+		} catch (Exception e) {
+			// cp leaves an empty file behind when the file system can not reflink.
+			Files.deleteIfExists(target);
+			mapNoReflink.put(store, Boolean.TRUE);
+			return false;
+		}
+	}
+
+	/** This will copy the source to the target with transferTo().
+	 * */
+	private static void transfer(Path source, Path target) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+			FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			boolean done = false;
+			try {
+				long size = in.size();
+				long position = 0;
+				while (position < size) {
+					long transferred = in.transferTo(position, Math.min(TRANSFER_SIZE, size - position), out);
+					if (transferred <= 0)
+						throw new IOException("File got shorter while it was copied: " + source);
+					position += transferred;
+				}
+				done = true;
+			} finally {
+				out.close();
+				if (!done)
+					Files.deleteIfExists(target);
+			}
+		}
+	}
+}
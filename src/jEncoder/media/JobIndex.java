@@ -0,0 +1,78 @@
+package jEncoder.media;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** This keeps track of the jobs that are queued or running and the ones that recently completed so the same job
+ * is not processed twice. The web server keeps returning a job until it has been notified that the job is done,
+ * therefore the same job can show up on several polls (or be pushed and polled).
+ *
+ * Jobs are keyed by ProcessParameters.getJobKey().
+ * */
+public class JobIndex {
+
+	/** The most recently completed jobs to remember. */
+	private static final int RECENT_MAX = 1000;
+
+	/** How long a completed job is remembered. (1000 = 1 second). */
+	private static final long RECENT_WINDOW = 1000 * 60 * 10;
+
+	/** The jobs that are queued or running. Key to the jobIdNumber of the job. */
+	private Map<String, String> mapActive = new HashMap<String, String>();
+
+	/** The recently completed jobs in order of completion. Key to the time it completed. */
+	private LinkedHashMap<String, Long> mapRecent = new LinkedHashMap<String, Long>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > RECENT_MAX;
+		}
+	};
+
+	/** This will register the job as queued.
+	 * @return true if the job was registered, false if the same job is already queued, running, or has just completed.
+	 * */
+	public synchronized boolean register(ProcessParameters pp) {
+		String key = pp.getJobKey();
+
+		if (mapActive.containsKey(key))
+			return false;
+
+		expireRecent();
+		if (mapRecent.containsKey(key))
+			return false;
+
+		mapActive.put(key, pp.jobIdNumber);
+		return true;
+	}
+
+	/** This will mark the job as done. The job will be remembered for a while to stop it from being run again.
+	 * */
+	public synchronized void complete(ProcessParameters pp) {
+		String key = pp.getJobKey();
+		mapActive.remove(key);
+		mapRecent.remove(key);
+		mapRecent.put(key, System.currentTimeMillis());
+	}
+
+	/** @return the jobIdNumber the job is queued or running under, null if not.
+	 * */
+	public synchronized String getActiveJobIdNumber(ProcessParameters pp) {
+		return mapActive.get(pp.getJobKey());
+	}
+
+	/** Removes the completed jobs that are older than the window. They are in order of completion.
+	 * */
+	private void expireRecent() {
+		long oldest = System.currentTimeMillis() - RECENT_WINDOW;
+		Iterator<Long> itr = mapRecent.values().iterator();
+		while (itr.hasNext()) {
+			if (itr.next() >= oldest)
+				break;
+			itr.remove();
+		}
+	}
+}
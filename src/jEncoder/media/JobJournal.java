@@ -0,0 +1,283 @@
+package jEncoder.media;
+
+import jEncoder.util.LogSystem;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/** This is an append-only file of the state of each job so the queued and running jobs survive a restart of the
+ * encoder. Each line is one change of state:
+ *   STATE<tab>job key<tab>queue name<tab>job json
+ *
+ * The queue name and json are left off of the DONE and FAILED lines, they are matched by the job key
+ * (see ProcessParameters.getJobKey()). The file is synced every second instead of on every line, and it is rewritten
+ * with only the jobs that are not done every 10 minutes.
+ * */
+public class JobJournal {
+
+	/** The state of a job. */
+	public enum State {QUEUED, RUNNING, DONE, FAILED};
+
+	/** How often the new lines are synced to disk. (1000 = 1 second). */
+	private static final long SYNC_INTERVAL = 1000;
+
+	/** How often the file is rewritten with only the jobs that are not done. (1000 = 1 second). */
+	private static final long COMPACT_INTERVAL = 1000 * 60 * 10;
+
+	/** A job that is not done. */
+	public static class Entry {
+		/** The job key. */
+		public final String key;
+		/** QUEUED or RUNNING. */
+		public final State state;
+		/** The name of the WorkOrderQueue the job is on. */
+		public final String queueName;
+		/** The json the job was created from. */
+		public final JSONObject json;
+
+		Entry(String key, State state, String queueName, JSONObject json) {
+			this.key = key;
+			this.state = state;
+			this.queueName = queueName;
+			this.json = json;
+		}
+
+		public String toString() {
+			return "{JobJournal.Entry key:[" + key + "] state:[" + state + "] queue:[" + queueName + "]}";
+		}
+	}
+
+	/** The journal file. */
+	private final Path path;
+
+	/** The journal file open for appending. null if it is not open. */
+	private FileChannel channel = null;
+
+	/** The jobs that are not done, in the order they were queued. */
+	private LinkedHashMap<String, Entry> mapLive = new LinkedHashMap<String, Entry>();
+
+	/** True if lines were written since the last sync. */
+	private boolean dirty = false;
+
+	/** Syncs and compacts the journal. */
+	private ScheduledExecutorService scheduler = null;
+
+	/** @param file is the absolute path to the journal file.
+	 * */
+	public JobJournal(String file) {
+		this.path = Paths.get(file);
+	}
+
+	/** This will read the journal, rewrite it with only the jobs that are not done, and start syncing it.
+	 * @return the jobs that were queued or running when the encoder stopped, in the order they were queued.
+	 * */
+	public synchronized List<Entry> open() throws IOException {
+		if (path.getParent() != null)
+			Files.createDirectories(path.getParent());
+
+		if (Files.exists(path))
+			read();
+		List<Entry> ltEntries = new ArrayList<Entry>(mapLive.values());
+
+		compact();
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "JobJournal");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sync();
+			}
+		}, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					compact();
+				} catch (Exception e) {
+					LogSystem.getInstance().printError("Unable to compact the job journal: " + path, e);
+				}
+			}
+		}, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+
+		return ltEntries;
+	}
+
+	/** The job has been put on the queue.
+	 * */
+	public void queued(ProcessParameters pp, String queueName) {
+		if (pp.json != null)
+			append(new Entry(pp.getJobKey(), State.QUEUED, queueName, pp.json));
+	}
+
+	/** A worker has started the job.
+	 * */
+	public void running(ProcessParameters pp) {
+		if (pp.json != null)
+			append(new Entry(pp.getJobKey(), State.RUNNING, null, null));
+	}
+
+	/** The job is done.
+	 * */
+	public void done(ProcessParameters pp) {
+		if (pp.json != null)
+			append(new Entry(pp.getJobKey(), State.DONE, null, null));
+	}
+
+	/** The job has been given up on.
+	 * */
+	public void failed(ProcessParameters pp) {
+		if (pp.json != null)
+			append(new Entry(pp.getJobKey(), State.FAILED, null, null));
+	}
+
+	/** This will write the change of state to the journal. It is synced to disk within SYNC_INTERVAL.
+	 * */
+	private synchronized void append(Entry entry) {
+		entry = apply(entry);
+		if (channel == null)
+			return;
+
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(toLine(entry).getBytes(StandardCharsets.UTF_8));
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			dirty = true;
+		} catch (Exception e) {
+			LogSystem.getInstance().printError("Unable to write to the job journal: " + path, e);
+		}
+	}
+
+	/** This will update the jobs that are not done with the change of state.
+	 * @return the entry with the queue name and json filled in from the QUEUED entry.
+	 * */
+	private Entry apply(Entry entry) {
+		Entry previous = mapLive.get(entry.key);
+		if (entry.state == State.DONE || entry.state == State.FAILED) {
+			mapLive.remove(entry.key);
+			return entry;
+		}
+
+		if (entry.json == null && previous != null)
+			entry = new Entry(entry.key, entry.state, previous.queueName, previous.json);
+		if (entry.json != null)
+			mapLive.put(entry.key, entry);
+		return entry;
+	}
+
+	/** This will sync the lines written to disk.
+	 * */
+	private synchronized void sync() {
+		if (!dirty || channel == null)
+			return;
+		try {
+			channel.force(false);
+			dirty = false;
+		} catch (Exception e) {
+			LogSystem.getInstance().printError("Unable to sync the job journal: " + path, e);
+		}
+	}
+
+	/** This will read the journal into the jobs that are not done. A line that can not be read, ie, the last line
+	 * was only partly written when the encoder stopped, is skipped.
+	 * */
+	private void read() throws IOException {
+		BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				Entry entry = fromLine(line);
+				if (entry == null) {
+					LogSystem.getInstance().printError("Skipping unreadable job journal line: [" + line + "]");
+					continue;
+				}
+				apply(entry);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/** This will rewrite the journal with only the jobs that are not done. The new file is written next to the journal
+	 * and moved over it so a crash leaves either the old or the new journal.
+	 * */
+	private synchronized void compact() throws IOException {
+		Path tempPath = Paths.get(path.toString() + ".tmp");
+		StringBuffer sb = new StringBuffer();
+		for (Entry entry : mapLive.values()) {
+			sb.append(toLine(entry));
+		}
+
+		FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+			while (buffer.hasRemaining()) {
+				tempChannel.write(buffer);
+			}
+			tempChannel.force(true);
+		} finally {
+			tempChannel.close();
+		}
+
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		dirty = false;
+	}
+
+	private static String toLine(Entry entry) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(entry.state).append('\t').append(entry.key);
+		if (entry.json != null)
+			sb.append('\t').append(entry.queueName).append('\t').append(entry.json.toJSONString());
+		sb.append('\n');
+		return sb.toString();
+	}
+
+	/** @return the entry of the line, null if the line can not be read.
+	 * */
+	private static Entry fromLine(String line) {
+		try {
+			String columns[] = line.split("\t", 4);
+			if (columns.length < 2)
+				return null;
+
+			State state = State.valueOf(columns[0]);
+			if (columns.length < 4)
+				return new Entry(columns[1], state, null, null);
+
+			Object json = JSONValue.parse(columns[3]);
+			if (!(json instanceof JSONObject))
+				return null;
+			return new Entry(columns[1], state, columns[2], (JSONObject)json);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
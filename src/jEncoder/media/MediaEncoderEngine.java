@@ -1,34 +1,70 @@
 package jEncoder.media;
 
 import jEncoder.Configuration;
+import jEncoder.apple_hls.LiveRestream;
 import jEncoder.util.LogSystem;
+import jEncoder.web.JobIntakeServer;
 import jEncoder.web.Web;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
-/** There is always one thread dedicated to just archive video editing.
+/** There is always one thread dedicated to just archive video editing, and one to the downloads.
  * */
 public class MediaEncoderEngine {
-	/** Total number of threads that can work. Excludes the archive video editing thread. */
+	/** Total number of threads that can work. Excludes the archive video editing and download threads. */
 	private static int MAX_WORKERS;
 		
-	/** How much time this worker will sleep before checking if there is any work to consume. (1000 = 1 second). */
-	private static final int SLEEP_TIME_FOR_WORKER = 1000 * 10;
-	
-	/** How much time to check the web site for new work.  (1000 = 1 second). */
-	private static final int SLEEP_CHECK_FOR_NEW_WORK = 1000 * 60;
+	/** How much time to check the web site for new work.  (1000 = 1 second). Jobs pushed to the job intake listener do
+	 * not wait on this, the check is only a fallback to pick up anything that was not pushed. */
+	private static int SLEEP_CHECK_FOR_NEW_WORK;
 
 	/** The current job ticket #. (Just an unique number that each job is given to easier track in the logs so that one output of the parameters can be printed). */
 	private static int jobTicketNumber = 0;	
 	
-	/** This is the list of work orders that need to be processed. */
-	LinkedList<ProcessParameters> ltWorkOrders = new LinkedList<ProcessParameters>();
+	/** This is the queue of work orders that need to be processed. */
+	WorkOrderQueue workOrders = new WorkOrderQueue("work");
+	
+	/** This is the queue of work orders that need to be processed. (Archive only) */
+	WorkOrderQueue archiveWorkOrders = new WorkOrderQueue("archive");
+	
+	/** This is the queue of work orders that need to be processed. (Download only) */
+	WorkOrderQueue downloadWorkOrders = new WorkOrderQueue("download");
+	
+	/** The jobs that are queued, running, or just completed. Keeps the same job from being processed twice. */
+	JobIndex jobIndex = new JobIndex();
+	
+	/** The queued and running jobs on disk so they survive a restart. Only written to once it is opened in startEngine(). */
+	JobJournal jobJournal = new JobJournal(Configuration.getInstance().getJobJournalFile());
+	
+	/** The ffmpeg encodes that are running. */
+	private Set<EncodeProgress> setEncodeProgress = Collections.newSetFromMap(new ConcurrentHashMap<EncodeProgress, Boolean>());
+	
+	/** The job each worker is working on. Key is the worker's thread name. */
+	private ConcurrentHashMap<String, ProcessParameters> mapWorkerJobs = new ConcurrentHashMap<String, ProcessParameters>();
 	
-	/** This is the list of work orders that need to be processed. (Archive only) */
-	LinkedList<ProcessParameters> ltArchiveWorkOrders = new LinkedList<ProcessParameters>();
+	/** Puts the jobs that were killed by their watchdog back on their queue once their backoff is over. */
+	private ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Retry");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
     // The only instance of this class.
     private static MediaEncoderEngine instance = null;
@@ -38,6 +74,7 @@ public class MediaEncoderEngine {
     protected MediaEncoderEngine() {
     	// Number of workers comes from the server-settings.conf configuration file.
     	MAX_WORKERS = Configuration.getInstance().getEncoderWorkers();
+    	SLEEP_CHECK_FOR_NEW_WORK = 1000 * Configuration.getInstance().getEncodingJobsPollSeconds();
     }
     
     /** @return the only instance of this class.
@@ -55,63 +92,35 @@ public class MediaEncoderEngine {
 	 * */
 	public void startEngine() {
 		
+		// Put the jobs that did not finish before the last shutdown back on the queues.
+		replayJobJournal();
+		
 		// Start up the worker threads.
 		for (int i=0; i < MAX_WORKERS; i++) {
-			new Thread() {				
-				public void run() {
-					// Thread does not stop.
-					while (true) {
-						
-						// Keep working until there is no more work.
-						while (true) {				
-							// Check for some work to do.
-							ProcessParameters pp = getOrder();
-							if (pp == null)
-								break;
-							
-							// Work on the load.
-							MediaProcess media = new MediaProcess(pp);
-							media.process();
-						}
-						
-						// Sleep for a time.
-						try {
-							sleep(SLEEP_TIME_FOR_WORKER);
-						} catch (Exception e) {
-							LogSystem.getInstance().printError("Unable to sleep.", e);
-						}
-					}
-				}
-			}.start();
+			startWorker(workOrders, "Worker-" + i);
 		}
 		
 		// Start up the archive video thread worker.
-		new Thread() {				
-			public void run() {
-				// Thread does not stop.
-				while (true) {
-					
-					// Keep working until there is no more work.
-					while (true) {				
-						// Check for some work to do.
-						ProcessParameters pp = getArchiveOnlyOrder();
-						if (pp == null)
-							break;
-						
-						// Work on the load.
-						MediaProcess media = new MediaProcess(pp);
-						media.process();
-					}
-					
-					// Sleep for a time.
-					try {
-						sleep(SLEEP_TIME_FOR_WORKER);
-					} catch (Exception e) {
-						LogSystem.getInstance().printError("Unable to sleep.", e);
-					}
-				}
+		startWorker(archiveWorkOrders, "Worker-archive");
+		
+		// Start up the download thread worker, a user is waiting on each download.
+		startWorker(downloadWorkOrders, "Worker-download");
+
+		// Start up the listener the web server pushes jobs to.
+		int intakePort = Configuration.getInstance().getJobIntakePort();
+		if (intakePort > 0) {
+			try {
+				new JobIntakeServer(Configuration.getInstance().getJobIntakeBind(), intakePort, Configuration.getInstance().getJobIntakeSecret()).start();
+			} catch (Exception e) {
+				LogSystem.getInstance().printError("Unable to start the job intake listener on port:[" + intakePort + "]", e);
 			}
-		}.start();
+		}
+
+		// Start up the live restream of what is being recorded, if turned on.
+		LiveRestream.getInstance().start();
+
+		// Start watching for finished recordings so their work is started before the job, if turned on.
+		RecordingWatcher.getInstance().start();
 
 		// Start up the thread that checks for new encoding jobs.
 		new Thread() {				
@@ -135,9 +144,54 @@ public class MediaEncoderEngine {
 		
 	}
 	
-	/** This will check for encoding jobs to work on.
+	/** This will start up a worker thread that waits on the queue for work orders. It does not die.
+	 * */
+	private void startWorker(final WorkOrderQueue queue, String threadName) {
+		new Thread(threadName) {				
+			public void run() {
+				// Thread does not stop.
+				while (true) {
+					// Wait for some work to do.
+					ProcessParameters pp;
+					try {
+						pp = queue.take();
+					} catch (InterruptedException e) {
+						LogSystem.getInstance().printError("Interrupted while waiting on the " + queue.getName() + " queue.", e);
+						continue;
+					}
+					
+					// Work on the load.
+					mapWorkerJobs.put(getName(), pp);
+					boolean bRetrying = false;
+					boolean bFailed = false;
+					try {
+						pp.attempts++;
+						jobJournal.running(pp);
+						MediaProcess media = new MediaProcess(pp);
+						media.process();
+					} catch (EncodeTimeoutException e) {
+						bRetrying = retryWorkOrder(queue, pp);
+						bFailed = !bRetrying;
+					} finally {
+						mapWorkerJobs.remove(getName());
+						
+						// A job waiting to be retried stays active so it is not queued again meanwhile.
+						if (!bRetrying) {
+							if (bFailed)
+								jobJournal.failed(pp);
+							else
+								jobJournal.done(pp);
+							jobIndex.complete(pp);
+						}
+					}
+				}
+			}
+		}.start();
+	}
+	
+	/** This will check for encoding jobs to work on. No lock is held while talking to the web server.
 	 * */
-	private synchronized void checkForEncodingJobs() {
+	private void checkForEncodingJobs() {
 		try {
 			
 			System.out.println("CHECKING FOR ENCODING JOBS");
@@ -146,65 +200,212 @@ public class MediaEncoderEngine {
 			if (obj == null)
 				return;
 
-			// Process the archive videos.
-			JSONArray arr = (JSONArray)obj.get("archive");						
-			int cnt = arr.size();
-			for (int i=0; i < cnt; i++) {
-				JSONObject aJob = (JSONObject)arr.get(i);
-				ProcessParameters pp = ProcessParameters.newProcessParametersUsingJSON(aJob, getNextJobTicketNumber());
-				LogSystem.getInstance().printInfo(pp.cid, pp.cno, "Job [" + pp.jobIdNumber + "] ARCHIVE Received [" + pp + "]");
-
-				// Archive videos are clipped so use the the archive thread.
-				if (pp.cmd == ProcessParameters.COMMAND.ARCHIVE)
-					ltArchiveWorkOrders.add(pp);
-				else				
-					ltWorkOrders.add(pp);
-			}
+			addEncodingJobs(obj);
 			
-			// Process the InOut videos.
-			arr = (JSONArray)obj.get("inout");
-			cnt = arr.size();
-			for (int i=0; i < cnt; i++) {
-				JSONObject aJob = (JSONObject)arr.get(i);
-				ProcessParameters pp = ProcessParameters.newProcessParametersUsingJSON(aJob, getNextJobTicketNumber());
-				LogSystem.getInstance().printInfo(pp.cid, pp.cno, "Job [" + pp.jobIdNumber + "] INOUT Received [" + pp + "]");
-				ltWorkOrders.add(pp);
+		} catch (Exception e) {
+			LogSystem.getInstance().printError("Check for Encoding job error.", e);
+		}
+		
+	}
+	
+	/** This will add the encoding jobs to the work orders. 
+	 * @param obj is the JSON returned by encoding_jobs.php or pushed to the job intake listener. Any of the "archive", "inout", 
+	 *            and "download" arrays can be left out.
+	 * @return the number of jobs added.
+	 * */
+	public int addEncodingJobs(JSONObject obj) {
+		int added = 0;
+		
+		// Process the archive videos.
+		JSONArray arr = (JSONArray)obj.get("archive");
+		int cnt = arr == null ? 0 : arr.size();
+		for (int i=0; i < cnt; i++) {
+			JSONObject aJob = (JSONObject)arr.get(i);
+			ProcessParameters pp = ProcessParameters.newProcessParametersUsingJSON(aJob, getNextJobTicketNumber());
+			if (pp == null)
+				continue;
+			LogSystem.getInstance().printInfo(pp.cid, pp.cno, "Job [" + pp.jobIdNumber + "] ARCHIVE Received [" + pp + "]");
+
+			// Archive videos are clipped so use the the archive thread.
+			if (pp.cmd == ProcessParameters.COMMAND.ARCHIVE) {
+				if (addWorkOrder(archiveWorkOrders, pp))
+					added++;
+			} else {
+				if (addWorkOrder(workOrders, pp))
+					added++;
 			}
+		}
+		
+		// Process the InOut videos.
+		arr = (JSONArray)obj.get("inout");
+		cnt = arr == null ? 0 : arr.size();
+		for (int i=0; i < cnt; i++) {
+			JSONObject aJob = (JSONObject)arr.get(i);
+			ProcessParameters pp = ProcessParameters.newProcessParametersUsingJSON(aJob, getNextJobTicketNumber());
+			if (pp == null)
+				continue;
+			LogSystem.getInstance().printInfo(pp.cid, pp.cno, "Job [" + pp.jobIdNumber + "] INOUT Received [" + pp + "]");
+			if (addWorkOrder(workOrders, pp))
+				added++;
+		}
 
-			// Process the download history.
-			arr = (JSONArray)obj.get("download");						
-			cnt = arr.size();
-			for (int i=0; i < cnt; i++) {
-				JSONObject aJob = (JSONObject)arr.get(i);
-				ProcessParameters pp = ProcessParameters.newProcessParametersUsingJSON(aJob, getNextJobTicketNumber());
-				LogSystem.getInstance().printInfo(pp.cid, pp.cno, "Job [" + pp.jobIdNumber + "] DOWNLOAD Received [" + pp + "]");
+		// Process the download history.
+		arr = (JSONArray)obj.get("download");						
+		cnt = arr == null ? 0 : arr.size();
+		for (int i=0; i < cnt; i++) {
+			JSONObject aJob = (JSONObject)arr.get(i);
+			ProcessParameters pp = ProcessParameters.newProcessParametersUsingJSON(aJob, getNextJobTicketNumber());
+			if (pp == null)
+				continue;
+			LogSystem.getInstance().printInfo(pp.cid, pp.cno, "Job [" + pp.jobIdNumber + "] DOWNLOAD Received [" + pp + "]");
 
-				// Download videos are not re-encoded so it is a quick process, put it in the archive work orders.
-				ltArchiveWorkOrders.add(pp);
-			}
-			
-		} catch (Exception e) {
-			LogSystem.getInstance().printError("Check for Encoding job error.", e);
+			// Download videos are not re-encoded so it is a quick process, it does not wait behind the archive videos.
+			if (addWorkOrder(downloadWorkOrders, pp))
+				added++;
 		}
 		
+		return added;
 	}
 	
-	/** @return a new order or null if none exist. These are archive only videos.
+	/** This will add the work order to the queue unless the same job is already queued, running, or just completed.
+	 * @return true if the work order was added.
 	 * */
-	private synchronized ProcessParameters getArchiveOnlyOrder() {		
-		if (ltArchiveWorkOrders.size() == 0)
-			return null;
-		return ltArchiveWorkOrders.pop();
+	private boolean addWorkOrder(WorkOrderQueue queue, ProcessParameters pp) {
+		if (!jobIndex.register(pp)) {
+			String activeJobIdNumber = jobIndex.getActiveJobIdNumber(pp);
+			if (activeJobIdNumber != null)
+				LogSystem.getInstance().printInfo(pp.cid, pp.cno, "Job [" + pp.jobIdNumber + "] Duplicate of Job [" + activeJobIdNumber + "] which is queued or running, skipped.");
+			else
+				LogSystem.getInstance().printInfo(pp.cid, pp.cno, "Job [" + pp.jobIdNumber + "] Duplicate of a job that just completed, skipped.");
+			return false;
+		}
+		
+		jobJournal.queued(pp, queue.getName());
+		queue.put(pp);
+		return true;
 	}
 	
-	/** @return a new order or null if none exist. These are recording or in/out videos.
+	/** This will open the job journal and put the jobs that were queued or running when the encoder stopped back on their
+	 * queues. A job that was running is started over, what it had written is removed first.
 	 * */
-	private synchronized ProcessParameters getOrder() {
-		if (ltWorkOrders.size() == 0)
-			return null;
-		return ltWorkOrders.pop();
+	private void replayJobJournal() {
+		String file = Configuration.getInstance().getJobJournalFile();
+		if ("none".equals(file))
+			return;
+		
+		List<JobJournal.Entry> ltEntries;
+		try {
+			ltEntries = jobJournal.open();
+		} catch (Exception e) {
+			LogSystem.getInstance().printError("Unable to open the job journal: " + file, e);
+			return;
+		}
+		
+		for (JobJournal.Entry entry : ltEntries) {
+			try {
+				ProcessParameters pp = ProcessParameters.newProcessParametersUsingJSON(entry.json, getNextJobTicketNumber());
+				if (pp == null)
+					continue;
+				
+				LogSystem.getInstance().printInfo(pp.cid, pp.cno, "Job [" + pp.jobIdNumber + "] " + entry.state + " before the last shutdown, queued again [" + pp + "]");
+				if (entry.state == JobJournal.State.RUNNING)
+					new MediaProcess(pp).removePartialOutput();
+				
+				addWorkOrder(getWorkOrderQueue(entry.queueName), pp);
+				EncoderMetrics.getInstance().increment("jobs_replayed");
+			} catch (Exception e) {
+				LogSystem.getInstance().printError("Unable to replay job journal entry: " + entry, e);
+			}
+		}
 	}
 
+	/** @return the queue with the name, the work orders queue if there is none.
+	 * */
+	private WorkOrderQueue getWorkOrderQueue(String name) {
+		if (archiveWorkOrders.getName().equals(name))
+			return archiveWorkOrders;
+		if (downloadWorkOrders.getName().equals(name))
+			return downloadWorkOrders;
+		return workOrders;
+	}
+	
+	/** This will put the job back on the queue after a backoff of JOB_RETRY_BACKOFF_SECONDS, doubled for each attempt.
+	 * @return true if the job will be retried, false if it has used up its JOB_MAX_ATTEMPTS.
+	 * */
+	private boolean retryWorkOrder(final WorkOrderQueue queue, final ProcessParameters pp) {
+		if (pp.attempts >= Configuration.getInstance().getJobMaxAttempts()) {
+			LogSystem.getInstance().printError(pp.cid, pp.cno, "Job [" + pp.jobIdNumber + "] Failed after [" + pp.attempts + "] attempts, giving up.");
+			EncoderMetrics.getInstance().increment("jobs_failed");
+			return false;
+		}
+		
+		long backoffSeconds = (long)Configuration.getInstance().getJobRetryBackoffSeconds() << Math.min(pp.attempts - 1, 16);
+		LogSystem.getInstance().printInfo(pp.cid, pp.cno, "Job [" + pp.jobIdNumber + "] Attempt [" + pp.attempts + "] did not finish, retrying in [" + backoffSeconds + "] seconds.");
+		EncoderMetrics.getInstance().increment("jobs_requeued");
+		jobJournal.queued(pp, queue.getName());
+		
+		retryScheduler.schedule(new Runnable() {
+			public void run() {
+				queue.put(pp);
+			}
+		}, backoffSeconds, TimeUnit.SECONDS);
+		return true;
+	}
+	
+	/** This will add an ffmpeg encode that started running.
+	 * */
+	void addEncodeProgress(EncodeProgress progress) {
+		setEncodeProgress.add(progress);
+	}
+	
+	/** This will remove an ffmpeg encode that is done running.
+	 * */
+	void removeEncodeProgress(EncodeProgress progress) {
+		setEncodeProgress.remove(progress);
+	}
+	
+	/** @return the progress of the ffmpeg encodes that are running right now, oldest first.
+	 * */
+	public List<EncodeProgress> getEncodeProgress() {
+		List<EncodeProgress> ltProgress = new ArrayList<EncodeProgress>(setEncodeProgress);
+		Collections.sort(ltProgress, new Comparator<EncodeProgress>() {
+			@Override
+			public int compare(EncodeProgress a, EncodeProgress b) {
+				return Long.compare(a.startTime, b.startTime);
+			}
+		});
+		return ltProgress;
+	}
+	
+	/** @return the jobIdNumber each busy worker is working on. Key is the worker's thread name, idle workers are left out.
+	 * */
+	public Map<String, String> getWorkerJobs() {
+		Map<String, String> mapJobs = new TreeMap<String, String>();
+		for (Map.Entry<String, ProcessParameters> entry : mapWorkerJobs.entrySet()) {
+			mapJobs.put(entry.getKey(), entry.getValue().jobIdNumber);
+		}
+		return mapJobs;
+	}
+	
+	/** @return the running encodes and the busy workers as json. 
+	 * {"workers":{"Worker-0":"J000012"}, "encodes":[{"job":"J000012", "tag":"HD SD LOW 64k", "out_time_seconds":412.5, "speed":2.9, ...}]}
+	 * */
+	@SuppressWarnings("unchecked")
+	public JSONObject getProgressAsJSON() {
+		JSONObject workers = new JSONObject();
+		workers.putAll(getWorkerJobs());
+		
+		JSONArray encodes = new JSONArray();
+		for (EncodeProgress progress : getEncodeProgress()) {
+			encodes.add(progress.toJSON());
+		}
+		
+		JSONObject obj = new JSONObject();
+		obj.put("workers", workers);
+		obj.put("encodes", encodes);
+		return obj;
+	}
+	
 	/** @return an unique string ID in increment of the encoding job number.
 	 * */
 	private synchronized String getNextJobTicketNumber() {		
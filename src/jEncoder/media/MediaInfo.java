@@ -0,0 +1,190 @@
+package jEncoder.media;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import jEncoder.util.LogSystem;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.PumpStreamHandler;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/** This is what ffprobe found out about a media file: the duration, bitrate, and streams. It is filled by a single
+ * "ffprobe -print_format json" call. Use MediaInfoCache to get one so the same file is not probed twice.
+ * */
+public class MediaInfo {
+    public static final String FFPROBE_PATH = "/opt/gomedia/bin/programs/ffprobe";
+
+	/** How long ffprobe can run before it is killed. (1000 = 1 second). It reads as much of the file as it needs, which
+	 * on a damaged file can be all of it. */
+	private static final long TIMEOUT = 1000 * 60 * 5;
+
+	/** A stream of the media file. */
+	public static class Stream {
+		/** The index of the stream in the input. Example: 1 for "Stream #0:1". */
+		public final int index;
+		/** The type of stream. Example: video, audio, data. */
+		public final String codecType;
+		/** The codec of the stream. Example: h264, aac. */
+		public final String codecName;
+
+		public Stream(int index, String codecType, String codecName) {
+			this.index = index;
+			this.codecType = codecType;
+			this.codecName = codecName;
+		}
+
+		public String toString() {
+			return "{Stream index:[" + index + "] codecType:[" + codecType + "] codecName:[" + codecName + "]}";
+		}
+	}
+
+	/** The duration in seconds. 0 if unknown. */
+	private final float duration;
+
+	/** The bitrate in raw bits rounded down to kb/s, ie, 500000 for a 500k bitrate. 0 if unknown. */
+	private final int bitrate;
+
+	/** The streams in the order of their index. */
+	private final List<Stream> streams;
+
+	/** True if ffprobe was able to probe the file. */
+	private final boolean probed;
+
+	private MediaInfo(float duration, int bitrate, List<Stream> streams, boolean probed) {
+		this.duration = duration;
+		this.bitrate = bitrate;
+		this.streams = Collections.unmodifiableList(streams);
+		this.probed = probed;
+	}
+
+	/** @return the duration in seconds, 0 if unknown.
+	 * */
+	public float getDuration() {
+		return duration;
+	}
+
+	/** @return the bitrate in raw bits, ie, will return 500000 for a 500k bitrate. 0 if unknown.
+	 * */
+	public int getBitrate() {
+		return bitrate;
+	}
+
+	public List<Stream> getStreams() {
+		return streams;
+	}
+
+	/** @return true if ffprobe was able to probe the file.
+	 * */
+	public boolean isProbed() {
+		return probed;
+	}
+
+	/** @return Linkedlist of strings of the first video and audio streams in the order they are found. Example: 0:0, 0:1
+	 * */
+	public LinkedList<String> getFirstVideoAudioStreams() {
+		LinkedList<String> ltChannels = new LinkedList<String>();
+		boolean bFoundVideo = false;
+		boolean bFoundAudio = false;
+		for (Stream stream : streams) {
+			if (!bFoundVideo && "video".equals(stream.codecType)) {
+				bFoundVideo = true;
+				ltChannels.add("0:" + stream.index);
+			}
+			if (!bFoundAudio && "audio".equals(stream.codecType)) {
+				bFoundAudio = true;
+				ltChannels.add("0:" + stream.index);
+			}
+		}
+		return ltChannels;
+	}
+
+	/** This will run ffprobe on the file.
+	 * @param file is the absolute path to the media file.
+	 * @return the information found. If ffprobe was not able to probe the file, or was killed, then isProbed() is false.
+	 * */
+	public static MediaInfo probe(int clientId, int channelNo, String file, String jobIdNumber) {
+		CommandLine cmdLine = new CommandLine(FFPROBE_PATH);
+
+		cmdLine.addArgument("-v");
+		cmdLine.addArgument("error");
+
+		cmdLine.addArgument("-analyzeduration");
+		cmdLine.addArgument("2147483647");
+
+		cmdLine.addArgument("-probesize");
+		cmdLine.addArgument("2147483647");
+
+		cmdLine.addArgument("-print_format");
+		cmdLine.addArgument("json");
+		cmdLine.addArgument("-show_format");
+		cmdLine.addArgument("-show_streams");
+
+		cmdLine.addArgument(file, false);
+
+		// Set up the streams to get the out/err from the executable. The json is only a few lines per stream and only the last lines of the err are kept.
+		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+		OutputTail errTail = new OutputTail();
+		PumpStreamHandler streamHandler = new PumpStreamHandler(outStream, errTail);
+
+		DefaultExecutor executor = new DefaultExecutor();
+		ExecuteWatchdog watchdog = new ExecuteWatchdog(TIMEOUT);
+		executor.setStreamHandler(streamHandler);
+		executor.setWatchdog(watchdog);
+
+		try {
+			executor.execute(cmdLine);
+			if (!watchdog.killedProcess())
+				return parse(outStream.toString("UTF-8"));
+		} catch (Exception e) {
+			if (!watchdog.killedProcess())
+				LogSystem.getInstance().printError(clientId, channelNo, "Job [" + jobIdNumber + "] Probe error. cmdLine: [" + cmdLine + "] stderr: [" + errTail.getTail() + "]", e);
+		}
+
+		// What it printed before it was killed is not the whole file's.
+		if (watchdog.killedProcess()) {
+			EncoderMetrics.getInstance().increment("ffmpeg_killed_probe");
+			LogSystem.getInstance().printError(clientId, channelNo, "Job [" + jobIdNumber + "] ffprobe was killed after [" + TIMEOUT / 1000 + "] seconds. cmdLine: [" + cmdLine + "]");
+		}
+
+		return new MediaInfo(0, 0, new ArrayList<Stream>(), false);
+	}
+
+	/** This will parse the json ffprobe printed out.
+	 * */
+	static MediaInfo parse(String json) {
+		JSONObject root = (JSONObject)JSONValue.parse(json);
+
+		float duration = 0;
+		int bitrate = 0;
+		JSONObject format = (JSONObject)root.get("format");
+		if (format != null) {
+			if (format.get("duration") != null)
+				duration = Float.parseFloat(format.get("duration").toString());
+			if (format.get("bit_rate") != null)
+				bitrate = (int)(Long.parseLong(format.get("bit_rate").toString()) / 1000) * 1000;
+		}
+
+		List<Stream> streams = new ArrayList<Stream>();
+		JSONArray arr = (JSONArray)root.get("streams");
+		int cnt = arr == null ? 0 : arr.size();
+		for (int i=0; i < cnt; i++) {
+			JSONObject stream = (JSONObject)arr.get(i);
+			int index = Integer.parseInt(stream.get("index").toString());
+			streams.add(new Stream(index, (String)stream.get("codec_type"), (String)stream.get("codec_name")));
+		}
+
+		return new MediaInfo(duration, bitrate, streams, true);
+	}
+
+	public String toString() {
+		return "{MediaInfo duration:[" + duration + "] bitrate:[" + bitrate + "] streams:" + streams + "}";
+	}
+}
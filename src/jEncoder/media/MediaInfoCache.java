@@ -0,0 +1,110 @@
+package jEncoder.media;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/** This is the cache of the MediaInfo of the files that have been probed. It is shared by all of the FFmpeg instances.
+ * A file is keyed by its path, size, and last modified time so a file that changes is probed again. When the same
+ * file is asked for by several threads at once only one of them runs ffprobe.
+ * */
+public class MediaInfoCache {
+
+	/** The most files to remember. */
+	private static final int MAX_ENTRIES = 512;
+
+	/** The probes by key, least recently used first. */
+	private LinkedHashMap<String, FutureTask<MediaInfo>> mapProbes = new LinkedHashMap<String, FutureTask<MediaInfo>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, FutureTask<MediaInfo>> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+    // The only instance of this class.
+    private static MediaInfoCache instance = null;
+
+    // [start] Methods: Constructor and getInstance()
+
+    protected MediaInfoCache() {
+    }
+
+    /** @return the only instance of this class.
+     */
+    public static synchronized MediaInfoCache getInstance() {
+        if(instance == null) {
+            instance = new MediaInfoCache();
+        }
+        return instance;
+    }
+
+    // [end]
+
+	/** @return the information for the file, it is only probed if it is not in the cache.
+	 * */
+	public MediaInfo get(final int clientId, final int channelNo, final String file, final String jobIdNumber) {
+		String key = getKey(file);
+
+		FutureTask<MediaInfo> task;
+		boolean bRunProbe = false;
+		synchronized (this) {
+			task = mapProbes.get(key);
+			if (task == null) {
+				task = new FutureTask<MediaInfo>(new Callable<MediaInfo>() {
+					@Override
+					public MediaInfo call() throws Exception {
+						return MediaInfo.probe(clientId, channelNo, file, jobIdNumber);
+					}
+				});
+				mapProbes.put(key, task);
+				bRunProbe = true;
+			}
+		}
+
+		// The probe is run outside of the lock.
+		if (bRunProbe)
+			task.run();
+
+		MediaInfo info;
+		try {
+			info = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return MediaInfo.probe(clientId, channelNo, file, jobIdNumber);
+		} catch (ExecutionException e) {
+			info = null;
+		}
+
+		// Failed probes, ie, one that was killed, are not remembered so the next call tries again.
+		if (info == null || !info.isProbed()) {
+			synchronized (this) {
+				if (mapProbes.get(key) == task)
+					mapProbes.remove(key);
+			}
+			if (info == null)
+				info = MediaInfo.probe(clientId, channelNo, file, jobIdNumber);
+		}
+
+		return info;
+	}
+
+	/** @return the key for the file: path, size, and last modified time.
+	 * */
+	private static String getKey(String file) {
+		Path path = Paths.get(file);
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			return path.toAbsolutePath().toString() + "|" + attrs.size() + "|" + attrs.lastModifiedTime().toMillis();
+		} catch (Exception e) {
+			return path.toAbsolutePath().toString() + "|-1|-1";
+		}
+	}
+}
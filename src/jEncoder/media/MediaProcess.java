@@ -1,8 +1,15 @@
 package jEncoder.media;
 
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import jEncoder.apple_hls.HLSupdater;
 import jEncoder.apple_hls.M3U8MasterPlaylist;
@@ -22,6 +29,8 @@ public class MediaProcess {
 	private static final int BITRATE_LOW_MAX_CAP = 140000;
 	/** This is the path to the export of the recorded file. */
 	private static final String EXPORT_PATH = "/opt/export/";
+	/** The renditions an archive video can have, in the order HD, SD, LOW, and the audio only 64k last. */
+	static final String ARCHIVE_RENDITIONS[] = {"HD", "SD", "LOW", "64k"};
 	
 	/** The parameters to process.
 	 * */
@@ -36,6 +45,8 @@ public class MediaProcess {
 	}
 	
 	/** This will process the passed in parameters.
+	 * @throws EncodeTimeoutException if an ffmpeg encode was killed by its watchdog. The partial output is removed so the
+	 *         job can be tried again.
 	 * */
 	public void process() {
 		try {
@@ -51,11 +62,83 @@ public class MediaProcess {
 				processDownload();
 			
 			LogSystem.getInstance().printInfo(pp.cid, pp.cno, formatMessageForLog("Encoding job finished."));
+		} catch (EncodeTimeoutException e) {
+			LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Encoding job did not finish."), e);
+			removePartialOutput();
+			throw e;
 		} catch (Exception e) {
 			LogSystem.getInstance().printError(formatMessageForLog("Unable to process job."), e);
 		}
 	}
 	
+	/** This will remove what the job has written so far so that it can be run again. ffmpeg is run with -n and will not
+	 * overwrite the files of an earlier attempt. The input is never removed, and nothing that is not strictly below the
+	 * client's archive directory, or the download directory for a download.
+	 * */
+	void removePartialOutput() {
+		// The recording is only deleted once the job is done, if it is gone the output is complete.
+		if (pp.cmd == ProcessParameters.COMMAND.RECORDING && !Files.exists(Paths.get(pp.getAbsoluteFilePath())) && !Files.exists(Paths.get(pp.getAbsoluteFilePathBackup())))
+			return;
+		
+		List<Path> ltPaths = new ArrayList<Path>();
+		if (pp.cmd == ProcessParameters.COMMAND.RECORDING || pp.cmd == ProcessParameters.COMMAND.ARCHIVE) {
+			// A blank, . or .. output name is the client's whole archive.
+			String outputName = pp.outputFilename == null ? "" : pp.outputFilename.trim();
+			if (outputName.isEmpty() || ".".equals(outputName) || "..".equals(outputName)) {
+				LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Partial output not removed, the output name is: [" + pp.outputFilename + "]"));
+				return;
+			}
+			String outputDir = pp.getAbsoluteFilePathNoExtensionsForOutput();
+			ltPaths.add(Paths.get(outputDir));
+			ltPaths.add(Paths.get(outputDir + ".mp3"));
+		} else if (pp.cmd == ProcessParameters.COMMAND.IN || pp.cmd == ProcessParameters.COMMAND.OUT) {
+			if (pp.cmdInOut == ProcessParameters.COMMAND_INOUT.ENCODE)
+				ltPaths.add(Paths.get(pp.getAbsoluteFilePathNoExtensionsForOutput()));
+		} else if (pp.cmd == ProcessParameters.COMMAND.DOWNLOAD) {
+			ltPaths.add(Paths.get(pp.getAbsoluteFilePathNoExtensionsForOutput() + "/" + pp.filename));
+		}
+		
+		Path root = Paths.get(pp.cmd == ProcessParameters.COMMAND.DOWNLOAD ? ProcessParameters.DOWNLOAD_PATH : ProcessParameters.ARCHIVE_PATH + pp.cid).toAbsolutePath().normalize();
+		Path inputPath = Paths.get(pp.getAbsoluteFilePathNoExtensions()).toAbsolutePath().normalize();
+		Path inputFile = Paths.get(pp.getAbsoluteFilePath()).toAbsolutePath().normalize();
+		for (Path path : ltPaths) {
+			path = path.toAbsolutePath().normalize();
+			if (!path.startsWith(root) || path.equals(root)) {
+				LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Partial output not removed, it is not below " + root + ": " + path));
+				continue;
+			}
+			if (path.equals(inputPath) || path.equals(inputFile) || inputPath.startsWith(path) || !Files.exists(path))
+				continue;
+			
+			try {
+				LogSystem.getInstance().printInfo(pp.cid, pp.cno, formatMessageForLog("Removing partial output: " + path));
+				deleteRecursively(path);
+			} catch (Exception e) {
+				LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Unable to remove partial output: " + path), e);
+			}
+		}
+	}
+	
+	/** This will delete the file or the directory and everything in it.
+	 * */
+	static void deleteRecursively(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				if (e != null)
+					throw e;
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
 	/** This will convert the archive video file to an mp4 into the download.
 	 * */
 	private void processDownload() {
@@ -84,8 +167,10 @@ public class MediaProcess {
 		// Output mp4 file name. 
 		String outputMp4 = pp.getAbsoluteFilePathNoExtensionsForOutput() + "/" + pp.filename;
 		
+		// The .ts files are put together as they are, the HLS demuxer is only used if that does not work.
 		FFmpeg ffmpeg = new FFmpeg(pp.cid, pp.cno, inputM3U8, pp.jobIdNumber);
-		ffmpeg.encodeMP4(outputMp4);
+		if (!ffmpeg.encodeMP4FromSegments(outputMp4))
+			ffmpeg.encodeMP4(outputMp4);
 				
 		long fileSize = 0;
 		try {fileSize = Files.size(Paths.get(outputMp4));} catch (Exception e) {LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Unable to get mp4 file[" + outputMp4 + "] size."), e);}
@@ -129,16 +214,25 @@ public class MediaProcess {
 		// Output directory. 
 		String outputPathDir = pp.getAbsoluteFilePathNoExtensionsForOutput();
 		
-		// Encode the M3U8 versions.		
-		encodeM3U8(inputM3U8HD, inputM3U8SD, inputM3U8LOW, inputM3U864k, outputPathDir);
+		// Encode the M3U8 versions and the MP3 version at the same time.		
+		SubTaskGroup tasks = new SubTaskGroup();
+		encodeM3U8(tasks, inputM3U8HD, inputM3U8SD, inputM3U8LOW, inputM3U864k, outputPathDir);
+		
+		final String outputFileMP3 = outputPathDir + ".mp3";			
+		final FFmpeg ffmpegMP3 = new FFmpeg(pp.cid, pp.cno, inputDir + ".mp3", pp.jobIdNumber);
+		tasks.submit(new Runnable() {
+			public void run() {
+				ffmpegMP3.encodeMP3(outputFileMP3, pp.clip_start_seconds, pp.getDurationSeconds(), pp.mp3_title, pp.mp3_artist, pp.mp3_album, true);
+			}
+		});
+		tasks.await();
+		
+		// Create the master playlists.
+		writeArchiveMasterPlaylists(inputM3U8HD, inputM3U8SD, inputM3U8LOW, inputM3U864k, outputPathDir);
 		
-		// Encode the MP3 version.
-		String outputFileMP3 = outputPathDir + ".mp3";			
-		FFmpeg ffmpeg = new FFmpeg(pp.cid, pp.cno, inputDir + ".mp3", pp.jobIdNumber);
-		ffmpeg.encodeMP3(outputFileMP3, pp.clip_start_seconds, pp.getDurationSeconds(), pp.mp3_title, pp.mp3_artist, pp.mp3_album, true);
 		long mp3FileSize = 0;
 		try {mp3FileSize = Files.size(Paths.get(outputFileMP3));} catch (Exception e) {LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Unable to get mp3 file[" + outputFileMP3 + "] size."), e);}
-		ffmpeg = new FFmpeg(pp.cid, pp.cno, outputFileMP3, pp.jobIdNumber);		
+		FFmpeg ffmpeg = new FFmpeg(pp.cid, pp.cno, outputFileMP3, pp.jobIdNumber);		
 		int mp3Duration = ffmpeg.getDuration();
 		
 		// Generate the M3U8 with in/out videos.
@@ -181,28 +275,33 @@ public class MediaProcess {
 			LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Using backup file instead: " + inputFile + "."));
 		}
 		
-		// Copy the file over to the export path.
-		try {
-			String exportFile = EXPORT_PATH + pp.filename;
-			Files.copy(Paths.get(inputFile), Paths.get(exportFile));
-		} catch (Exception e) {
-			LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Unable to copy file."), e);
-		}
+		// Copy the file over to the export path while it is encoded.
+		Future<?> export = RecordingExporter.getInstance().export(pp.cid, pp.cno, inputFile, EXPORT_PATH + pp.filename, pp.jobIdNumber);
 					
 		// Output file.
-		String outputFileNoExtension = pp.getAbsoluteFilePathNoExtensionsForOutput();
+		final String outputFileNoExtension = pp.getAbsoluteFilePathNoExtensionsForOutput();
+		final String encodeInputFile = inputFile;
 					
-		// Encode the MP3 version.
-		String outputFileMP3 = outputFileNoExtension + ".mp3";			
-		FFmpeg ffmpeg = new FFmpeg(pp.cid, pp.cno, inputFile, pp.jobIdNumber);
-		ffmpeg.encodeMP3(outputFileMP3, pp.clip_start_seconds, pp.getDurationSeconds(), pp.mp3_title, pp.mp3_artist, pp.mp3_album, false);
+		// Encode the MP3 version and the M3U8 version at the same time.
+		SubTaskGroup tasks = new SubTaskGroup();
+		final String outputFileMP3 = outputFileNoExtension + ".mp3";			
+		final FFmpeg ffmpegMP3 = new FFmpeg(pp.cid, pp.cno, inputFile, pp.jobIdNumber);
+		tasks.submit(new Runnable() {
+			public void run() {
+				ffmpegMP3.encodeMP3(outputFileMP3, pp.clip_start_seconds, pp.getDurationSeconds(), pp.mp3_title, pp.mp3_artist, pp.mp3_album, false);
+			}
+		});
+		tasks.submit(new Runnable() {
+			public void run() {
+				encodeM3U8(encodeInputFile, outputFileNoExtension);
+			}
+		});
+		tasks.await();
+		
 		long mp3FileSize = 0;
 		try {mp3FileSize = Files.size(Paths.get(outputFileMP3));} catch (Exception e) {LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Unable to get mp3 file[" + outputFileMP3 + "] size."), e);}
-		ffmpeg = new FFmpeg(pp.cid, pp.cno, outputFileMP3, pp.jobIdNumber);		
+		FFmpeg ffmpeg = new FFmpeg(pp.cid, pp.cno, outputFileMP3, pp.jobIdNumber);		
 		int mp3Duration = ffmpeg.getDuration();
-
-		// Encode the M3U8 version.
-		encodeM3U8(inputFile, outputFileNoExtension);
 		
 		// Generate the M3U8 with in/out videos.
 		HLSupdater.getInstance().updateSingleHLS(pp.cid, pp.cno, pp.outputFilename, pp.jobIdNumber);
@@ -214,7 +313,8 @@ public class MediaProcess {
 		// Notify the web server the recording has been processed.
 		Web.getInstance().notifyArchiveVideoDone(pp.jobIdNumber, pp.cid, pp.cno, pp.viid, mp3Duration, mp3Duration, mp3FileSize);
 		
-		// Delete the recorded file.
+		// Delete the recorded file, once it has been exported.
+		RecordingExporter.getInstance().await(export);
 		try {
 			Path deletePath = Paths.get(pp.getAbsoluteFilePath());
 			if (Files.exists(deletePath)) {
@@ -245,7 +345,8 @@ public class MediaProcess {
 		if (pp.cmdInOut == ProcessParameters.COMMAND_INOUT.ENCODE)
 			encodeM3U8(pp.getAbsoluteFilePath(), pp.getAbsoluteFilePathNoExtensionsForOutput());
 		
-		// Generate the M3U8 with in/out videos.
+		// Generate the M3U8 with in/out videos. They have changed so they must not come from the cache.
+		HLSupdater.getInstance().invalidateInOutVideos(pp.cid, pp.cno);
 		HLSupdater.getInstance().updateAllHLS(pp.cid, pp.cno, pp.jobIdNumber);
 		
 		// Notify the web server the in/out videos have been processed.
@@ -253,122 +354,105 @@ public class MediaProcess {
 	}
 	
 	/** This will not re-encode unless the ProcessParameters.force_reencoding is turned on. It will just crop the input files.
+	 * Each of the renditions is submitted to the tasks so they are copied at the same time. The master playlists are written
+	 * by writeArchiveMasterPlaylists() after the tasks are done.
 	 * @param inputFileHD is blank or null if not used. The HD file will only be encoded if it exists. Must be an .m3u8 file.
 	 * @param inputFileSD is blank or null if not used. The SD file will only be encoded if it exists. Must be an .m3u8 file.
 	 * @param inputFileLOW is blank or null if not used. The LOW file will only be encoded if it exists. Must be an .m3u8 file.
 	 * @param inputFileA64 is blank or null if not used. The Audio64 file will only be encoded if it exists. Must be an .m3u8 file. REQUIRED
 	 * @param outputDir is the output location for the encodings.
 	 * */
-	private void encodeM3U8(String inputFileHD, String inputFileSD, String inputFileLOW, String inputFileA64, String outputDir) {
+	private void encodeM3U8(SubTaskGroup tasks, String inputFileHD, String inputFileSD, String inputFileLOW, String inputFileA64, String outputDir) {
 		if (inputFileA64 == null || inputFileA64.equals("")) {
 			LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("The 64k m3u8 file is required to encode copy."));
 			return;
 		}
 		
-		try {			
-			// Encode an HD version.
-			int hdBitrate = 0;
-			String hdOutputFileM3U8 = "";
-			boolean bHdEncoded = false;
-			if (inputFileHD != null && "".equals(inputFileHD) == false) {
-				bHdEncoded = true;
-
-				// Get the bitrate.
-				String tsFile = Paths.get(inputFileHD).getParent().toString() + "/0000.ts";
-				FFmpeg ffTs = new FFmpeg(pp.cid, pp.cno, tsFile, pp.jobIdNumber);
-				hdBitrate = ffTs.getBitrate();
-				
-				// Generate the HD m3u8 file.
-				hdOutputFileM3U8 = outputDir + "/HD/HD.m3u8";
-				FFmpeg ffmpeg = new FFmpeg(pp.cid, pp.cno, inputFileHD, pp.jobIdNumber);
-				ffmpeg.encodeM3U8(hdOutputFileM3U8, pp.clip_start_seconds, pp.getDurationSeconds(), 0, false, "HD");				
-			}
+		String inputs[] = {inputFileHD, inputFileSD, inputFileLOW, inputFileA64};
+		for (int i=0; i < ARCHIVE_RENDITIONS.length; i++) {
+			if (inputs[i] == null || "".equals(inputs[i]))
+				continue;
 			
-			// Encode an SD version.
-			int sdBitrate = 0;
-			String sdOutputFileM3U8 = "";
-			boolean bSdEncoded = false;
-			if (inputFileSD != null && "".equals(inputFileSD) == false) {
-				bSdEncoded = true;
-
-				// Get the bitrate.
-				String tsFile = Paths.get(inputFileSD).getParent().toString() + "/0000.ts";
-				FFmpeg ffTs = new FFmpeg(pp.cid, pp.cno, tsFile, pp.jobIdNumber);
-				sdBitrate = ffTs.getBitrate();
+			final String inputFile = inputs[i];
+			final String outputFileM3U8 = outputDir + "/" + ARCHIVE_RENDITIONS[i] + "/" + ARCHIVE_RENDITIONS[i] + ".m3u8";
+			final boolean audio64kOnly = i == ARCHIVE_RENDITIONS.length - 1;
+			final String textTag = ARCHIVE_RENDITIONS[i];
+			tasks.submit(new Runnable() {
+				public void run() {
+					try {
+						// The .ts files inside the clip are linked, only the ones at its edges are cut.
+						SegmentClipper clipper = new SegmentClipper(pp.cid, pp.cno, pp.jobIdNumber);
+						if (clipper.clip(inputFile, outputFileM3U8, pp.clip_start_seconds, pp.getDurationSeconds()))
+							return;
+						
+						FFmpeg ffmpeg = new FFmpeg(pp.cid, pp.cno, inputFile, pp.jobIdNumber);
+						ffmpeg.encodeM3U8(outputFileM3U8, pp.clip_start_seconds, pp.getDurationSeconds(), 0, audio64kOnly, textTag);
+					} catch (EncodeTimeoutException e) {
+						throw e;
+					} catch (Exception e) {
+						LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Unable to encode m3u8 [" + textTag + "]."), e);
+					}
+				}
+			});
+		}
+	}
+	
+	/** This will write the master playlists for the renditions copied by encodeM3U8(SubTaskGroup, ...). The bitrates are taken from
+	 * the first .ts file of each input.
+	 * */
+	private void writeArchiveMasterPlaylists(String inputFileHD, String inputFileSD, String inputFileLOW, String inputFileA64, String outputDir) {
+		if (inputFileA64 == null || inputFileA64.equals(""))
+			return;
+		
+		try {
+			String inputs[] = {inputFileHD, inputFileSD, inputFileLOW, inputFileA64};
+			int bitrates[] = new int[inputs.length];
+			List<Rendition> renditions = new ArrayList<Rendition>();
+			for (int i=0; i < ARCHIVE_RENDITIONS.length; i++) {
+				if (inputs[i] == null || "".equals(inputs[i]))
+					continue;
 				
-				// Generate the SD m3u8 file.
-				sdOutputFileM3U8 = outputDir + "/SD/SD.m3u8";
-				FFmpeg ffmpeg = new FFmpeg(pp.cid, pp.cno, inputFileSD, pp.jobIdNumber);
-				ffmpeg.encodeM3U8(sdOutputFileM3U8, pp.clip_start_seconds, pp.getDurationSeconds(), 0, false, "SD");				
-			}
-
-			// Encode an LOW version.
-			int lowBitrate = 0;
-			String lowOutputFileM3U8 = "";
-			boolean bLowEncoded = false;
-			if (inputFileLOW != null && "".equals(inputFileLOW) == false) {
-				bLowEncoded = true;
-
-				// Get the bitrate.
-				String tsFile = Paths.get(inputFileLOW).getParent().toString() + "/0000.ts";
-				FFmpeg ffTs = new FFmpeg(pp.cid, pp.cno, tsFile, pp.jobIdNumber);
-				lowBitrate = ffTs.getBitrate();
+				boolean audio64kOnly = i == ARCHIVE_RENDITIONS.length - 1;
+				if (audio64kOnly) {
+					bitrates[i] = 64000;
+				} else {
+					// Get the bitrate.
+					String tsFile = Paths.get(inputs[i]).getParent().toString() + "/0000.ts";
+					FFmpeg ffTs = new FFmpeg(pp.cid, pp.cno, tsFile, pp.jobIdNumber);
+					bitrates[i] = ffTs.getBitrate();
+				}
 				
-				// Generate the LOW m3u8 file.
-				lowOutputFileM3U8 = outputDir + "/LOW/LOW.m3u8";
-				FFmpeg ffmpeg = new FFmpeg(pp.cid, pp.cno, inputFileLOW, pp.jobIdNumber);
-				ffmpeg.encodeM3U8(lowOutputFileM3U8, pp.clip_start_seconds, pp.getDurationSeconds(), 0, false, "LOW");				
+				if (bitrates[i] > 0)
+					renditions.add(new Rendition(ARCHIVE_RENDITIONS[i], 0, audio64kOnly, bitrates[i]));
 			}
 			
-			// Encode an audio 64k version.
-			int audio64kBitrate = 0;
-			String a64kOutputFileM3U8 = "";
-			boolean b64kEncoded = false;
-			if (inputFileA64 != null && "".equals(inputFileA64) == false) {
-				b64kEncoded = true;
-				audio64kBitrate = 64000;
-				
-				// Generate the 64k m3u8 file.
-				a64kOutputFileM3U8 = outputDir + "/64k/64k.m3u8";
-				FFmpeg ffmpeg = new FFmpeg(pp.cid, pp.cno, inputFileA64, pp.jobIdNumber);
-				ffmpeg.encodeM3U8(a64kOutputFileM3U8, pp.clip_start_seconds, pp.getDurationSeconds(), 0, true, "64k");				
-			}
-
 			// Log the encoding options for HD and SD.
-			LogSystem.getInstance().printInfo(pp.cid, pp.cno, formatMessageForLog("Copy and clip m3u8 for HD:[encoded:" + bHdEncoded + "  bitrate:" + hdBitrate + "] SD:[encoded:" + bSdEncoded + "  bitrate:" + sdBitrate + "] LOW:[encoded:" + bLowEncoded + "  bitrate:" + lowBitrate + "] 64k:[encoded:" + b64kEncoded + "  bitrate:" + audio64kBitrate + "]"));
-						
-			// Create the master playlists.
-			M3U8MasterPlaylist masterPlaylist = new M3U8MasterPlaylist(pp.cid, pp.cno);
-			if (hdBitrate > 0)
-				masterPlaylist.add(new PlaylistInfo(hdBitrate, "HD", "HD/HD.m3u8"));
-			if (sdBitrate > 0)
-				masterPlaylist.add(new PlaylistInfo(sdBitrate, "SD", "SD/SD.m3u8"));
-			if (lowBitrate > 0)
-				masterPlaylist.add(new PlaylistInfo(lowBitrate, "LOW", "LOW/LOW.m3u8"));
-
-			// PC.
-			String outputFileM3U8 = outputDir + "/pc.m3u8";
-			masterPlaylist.setFilename(outputFileM3U8);
-			masterPlaylist.writeManual();
-
-			// iOS.
-			outputFileM3U8 = outputDir + "/ios.m3u8";
-			masterPlaylist.add(new PlaylistInfo(audio64kBitrate, "64k", "64k/64k.m3u8"));
-			masterPlaylist.setFilename(outputFileM3U8);
-			masterPlaylist.writeManual();
+			LogSystem.getInstance().printInfo(pp.cid, pp.cno, formatMessageForLog("Copy and clip m3u8 for HD:[encoded:" + !"".equals(inputFileHD) + "  bitrate:" + bitrates[0] + "] SD:[encoded:" + !"".equals(inputFileSD) + "  bitrate:" + bitrates[1] + "] LOW:[encoded:" + !"".equals(inputFileLOW) + "  bitrate:" + bitrates[2] + "] 64k:[encoded:true  bitrate:" + bitrates[3] + "]"));
 			
+			// Create the master playlists.
+			writeMasterPlaylists(outputDir, renditions);
 			
 		} catch (Exception e) {
 			LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Unable to encode m3u8."), e);
 		}
 	}
 	
-	/** This will encode the input video file to the folder outputfileNoExtension.
+	/** This will encode the input video file to the folder outputfileNoExtension. All of the renditions are encoded by
+	 * a single ffmpeg process so the input is only decoded once.
 	 * @param inputFile is the input video file to encode to m3u8.
 	 * @param outputDir is the directory the m3u8 will be encoded to. Should not have a slash at the end. /opt/gomedia/media/archive/clients/1/1_20130516113419
 	 * */
 	private void encodeM3U8(String inputFile, String outputDir) {
 		try {
+			// A whole recording may have been encoded as soon as it was complete.
+			if (pp.cmd == ProcessParameters.COMMAND.RECORDING && pp.clip_start_seconds == 0 && pp.getDurationSeconds() == 0 && !pp.force_reencoding) {
+				List<Rendition> renditions = RecordingWatcher.getInstance().claim(pp.cid, pp.cno, inputFile, outputDir, pp.jobIdNumber);
+				if (renditions != null) {
+					writeMasterPlaylists(outputDir, renditions);
+					return;
+				}
+			}
+
 			// Input file.
 			FFmpeg ffmpeg = new FFmpeg(pp.cid, pp.cno, inputFile, pp.jobIdNumber);
 			
@@ -386,83 +470,95 @@ public class MediaProcess {
 				origBitRate = ffmpeg.getBitrate();				
 			}
 
-			// Encode an HD version.
-			int hdBitrate = 0;
-			String hdOutputFileM3U8 = "";
-			boolean bHdEncoded = false;
-			if (origBitRate > BITRATE_SD_MAX_CAP) {
-				// Does the HD version need to be re-encoded?
-				if (origBitRate > BITRATE_HD_MAX_CAP)
-					hdBitrate = BITRATE_HD_MAX_CAP;
-				else if (pp.force_reencoding)
-					hdBitrate = origBitRate;
-
-				// Generate the HD m3u8 file.
-				hdOutputFileM3U8 = outputDir + "/HD/HD.m3u8";
-				ffmpeg.encodeM3U8(hdOutputFileM3U8, pp.clip_start_seconds, pp.getDurationSeconds(), hdBitrate, false, "HD");
-				
-				// Make sure we save the HD bitrate.
-				if (hdBitrate == 0)
-					hdBitrate = origBitRate;
-				bHdEncoded = true;
-			}
-
-			// Encode an SD version.
-			int sdBitrate = 0;
-			String sdOutputFileM3U8 = "";
-			boolean bSdEncoded = false;
-			if (origBitRate > BITRATE_LOW_MAX_CAP) {
-				// Does the SD version need to be re-encoded?
-				if (origBitRate > BITRATE_SD_MAX_CAP)
-					sdBitrate = BITRATE_SD_MAX_CAP;
-				else if (pp.force_reencoding)
-					sdBitrate = origBitRate;
-
-				// Generate the SD m3u8 file.
-				sdOutputFileM3U8 = outputDir + "/SD/SD.m3u8";
-				ffmpeg.encodeM3U8(sdOutputFileM3U8, pp.clip_start_seconds, pp.getDurationSeconds(), sdBitrate, false, "SD");
-				
-				// Make sure we save the SD bitrate.
-				if (sdBitrate == 0)
-					sdBitrate = origBitRate;				
-				bSdEncoded = true;
-			}
+			List<Rendition> renditions = planLadder(origBitRate, pp.force_reencoding);
 			
 			// Log the encoding options for HD and SD.
-			LogSystem.getInstance().printInfo(pp.cid, pp.cno, formatMessageForLog("Encoding m3u8 options for HD:[encoded:" + bHdEncoded + "  bitrate:" + hdBitrate + "] SD:[encoded:" + bSdEncoded + "  bitrate:" + sdBitrate + "] for input file:[" + inputFile + "]"));
-			
-			// Encode an LOW version.
-			int lowBitrate = BITRATE_LOW_MAX_CAP;			
-			String lowOutputFileM3U8 = outputDir + "/LOW/LOW.m3u8";
-			ffmpeg.encodeM3U8(lowOutputFileM3U8, pp.clip_start_seconds, pp.getDurationSeconds(), lowBitrate, false, "LOW");
+			LogSystem.getInstance().printInfo(pp.cid, pp.cno, formatMessageForLog("Encoding m3u8 options for " + renditions + " for input file:[" + inputFile + "]"));
 			
-			// Encode an 64k audio only version.
-			int audio64kBitrate = 64000;
-			String a64kOutputFileM3U8 = outputDir + "/64k/64k.m3u8";
-			ffmpeg.encodeM3U8(a64kOutputFileM3U8, pp.clip_start_seconds, pp.getDurationSeconds(), audio64kBitrate, true, "64k");
+			// Encode all of the renditions in one pass, unless it is long enough to be encoded in chunks at the same time.
+			ChunkedEncoder chunked = new ChunkedEncoder(pp.cid, pp.cno, inputFile, pp.jobIdNumber);
+			if (!chunked.encodeM3U8Ladder(outputDir, pp.clip_start_seconds, pp.getDurationSeconds(), renditions))
+				ffmpeg.encodeM3U8Ladder(outputDir, pp.clip_start_seconds, pp.getDurationSeconds(), renditions);
 			
 			// Create the master playlists.
-			M3U8MasterPlaylist masterPlaylist = new M3U8MasterPlaylist(pp.cid, pp.cno);
-			if (hdBitrate > 0)
-				masterPlaylist.add(new PlaylistInfo(hdBitrate, "HD", "HD/HD.m3u8"));
-			if (sdBitrate > 0)
-				masterPlaylist.add(new PlaylistInfo(sdBitrate, "SD", "SD/SD.m3u8"));
-			masterPlaylist.add(new PlaylistInfo(lowBitrate, "LOW", "LOW/LOW.m3u8"));
-
-			// PC.
-			String outputFileM3U8 = outputDir + "/pc.m3u8";
-			masterPlaylist.setFilename(outputFileM3U8);
-			masterPlaylist.writeManual();
-
-			// iOS.
-			outputFileM3U8 = outputDir + "/ios.m3u8";
-			masterPlaylist.add(new PlaylistInfo(audio64kBitrate, "64k", "64k/64k.m3u8"));
-			masterPlaylist.setFilename(outputFileM3U8);
-			masterPlaylist.writeManual();
-			
+			writeMasterPlaylists(outputDir, renditions);
 			
+		} catch (EncodeTimeoutException e) {
+			throw e;
 		} catch (Exception e) {
 			LogSystem.getInstance().printError(pp.cid, pp.cno, formatMessageForLog("Unable to encode m3u8."), e);
 		}
 	}
+	
+	/** This will determine the renditions to encode for an input.
+	 * HD: Only if the bitrate is above the SD cap. Re-encoded if above the HD cap or if forced.
+	 * SD: Only if the bitrate is above the LOW cap. Re-encoded if above the SD cap or if forced.
+	 * LOW: Always re-encoded.
+	 * 64k: Always, audio only.
+	 * @param origBitRate is the bitrate of the input.
+	 * @param forceReencoding is true if HD and SD should be re-encoded even if under their caps.
+	 * @return the renditions in the order HD, SD, LOW, 64k.
+	 * */
+	public static List<Rendition> planLadder(int origBitRate, boolean forceReencoding) {
+		List<Rendition> renditions = new ArrayList<Rendition>();
+		
+		// Encode an HD version.
+		if (origBitRate > BITRATE_SD_MAX_CAP) {
+			// Does the HD version need to be re-encoded?
+			int hdBitrate = 0;
+			if (origBitRate > BITRATE_HD_MAX_CAP)
+				hdBitrate = BITRATE_HD_MAX_CAP;
+			else if (forceReencoding)
+				hdBitrate = origBitRate;
+			
+			// Make sure we save the HD bitrate.
+			renditions.add(new Rendition("HD", hdBitrate, false, hdBitrate == 0 ? origBitRate : hdBitrate));
+		}
+
+		// Encode an SD version.
+		if (origBitRate > BITRATE_LOW_MAX_CAP) {
+			// Does the SD version need to be re-encoded?
+			int sdBitrate = 0;
+			if (origBitRate > BITRATE_SD_MAX_CAP)
+				sdBitrate = BITRATE_SD_MAX_CAP;
+			else if (forceReencoding)
+				sdBitrate = origBitRate;
+			
+			// Make sure we save the SD bitrate.
+			renditions.add(new Rendition("SD", sdBitrate, false, sdBitrate == 0 ? origBitRate : sdBitrate));
+		}
+		
+		// Encode an LOW version.
+		renditions.add(new Rendition("LOW", BITRATE_LOW_MAX_CAP, false, BITRATE_LOW_MAX_CAP));
+		
+		// Encode an 64k audio only version.
+		renditions.add(new Rendition("64k", 64000, true, 64000));
+		
+		return renditions;
+	}
+	
+	/** This will write the pc.m3u8 and ios.m3u8 master playlists for the renditions. The pc.m3u8 leaves out the audio only rendition.
+	 * @param outputDir is the directory the renditions were encoded to. Should not have a slash at the end.
+	 * */
+	private void writeMasterPlaylists(String outputDir, List<Rendition> renditions) {
+		M3U8MasterPlaylist masterPlaylist = new M3U8MasterPlaylist(pp.cid, pp.cno);
+		for (Rendition rendition : renditions) {
+			if (!rendition.audio64kOnly)
+				masterPlaylist.add(new PlaylistInfo(rendition.bandwidth, rendition.name, rendition.getChildPlaylist()));
+		}
+
+		// PC.
+		String outputFileM3U8 = outputDir + "/pc.m3u8";
+		masterPlaylist.setFilename(outputFileM3U8);
+		masterPlaylist.writeManual();
+
+		// iOS.
+		outputFileM3U8 = outputDir + "/ios.m3u8";
+		for (Rendition rendition : renditions) {
+			if (rendition.audio64kOnly)
+				masterPlaylist.add(new PlaylistInfo(rendition.bandwidth, rendition.name, rendition.getChildPlaylist()));
+		}
+		masterPlaylist.setFilename(outputFileM3U8);
+		masterPlaylist.writeManual();
+	}
 }
@@ -0,0 +1,65 @@
+package jEncoder.media;
+
+import org.apache.commons.exec.LogOutputStream;
+
+/** This keeps only the last lines written by a process, ie, the stderr of ffmpeg or ffprobe. The lines are read as they
+ * are written and older lines are dropped, so the memory used is the same no matter how long the process runs.
+ * The lines are only kept to show what went wrong when the process fails.
+ * */
+public class OutputTail extends LogOutputStream {
+
+	/** The number of lines kept by default. */
+	public static final int DEFAULT_LINES = 20;
+
+	/** The longest line kept, longer lines are cut. */
+	private static final int MAX_LINE_LENGTH = 512;
+
+	/** The last lines, lines[next] is the oldest once the ring is full. */
+	private final String lines[];
+
+	/** Where the next line goes. */
+	private int next = 0;
+
+	/** The number of lines in the ring. */
+	private int count = 0;
+
+	public OutputTail() {
+		this(DEFAULT_LINES);
+	}
+
+	/** @param maxLines is the number of lines to keep.
+	 * */
+	public OutputTail(int maxLines) {
+		this.lines = new String[Math.max(1, maxLines)];
+	}
+
+	@Override
+	protected synchronized void processLine(String line, int logLevel) {
+		if (line.trim().isEmpty())
+			return;
+		if (line.length() > MAX_LINE_LENGTH)
+			line = line.substring(0, MAX_LINE_LENGTH) + "...";
+
+		lines[next] = line;
+		next = (next + 1) % lines.length;
+		if (count < lines.length)
+			count++;
+	}
+
+	/** @return the lines kept, oldest first, separated by " | ". Blank if none.
+	 * */
+	public synchronized String getTail() {
+		StringBuffer sb = new StringBuffer();
+		int start = (next - count + lines.length) % lines.length;
+		for (int i=0; i < count; i++) {
+			if (i > 0)
+				sb.append(" | ");
+			sb.append(lines[(start + i) % lines.length]);
+		}
+		return sb.toString();
+	}
+
+	public String toString() {
+		return getTail();
+	}
+}
@@ -4,10 +4,10 @@ import org.json.simple.JSONObject;
 
 public class ProcessParameters {
 	
-	private static final String RECORDING_PATH = "/opt/recordings/";
-	private static final String ARCHIVE_PATH = "/opt/archive/clients/";
+	static final String RECORDING_PATH = "/opt/recordings/";
+	static final String ARCHIVE_PATH = "/opt/archive/clients/";
 	private static final String BACKUP_PATH = "/opt/recordings_backup/";
-	private static final String DOWNLOAD_PATH = "/opt/downloads/";
+	static final String DOWNLOAD_PATH = "/opt/downloads/";
 	
 	/** PRERECORDING: The file needs to be processed so that it can be viewed in recording. 
 	 * RECORDING: The file is from the recording path.
@@ -62,6 +62,10 @@ public class ProcessParameters {
 	public boolean force_reencoding;
 	/** an Unique Job ID number assigned to this. */
 	public String jobIdNumber;
+	/** The number of times the job has been started. */
+	public int attempts = 0;
+	/** The JSON the job was created from, null if it was not created from JSON. */
+	public JSONObject json;
 	
 	
 	private ProcessParameters(String filename) {
@@ -78,6 +82,13 @@ public class ProcessParameters {
 	/** This will create a new ProcessParameters
 	 * */
 	public static ProcessParameters newProcessParametersUsingJSON(JSONObject obj, String jobIdNumber) {
+		ProcessParameters pp = parseJSON(obj, jobIdNumber);
+		if (pp != null)
+			pp.json = obj;
+		return pp;
+	}
+	
+	private static ProcessParameters parseJSON(JSONObject obj, String jobIdNumber) {
 		
 		// Can be New, Archive, In, Out.
 		String type = (String)obj.get("type");
@@ -255,6 +266,18 @@ public class ProcessParameters {
 		return "";
 	}
 	
+	/** @return the key that identifies this job. Two jobs with the same key do the same work.
+	 * */
+	public String getJobKey() {
+		if (cmd == COMMAND.RECORDING || cmd == COMMAND.ARCHIVE)
+			return cmd + ":" + cid + ":" + viid + ":" + clip_start_seconds + ":" + clip_end_seconds + ":" + outputFilename;
+		else if (cmd == COMMAND.IN || cmd == COMMAND.OUT)
+			return cmd + ":" + cid + ":" + ioviid + ":" + cmdInOut;
+		else if (cmd == COMMAND.DOWNLOAD)
+			return cmd + ":" + cid + ":" + dhid;
+		return cmd + ":" + cid + ":" + jobIdNumber;
+	}
+	
 	public int getDurationSeconds() {
 		return clip_end_seconds - clip_start_seconds;
 	}
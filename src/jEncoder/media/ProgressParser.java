@@ -0,0 +1,30 @@
+package jEncoder.media;
+
+import org.apache.commons.exec.LogOutputStream;
+
+/** This reads the output of "ffmpeg -progress pipe:1" as it is written and updates the EncodeProgress with it.
+ * Example of the lines:
+ *   frame=1234
+ *   fps=87.5
+ *   bitrate=1402.3kbits/s
+ *   out_time_us=41200000
+ *   speed=2.91x
+ *   progress=continue
+ * */
+public class ProgressParser extends LogOutputStream {
+
+	/** The progress to update. */
+	private final EncodeProgress progress;
+
+	public ProgressParser(EncodeProgress progress) {
+		this.progress = progress;
+	}
+
+	@Override
+	protected void processLine(String line, int logLevel) {
+		int equalIndex = line.indexOf('=');
+		if (equalIndex < 1)
+			return;
+		progress.update(line.substring(0, equalIndex).trim(), line.substring(equalIndex + 1).trim());
+	}
+}
@@ -0,0 +1,99 @@
+package jEncoder.media;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jEncoder.util.LogSystem;
+
+/** This puts the recordings in the export path while their jobs encode them, instead of the job waiting on a copy of the
+ * whole recording first. The recording is copied with FileCloner, which links it when it can. The job waits for its
+ * export before it deletes the recording.
+ *
+ * The metrics count the exports by how they were copied, export_hard_link, export_reflink and export_transfer, and the
+ * bytes that did not have to be written, export_bytes_saved, against the bytes that were, export_bytes_copied.
+ * */
+public class RecordingExporter {
+
+	/** The exports run on their own threads, two at a time so a slow copy does not hold up the rest. */
+	private final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Export-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static RecordingExporter instance = null;
+
+	// [start] Methods: Constructor and getInstance()
+
+	protected RecordingExporter() {
+	}
+
+	public static synchronized RecordingExporter getInstance() {
+		if (instance == null) {
+			instance = new RecordingExporter();
+		}
+		return instance;
+	}
+
+	// [end]
+
+	/** This will start the export of the recording.
+	 * @return the export, pass it to await() before the recording is deleted.
+	 * @param inputFile is the recording.
+	 * @param exportFile is where it is exported to. It is not replaced if it exists.
+	 * */
+	public Future<?> export(final int clientId, final int channelNo, final String inputFile, final String exportFile, final String jobIdNumber) {
+		return executor.submit(new Runnable() {
+			public void run() {
+				long startTime = System.currentTimeMillis();
+				try {
+					Path source = Paths.get(inputFile);
+					long size = Files.size(source);
+					FileCloner.Strategy strategy = FileCloner.cloneFile(source, Paths.get(exportFile));
+
+					EncoderMetrics metrics = EncoderMetrics.getInstance();
+					metrics.increment("export_" + strategy.name().toLowerCase());
+					metrics.add(strategy == FileCloner.Strategy.TRANSFER ? "export_bytes_copied" : "export_bytes_saved", size);
+
+					LogSystem.getInstance().printInfo(clientId, channelNo, "Job [" + jobIdNumber + "] Exported " + inputFile + " to " + exportFile + " as a " + strategy
+						+ " size:[" + size + "] in " + (System.currentTimeMillis() - startTime) + " ms");
+				} catch (Exception e) {
+					LogSystem.getInstance().printError(clientId, channelNo, "Job [" + jobIdNumber + "] Unable to copy file.", e);
+				}
+			}
+		});
+	}
+
+	/** This will wait for the export to be done. The wait is not given up if the thread is interrupted.
+	 * */
+	public void await(Future<?> export) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					export.get();
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					return;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,421 @@
+package jEncoder.media;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import jEncoder.Configuration;
+import jEncoder.util.LogSystem;
+
+/** This watches the recordings directory so the work on a new recording can start before its job comes in from the web
+ * server. A recording is complete once its size and modified time have not changed for RECORDING_STABLE_SECONDS. It is
+ * then probed, which puts it in the MediaInfoCache the job's probes will be answered from, and if RECORDING_PRESEGMENT is
+ * 1 its HLS renditions are encoded into a staging directory next to where the job puts them:
+ *   /opt/archive/clients/<cid>/.ingest/<recording without extension>/
+ * When the job gets to the renditions it claims them with claim() and they are moved into place instead of encoded. If
+ * they are still being encoded the job waits on them. Renditions that are never claimed are removed after a day.
+ *
+ * Only a plain recording job can use them, ie, no clip and no forced re-encoding, the same as they were encoded.
+ * */
+public class RecordingWatcher {
+
+	/** How often the recordings that are growing are checked. (seconds) */
+	private static final int CHECK_INTERVAL = 5;
+
+	/** Renditions not claimed after this long are removed. (milliseconds) */
+	private static final long MAX_STAGING_AGE = TimeUnit.HOURS.toMillis(24);
+
+	/** The directory in a client's archive the renditions are staged in. */
+	private static final String STAGING_DIR = ".ingest";
+
+	/** The job id the work done ahead of a job is logged under. */
+	private static final String JOB_ID = "ingest";
+
+	/** A recording that has been seen. */
+	private static class Recording {
+		/** The size and modified time when last checked. */
+		long size = -1;
+		long lastModified = -1;
+		/** When the size or modified time last changed. (milliseconds) */
+		long changedAt = System.currentTimeMillis();
+		/** The renditions being encoded ahead of the job, null if not. The result is null if they could not be. */
+		FutureTask<List<Rendition>> presegment;
+		/** Where the renditions are being encoded to. */
+		Path stagingDir;
+		/** When the work was started. (milliseconds) */
+		long startedAt;
+		/** True once the recording is claimed or gone, no work is started for it after that. Guarded by the recording. */
+		boolean dropped;
+		/** True once its renditions have started to be encoded. Guarded by the recording. */
+		boolean encoding;
+	}
+
+	private static RecordingWatcher instance = null;
+
+	/** The recordings by their path that are growing or have had their work started. */
+	private final ConcurrentHashMap<String, Recording> mapRecordings = new ConcurrentHashMap<String, Recording>();
+
+	/** The watched directories by their key. Only used by the watch thread. */
+	private final HashMap<WatchKey, Path> mapKeys = new HashMap<WatchKey, Path>();
+
+	/** Checks the recordings that are growing. */
+	private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(newThreadFactory("RecordingCheck"));
+
+	/** Does the work on the complete recordings, one at a time so the encoding jobs keep the most of the cpu. */
+	private final ExecutorService ingester = Executors.newSingleThreadExecutor(newThreadFactory("RecordingIngest"));
+
+	private WatchService watchService;
+
+	// [start] Methods: Constructor and getInstance()
+
+	protected RecordingWatcher() {
+	}
+
+	public static synchronized RecordingWatcher getInstance() {
+		if (instance == null) {
+			instance = new RecordingWatcher();
+		}
+		return instance;
+	}
+
+	// [end]
+
+	/** This will start watching the recordings directory. Does nothing if RECORDING_STABLE_SECONDS is 0 or it is already started.
+	 * */
+	public synchronized void start() {
+		if (Configuration.getInstance().getRecordingStableSeconds() <= 0 || watchService != null)
+			return;
+
+		Path root = Paths.get(ProcessParameters.RECORDING_PATH);
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			register(root);
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+				for (Path path : stream) {
+					if (Files.isDirectory(path))
+						registerClient(path);
+				}
+			}
+		} catch (Exception e) {
+			LogSystem.getInstance().printError("Unable to watch the recordings path: " + root, e);
+			return;
+		}
+
+		Thread thread = newThreadFactory("RecordingWatch").newThread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		});
+		thread.start();
+
+		checker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					check();
+				} catch (Exception e) {
+					LogSystem.getInstance().printError("Unable to check the recordings.", e);
+				}
+			}
+		}, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.SECONDS);
+
+		LogSystem.getInstance().printInfo(0, 0, "Watching recordings: " + root + " presegment:[" + (Configuration.getInstance().getRecordingPresegment() == 1) + "]");
+	}
+
+	/** This is called by a recording job that is about to encode the HLS renditions of the recording.
+	 * @return the renditions, moved into the output directory, if they were encoded ahead of the job. null if they were
+	 *         not or could not be, the job should encode them.
+	 * @param file is the recording.
+	 * @param outputDir is where the job puts the renditions.
+	 * */
+	public List<Rendition> claim(int clientId, int channelNo, String file, String outputDir, String jobIdNumber) {
+		Recording recording = mapRecordings.remove(file);
+		if (recording == null)
+			return null;
+
+		FutureTask<List<Rendition>> presegment = drop(recording);
+		if (presegment == null) {
+			removeStaging(recording);
+			return null;
+		}
+
+		List<Rendition> renditions = null;
+		try {
+			// The recording must not have changed since the renditions were started.
+			BasicFileAttributes attrs = Files.readAttributes(Paths.get(file), BasicFileAttributes.class);
+			if (attrs.size() == recording.size && attrs.lastModifiedTime().toMillis() == recording.lastModified) {
+				if (!presegment.isDone())
+					LogSystem.getInstance().printInfo(clientId, channelNo, "Job [" + jobIdNumber + "] Waiting on the renditions being encoded ahead: " + recording.stagingDir);
+				renditions = presegment.get();
+			}
+
+			if (renditions != null) {
+				Files.createDirectories(Paths.get(outputDir));
+				for (Rendition rendition : renditions) {
+					Path target = Paths.get(outputDir, rendition.name);
+					if (Files.exists(target))
+						MediaProcess.deleteRecursively(target);
+					Files.move(recording.stagingDir.resolve(rendition.name), target, StandardCopyOption.ATOMIC_MOVE);
+				}
+				EncoderMetrics.getInstance().increment("recordings_presegment_used");
+				LogSystem.getInstance().printInfo(clientId, channelNo, "Job [" + jobIdNumber + "] Using the renditions encoded ahead: " + renditions);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			renditions = null;
+		} catch (ExecutionException e) {
+			renditions = null;
+		} catch (Exception e) {
+			LogSystem.getInstance().printError(clientId, channelNo, "Job [" + jobIdNumber + "] Unable to use the renditions encoded ahead: " + recording.stagingDir, e);
+			renditions = null;
+		}
+
+		removeStaging(recording);
+		return renditions;
+	}
+
+	/** This will stop any work being started for the recording once it is out of mapRecordings. Renditions that are
+	 * queued but have not started to be encoded are cancelled, the job encodes them itself sooner than it would wait on
+	 * the queue.
+	 * @return the renditions that are being or have been encoded, null if there are none.
+	 * */
+	private FutureTask<List<Rendition>> drop(Recording recording) {
+		synchronized (recording) {
+			recording.dropped = true;
+			if (recording.presegment != null && !recording.encoding) {
+				recording.presegment.cancel(false);
+				return null;
+			}
+			return recording.presegment;
+		}
+	}
+
+	/** This is the watch thread. It starts watching the client directories as they are created and notes the recordings
+	 * that are written to.
+	 * */
+	private void watch() {
+		while (true) {
+			try {
+				WatchKey key = watchService.take();
+				Path dir = mapKeys.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW)
+						continue;
+
+					Path path = dir.resolve((Path)event.context());
+					if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+						Recording recording = mapRecordings.remove(path.toString());
+						if (recording != null) {
+							drop(recording);
+							removeStaging(recording);
+						}
+					} else if (Files.isDirectory(path)) {
+						if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && dir.equals(Paths.get(ProcessParameters.RECORDING_PATH)))
+							registerClient(path);
+					} else if (!dir.equals(Paths.get(ProcessParameters.RECORDING_PATH))) {
+						mapRecordings.putIfAbsent(path.toString(), new Recording());
+					}
+				}
+
+				if (!key.reset())
+					mapKeys.remove(key);
+
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			} catch (Exception e) {
+				LogSystem.getInstance().printError("Recording watch error.", e);
+			}
+		}
+	}
+
+	/** This will start the work on the recordings that have stopped growing, and remove the staged renditions that were
+	 * never claimed.
+	 * */
+	private void check() {
+		long now = System.currentTimeMillis();
+		long stableTime = TimeUnit.SECONDS.toMillis(Configuration.getInstance().getRecordingStableSeconds());
+
+		Iterator<Map.Entry<String, Recording>> itr = mapRecordings.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<String, Recording> entry = itr.next();
+			final String file = entry.getKey();
+			final Recording recording = entry.getValue();
+
+			if (recording.startedAt > 0) {
+				if (now - recording.startedAt > MAX_STAGING_AGE && mapRecordings.remove(file, recording)) {
+					drop(recording);
+					removeStaging(recording);
+				}
+				continue;
+			}
+
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(Paths.get(file), BasicFileAttributes.class);
+			} catch (IOException e) {
+				itr.remove();
+				continue;
+			}
+
+			if (attrs.size() != recording.size || attrs.lastModifiedTime().toMillis() != recording.lastModified) {
+				recording.size = attrs.size();
+				recording.lastModified = attrs.lastModifiedTime().toMillis();
+				recording.changedAt = now;
+			} else if (now - recording.changedAt >= stableTime && recording.size > 0) {
+				startWork(file, recording);
+			}
+		}
+	}
+
+	/** This will probe the recording and if turned on encode its renditions. Nothing is started if its job has already
+	 * claimed it.
+	 * */
+	private void startWork(final String file, final Recording recording) {
+		synchronized (recording) {
+			if (recording.dropped || mapRecordings.get(file) != recording)
+				return;
+
+			recording.startedAt = System.currentTimeMillis();
+			final int ids[] = getIds(file);
+
+			// Probing is quick, it is done even when the renditions are not encoded.
+			if (Configuration.getInstance().getRecordingPresegment() != 1) {
+				ingester.submit(new Runnable() {
+					public void run() {
+						MediaInfoCache.getInstance().get(ids[0], ids[1], file, JOB_ID);
+						EncoderMetrics.getInstance().increment("recordings_probed");
+					}
+				});
+				return;
+			}
+
+			String name = Paths.get(file).getFileName().toString();
+			int dot = name.lastIndexOf('.');
+			recording.stagingDir = Paths.get(ProcessParameters.ARCHIVE_PATH + ids[0], STAGING_DIR, dot > 0 ? name.substring(0, dot) : name);
+			recording.presegment = new FutureTask<List<Rendition>>(new Callable<List<Rendition>>() {
+				public List<Rendition> call() throws Exception {
+					// The job may have claimed it while it was queued.
+					synchronized (recording) {
+						if (recording.dropped)
+							return null;
+						recording.encoding = true;
+					}
+					return presegment(ids[0], ids[1], file, recording.stagingDir);
+				}
+			});
+			ingester.submit(recording.presegment);
+		}
+	}
+
+	/** @return the renditions of the recording encoded into the staging directory, null if they could not be.
+	 * */
+	private List<Rendition> presegment(int clientId, int channelNo, String file, Path stagingDir) {
+		try {
+			if (Files.exists(stagingDir))
+				MediaProcess.deleteRecursively(stagingDir);
+			Files.createDirectories(stagingDir);
+
+			FFmpeg ffmpeg = new FFmpeg(clientId, channelNo, file, JOB_ID);
+			List<Rendition> renditions = MediaProcess.planLadder(ffmpeg.getBitrate(), false);
+			LogSystem.getInstance().printInfo(clientId, channelNo, "Job [" + JOB_ID + "] Encoding " + renditions + " ahead for recording:[" + file + "]");
+
+			ffmpeg.encodeM3U8Ladder(stagingDir.toString(), 0, 0, renditions);
+			for (Rendition rendition : renditions) {
+				if (!Files.exists(stagingDir.resolve(rendition.getChildPlaylist())))
+					return null;
+			}
+
+			EncoderMetrics.getInstance().increment("recordings_presegmented");
+			return renditions;
+		} catch (Exception e) {
+			LogSystem.getInstance().printError(clientId, channelNo, "Job [" + JOB_ID + "] Unable to encode ahead for recording:[" + file + "]", e);
+			return null;
+		}
+	}
+
+	/** This will remove the staged renditions of the recording once nothing is encoding them.
+	 * */
+	private void removeStaging(final Recording recording) {
+		if (recording.stagingDir == null)
+			return;
+
+		ingester.submit(new Runnable() {
+			public void run() {
+				try {
+					if (Files.exists(recording.stagingDir))
+						MediaProcess.deleteRecursively(recording.stagingDir);
+				} catch (Exception e) {
+					LogSystem.getInstance().printError("Unable to remove the staged renditions: " + recording.stagingDir, e);
+				}
+			}
+		});
+	}
+
+	private void register(Path dir) throws IOException {
+		WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		mapKeys.put(key, dir);
+	}
+
+	/** This will watch the client's directory. The recordings already in it are checked like new ones, they may have
+	 * been written while the encoder was down.
+	 * */
+	private void registerClient(Path dir) throws IOException {
+		register(dir);
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				if (Files.isRegularFile(path))
+					mapRecordings.putIfAbsent(path.toString(), new Recording());
+			}
+		}
+	}
+
+	/** @return the client id and channel # of the recording. Example: /opt/recordings/1/1_2_20150505145533.mp4 -> 1, 2.
+	 * 0 if the path does not have them.
+	 * */
+	private static int[] getIds(String file) {
+		int ids[] = {0, 0};
+		Path path = Paths.get(file);
+		try {
+			ids[0] = Integer.parseInt(path.getParent().getFileName().toString());
+			String components[] = path.getFileName().toString().split("_");
+			if (components.length > 2)
+				ids[1] = Integer.parseInt(components[1]);
+		} catch (NumberFormatException e) {
+			;
+		}
+		return ids;
+	}
+
+	private static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
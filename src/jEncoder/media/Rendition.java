@@ -0,0 +1,34 @@
+package jEncoder.media;
+
+/** One rendition of the HLS ladder, ie, HD, SD, LOW, or 64k. The rendition is written to <outputDir>/<name>/<name>.m3u8.
+ * */
+public class Rendition {
+	/** The name of the rendition and its directory. Example: HD. */
+	public final String name;
+
+	/** The video bitrate it should be encoded at, ex: 500000. 0 = copy video over. */
+	public final int reEncodeBitRate;
+
+	/** True if should encode audio only and at 64k. */
+	public final boolean audio64kOnly;
+
+	/** The bandwidth in bits the master playlist lists for this rendition. */
+	public final int bandwidth;
+
+	public Rendition(String name, int reEncodeBitRate, boolean audio64kOnly, int bandwidth) {
+		this.name = name;
+		this.reEncodeBitRate = reEncodeBitRate;
+		this.audio64kOnly = audio64kOnly;
+		this.bandwidth = bandwidth;
+	}
+
+	/** @return the child playlist relative to the output directory. Example: HD/HD.m3u8
+	 * */
+	public String getChildPlaylist() {
+		return name + "/" + name + ".m3u8";
+	}
+
+	public String toString() {
+		return "{Rendition name:[" + name + "] reEncodeBitRate:[" + reEncodeBitRate + "] audio64kOnly:[" + audio64kOnly + "] bandwidth:[" + bandwidth + "]}";
+	}
+}
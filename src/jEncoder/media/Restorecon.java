@@ -4,9 +4,13 @@ import jEncoder.util.LogSystem;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteWatchdog;
 
 public class Restorecon {
     public static final String RESTORECON_PATH = "/sbin/restorecon";
+    
+    /** How long restorecon can run before it is killed. (1000 = 1 second). */
+    private static final long TIMEOUT = 1000 * 60 * 10;
 
     // Client information.
     int clientId;
@@ -31,13 +35,18 @@ public class Restorecon {
     	cmdLine.addArgument(inputDirectoryPath + "*");
 
     	DefaultExecutor executor = new DefaultExecutor();
+    	ExecuteWatchdog watchdog = new ExecuteWatchdog(TIMEOUT);
+    	executor.setWatchdog(watchdog);
 //    	int exitValues[] = {0,1};
 //    	executor.setExitValues(exitValues);
 
     	try {
     		executor.execute(cmdLine);
     	} catch (Exception e) {
-			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Output file does not exist."), e);
+    		if (watchdog.killedProcess())
+    			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("restorecon was killed after [" + TIMEOUT / 1000 + "] seconds."));
+    		else
+    			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Output file does not exist."), e);
     	}
 	}
 
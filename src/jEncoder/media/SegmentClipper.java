@@ -0,0 +1,153 @@
+package jEncoder.media;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import jEncoder.apple_hls.M3U8ChildPlaylist;
+import jEncoder.apple_hls.TsInfo;
+import jEncoder.util.LogSystem;
+
+/** This clips an archive rendition without running its whole playlist through ffmpeg. Where each .ts file falls in the
+ * video is worked out from the #EXTINF durations before it. The .ts files that are all inside the clip are put in the
+ * output as they are with FileCloner, ie, hard linked, only the two at the edges of the clip are cut with ffmpeg. The
+ * clip is numbered from 0000.ts and written to its own playlist the same as the segmenter would have.
+ *
+ * The cut .ts files start at the key frame before the clip's start, the same as a copy with ffmpeg -ss does. Their
+ * timestamps are kept so they play on into the linked files.
+ * */
+public class SegmentClipper {
+
+	/** Times closer than this are the same. (seconds) */
+	private static final float EPSILON = 0.001f;
+
+	/** A part of an edge .ts file shorter than this is left out of the clip. (seconds) */
+	private static final float MIN_PART = 0.1f;
+
+	// Client information.
+	private int clientId;
+	private int channelNo;
+
+	/** The job ID number. */
+	private String jobIdNumber;
+
+	public SegmentClipper(int clientId, int channelNo, String jobIdNumber) {
+		this.clientId = clientId;
+		this.channelNo = channelNo;
+		this.jobIdNumber = jobIdNumber;
+	}
+
+	private String formatMessageForLog(String message) {
+		return "Job [" + jobIdNumber + "] " + message;
+	}
+
+	/** This will clip the rendition.
+	 * @return false if it could not be clipped this way, ie, the playlist has a discontinuity, the output is the input, or a
+	 *         .ts file could not be copied or cut. Nothing is left in the output directory, clip it with ffmpeg.
+	 * @param inputM3U8 is the rendition's playlist.
+	 * @param outputM3U8 is the playlist of the clip. Its .ts files are written next to it.
+	 * @param startSeconds is where the clip starts.
+	 * @param durationSeconds is the length of the clip. 0 = to the end.
+	 * */
+	public boolean clip(String inputM3U8, String outputM3U8, int startSeconds, int durationSeconds) {
+		Path inputDir = Paths.get(inputM3U8).toAbsolutePath().getParent();
+		Path outputDir = Paths.get(outputM3U8).toAbsolutePath().getParent();
+		if (inputDir.equals(outputDir))
+			return false;
+
+		M3U8ChildPlaylist input = new M3U8ChildPlaylist(clientId, channelNo);
+		input.setFilename(inputM3U8);
+		input.read();
+		if (input.countVideos() == 0)
+			return false;
+
+		float clipStart = startSeconds;
+		float clipEnd = durationSeconds > 0 ? startSeconds + durationSeconds : Float.MAX_VALUE;
+
+		M3U8ChildPlaylist output = new M3U8ChildPlaylist(clientId, channelNo);
+		output.setFilename(outputM3U8);
+		output.setWindow(Integer.MAX_VALUE, 0);
+		output.copyHeader(input);
+
+		int linked = 0;
+		int cut = 0;
+		try {
+			Files.createDirectories(outputDir);
+
+			float time = 0;
+			for (int i=0; i < input.getTsInfoCount() && time < clipEnd - EPSILON; i++) {
+				TsInfo tsInfo = input.getTsInfo(i);
+				if (tsInfo.getType() == TsInfo.Type.DISCONTINUITY)
+					return remove(outputDir, false);
+				if (tsInfo.getType() != TsInfo.Type.VIDEO_FILE)
+					continue;
+
+				float segmentStart = time;
+				float segmentEnd = time + tsInfo.getDuration();
+				time = segmentEnd;
+				if (segmentEnd <= clipStart + EPSILON)
+					continue;
+
+				Path source = inputDir.resolve(tsInfo.getFilename());
+				String name = String.format("%04d.ts", linked + cut);
+				Path target = outputDir.resolve(name);
+
+				if (segmentStart >= clipStart - EPSILON && segmentEnd <= clipEnd + EPSILON) {
+					// All of it is in the clip.
+					FileCloner.cloneFile(source, target);
+					output.add(new TsInfo(name, tsInfo.getDuration(), TsInfo.Type.VIDEO_FILE));
+					linked++;
+				} else {
+					// It is at an edge of the clip, only the part in the clip is kept.
+					float partStart = Math.max(clipStart - segmentStart, 0);
+					float partEnd = Math.min(clipEnd, segmentEnd) - segmentStart;
+					if (partEnd - partStart < MIN_PART)
+						continue;
+
+					FFmpeg ffmpeg = new FFmpeg(clientId, channelNo, source.toString(), jobIdNumber);
+					ffmpeg.cutSegment(target.toString(), partStart, segmentEnd <= clipEnd ? 0 : partEnd - partStart);
+					if (!Files.exists(target) || Files.size(target) == 0) {
+						LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Unable to cut: " + source));
+						return remove(outputDir, false);
+					}
+
+					// The cut starts at the key frame before the clip's start, its duration is what was written.
+					float duration = new FFmpeg(clientId, channelNo, target.toString(), jobIdNumber).getMediaInfo().getDuration();
+					output.add(new TsInfo(name, duration > 0 ? duration : partEnd - partStart, TsInfo.Type.VIDEO_FILE));
+					cut++;
+				}
+			}
+		} catch (EncodeTimeoutException e) {
+			remove(outputDir, false);
+			throw e;
+		} catch (Exception e) {
+			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Unable to clip by segments: " + inputM3U8), e);
+			return remove(outputDir, false);
+		}
+
+		if (output.countVideos() == 0)
+			return remove(outputDir, false);
+
+		output.add(TsInfo.newEndList());
+		output.updateTargetDuration();
+		output.write();
+
+		EncoderMetrics.getInstance().add("archive_segments_linked", linked);
+		EncoderMetrics.getInstance().add("archive_segments_cut", cut);
+		LogSystem.getInstance().printInfo(clientId, channelNo, formatMessageForLog("Clipped " + inputM3U8 + " by segments, linked:[" + linked + "] cut:[" + cut + "]"));
+		return true;
+	}
+
+	/** This will remove what was written of the clip.
+	 * @return the result.
+	 * */
+	private boolean remove(Path outputDir, boolean result) {
+		try {
+			if (Files.exists(outputDir))
+				MediaProcess.deleteRecursively(outputDir);
+		} catch (Exception e) {
+			LogSystem.getInstance().printError(clientId, channelNo, formatMessageForLog("Unable to delete: " + outputDir), e);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,79 @@
+package jEncoder.media;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** This runs the independent steps of one job at the same time, ie, the renditions and the MP3 of a recording.
+ * The steps that depend on them run after await(). How many ffmpeg processes actually run at once is limited by the
+ * CpuBudget and not by this class.
+ * */
+public class SubTaskGroup {
+
+	/** The threads the sub-tasks of all jobs run on. */
+	private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "SubTask-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** The sub-tasks that were submitted. */
+	private LinkedList<Future<?>> ltFutures = new LinkedList<Future<?>>();
+
+	/** This will start the sub-task.
+	 * */
+	public void submit(Runnable task) {
+		ltFutures.add(executor.submit(task));
+	}
+
+	/** This will wait for all of the sub-tasks to finish. If any of them failed then the first failure is thrown once all
+	 * of them are done.
+	 * */
+	public void await() {
+		Throwable failure = null;
+		for (Future<?> future : ltFutures) {
+			try {
+				waitFor(future);
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause();
+			}
+		}
+		ltFutures.clear();
+
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException)failure;
+		if (failure instanceof Error)
+			throw (Error)failure;
+		if (failure != null)
+			throw new RuntimeException(failure);
+	}
+
+	/** Waits for the future to be done, the wait is not given up if the thread is interrupted.
+	 * */
+	private static void waitFor(Future<?> future) throws ExecutionException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					future.get();
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package jEncoder.media;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A blocking queue of work orders. Orders are handed out by command priority first (see getPriority())
+ * and then in the order they arrived. Workers block in take() and wake up the instant an order is put().
+ * */
+public class WorkOrderQueue {
+
+	/** Arrival counter so that orders of the same priority are handed out first in, first out. */
+	private static final AtomicLong sequence = new AtomicLong();
+
+	/** The queued work orders. */
+	private final PriorityBlockingQueue<WorkOrder> queue = new PriorityBlockingQueue<WorkOrder>();
+
+	/** The name of this queue, used in the logs. */
+	private final String name;
+
+	public WorkOrderQueue(String name) {
+		this.name = name;
+	}
+
+	/** This will add the work order to the queue. Never blocks.
+	 * */
+	public void put(ProcessParameters pp) {
+		queue.put(new WorkOrder(pp));
+	}
+
+	/** This will wait until a work order is available.
+	 * @return the next work order to process.
+	 * */
+	public ProcessParameters take() throws InterruptedException {
+		return queue.take().pp;
+	}
+
+	/** @return the number of work orders waiting to be processed.
+	 * */
+	public int size() {
+		return queue.size();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** @return the priority for the command, lower is handed out first.
+	 * DOWNLOAD: The user is waiting on the download and it is not re-encoded therefore it goes first.
+	 * IN/OUT: Quick and every archive of the channel depends on them.
+	 * ARCHIVE: Clipping of an already encoded video.
+	 * RECORDING: Full encoding of a recording, the longest job.
+	 * */
+	public static int getPriority(ProcessParameters.COMMAND cmd) {
+		switch (cmd) {
+		case DOWNLOAD:
+			return 0;
+		case IN:
+		case OUT:
+			return 1;
+		case ARCHIVE:
+			return 2;
+		case RECORDING:
+			return 3;
+		}
+		return 4;
+	}
+
+	/** A work order with its place in line.
+	 * */
+	private static class WorkOrder implements Comparable<WorkOrder> {
+		final ProcessParameters pp;
+		final int priority;
+		final long arrival;
+
+		WorkOrder(ProcessParameters pp) {
+			this.pp = pp;
+			this.priority = getPriority(pp.cmd);
+			this.arrival = sequence.incrementAndGet();
+		}
+
+		@Override
+		public int compareTo(WorkOrder o) {
+			if (priority != o.priority)
+				return priority < o.priority ? -1 : 1;
+			if (arrival != o.arrival)
+				return arrival < o.arrival ? -1 : 1;
+			return 0;
+		}
+	}
+}
@@ -9,200 +9,324 @@ import java.io.StringWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * The print methods only put a Record on a queue, the lines are formatted and written by one writer thread. Nothing
+ * is locked while logging so a thread that logs a lot does not hold up the others. The file is flushed once
+ * FLUSH_SIZE characters are waiting or FLUSH_INTERVAL has gone by, not on every line.
  *
  * @author molnarr2
  */
 public class LogSystem {
-    
+
 	/** The path to the log file without the extension. */
     public static final String LOG_ERROR_FILE_PATH = "/opt/log/gomedia/jEncoder.";
 
+    /** The most records that can wait on the writer. A thread logging past this waits for the writer to catch up. */
+    private static final int MAX_PENDING = 1024 * 64;
+
+    /** Flush once this many characters have been written since the last flush. */
+    private static final int FLUSH_SIZE = 1024 * 64;
+
+    /** Flush once this much time has gone by since the first line that was not flushed. (nanoseconds) */
+    private static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /** The level of a line. */
+    public enum Level {INFO, ERROR};
+
+    /** A line to be logged. */
+    public static class Record {
+    	/** When it was logged. (milliseconds) */
+    	public final long time;
+    	/** True if the client information is set. */
+    	public final boolean hasClient;
+    	/** The client information, 0 if not set. */
+    	public final int clientId;
+    	public final int channelNo;
+    	/** The job ID number found at the start of the line, ie, "Job [J000012] ...". null if none. */
+    	public final String jobIdNumber;
+    	public final Level level;
+    	public final String line;
+    	/** The exception, null if none. */
+    	public final Throwable throwable;
+
+    	Record(boolean hasClient, int clientId, int channelNo, Level level, String line, Throwable throwable) {
+    		this.time = System.currentTimeMillis();
+    		this.hasClient = hasClient;
+    		this.clientId = clientId;
+    		this.channelNo = channelNo;
+    		this.jobIdNumber = findJobIdNumber(line);
+    		this.level = level;
+    		this.line = line;
+    		this.throwable = throwable;
+    	}
+    }
+
     // The only instance of this class.
-    private static LogSystem instance = null;
-    
+    private static final LogSystem instance = new LogSystem();
+
+    // The records waiting to be written.
+    private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<Record>();
+    // The number of records in the queue.
+    private final AtomicInteger pending = new AtomicInteger();
+    // The thread that writes the records.
+    private final Thread writer;
+
+    // The rest is only used by the writer thread.
+
     // This is where the logging of this class will go to.
     private BufferedWriter bwLog = null;
     // The date the logging system is using.
     private String bwLogDate = null;
-    
+    // The formats of the date and time.
+    private final DateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd");
+    private final DateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+    // The second the cached date and time are for.
+    private long cachedSecond = -1;
+    private String cachedDate = null;
+    private String cachedTime = null;
+    // The lines written since the last flush.
+    private StringBuilder sbUnflushed = new StringBuilder(FLUSH_SIZE);
+    // When the first line that was not flushed was written. (nanoseconds)
+    private long unflushedSince = 0;
+
     protected LogSystem() {
-        // Exists only to defeat instantiation.
+        writer = new Thread("LogSystem") {
+        	public void run() {
+        		writeRecords();
+        	}
+        };
+        writer.setDaemon(true);
+        writer.start();
+
+        // Write out what is left when the encoder shuts down.
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+        	public void run() {
+        		drain();
+        	}
+        });
     }
-    
+
     /** @return the only instance of this class.
      */
     public static LogSystem getInstance() {
-        if(instance == null) {
-            instance = new LogSystem();
-        }
         return instance;
     }
-    
-    /** This will print an "INFO:" line. 
+
+    /** This will print an "INFO:" line.
      * @param line should not have \n, that will be added. Only the information should be in the line.
      */
-    public synchronized void printInfo(int clientId, int channelNo, String line) {
-        beginFileWrite();
-       
-        // Write out to the file.
-        try {
-        	String message = "CID" + clientId + "-" + channelNo + "-T" + this.currentTime() + "  INFO: " + line + System.lineSeparator();
-        	System.out.print(message);
-            bwLog.write(message);
-            bwLog.flush();
-        } catch (IOException e) {
-            ;
-        }
+    public void printInfo(int clientId, int channelNo, String line) {
+    	log(new Record(true, clientId, channelNo, Level.INFO, line, null));
     }
 
-    /** This will print an "ERROR:" line. 
+    /** This will print an "ERROR:" line.
      * @param line should not have \n, that will be added. Only the error should be in the line.
      */
-    public synchronized void printError(int clientId, int channelNo, String line, Exception e) {
-        beginFileWrite();
-       
-		StringWriter sw = new StringWriter();
-		e.printStackTrace(new PrintWriter(sw));
-		String exceptionAsString = sw.toString();    		
-        
-        // Write out to the file.
-        try {
-        	String message = "CID" + clientId + "-" + channelNo + "-T" + this.currentTime() + "  ERROR: " + line + System.lineSeparator() + "    EXCEPTION: " + exceptionAsString + System.lineSeparator();
-        	System.out.print(message);
-            bwLog.write(message);
-            bwLog.flush();
-        } catch (IOException ioe) {
-            ;
-        }        
-    }
-    
-    /** This will print an "ERROR:" line. 
+    public void printError(int clientId, int channelNo, String line, Exception e) {
+    	log(new Record(true, clientId, channelNo, Level.ERROR, line, e));
+    }
+
+    /** This will print an "ERROR:" line.
      * @param line should not have \n, that will be added. Only the error should be in the line.
      */
-    public synchronized void printError(int clientId, int channelNo, String line, Throwable e) {
-        beginFileWrite();
-       
-		StringWriter sw = new StringWriter();
-		e.printStackTrace(new PrintWriter(sw));
-		String exceptionAsString = sw.toString();    		
-        
-        // Write out to the file.
-        try {
-        	String message = "CID" + clientId + "-" + channelNo + "-T" + this.currentTime() + "  ERROR: " + line + System.lineSeparator() + "    EXCEPTION: " + exceptionAsString + System.lineSeparator();
-        	System.out.print(message);
-            bwLog.write(message);
-            bwLog.flush();
-        } catch (IOException ioe) {
-            ;
-        }        
-    }
-    
-    /** This will print an "ERROR:" line. 
+    public void printError(int clientId, int channelNo, String line, Throwable e) {
+    	log(new Record(true, clientId, channelNo, Level.ERROR, line, e));
+    }
+
+    /** This will print an "ERROR:" line.
      * @param line should not have \n, that will be added. Only the error should be in the line.
      */
-    public synchronized void printError(int clientId, int channelNo, String line) {
-        beginFileWrite();
-        
-        // Write out to the file.
-        try {
-        	String message = "CID" + clientId + "-" + channelNo + "-T" + this.currentTime() + "  ERROR: " + line + System.lineSeparator() + System.lineSeparator();
-        	System.out.print(message);
-            bwLog.write(message);
-            bwLog.flush();
-        } catch (IOException ioe) {
-            ;
-        }        
-    }
-    
-    /** This will print an "ERROR:" line. 
+    public void printError(int clientId, int channelNo, String line) {
+    	log(new Record(true, clientId, channelNo, Level.ERROR, line, null));
+    }
+
+    /** This will print an "ERROR:" line.
      * @param line should not have \n, that will be added. Only the error should be in the line.
      */
-    public synchronized void printError(String line, Exception e) {
-        beginFileWrite();
-       
-		StringWriter sw = new StringWriter();
-		e.printStackTrace(new PrintWriter(sw));
-		String exceptionAsString = sw.toString();    		
-        
-        // Write out to the file.
-        try {
-        	String message = this.currentTime() + "T  ERROR: " + line + System.lineSeparator() + "    EXCEPTION: " + exceptionAsString + System.lineSeparator();
-        	System.out.print(message);
-            bwLog.write(message);
-            bwLog.flush();
-        } catch (IOException ioe) {
-            ;
-        }        
-    }
-    
-    /** This will print an "ERROR:" line. 
+    public void printError(String line, Exception e) {
+    	log(new Record(false, 0, 0, Level.ERROR, line, e));
+    }
+
+    /** This will print an "ERROR:" line.
      * @param line should not have \n, that will be added. Only the error should be in the line.
      */
-    public synchronized void printError(String line) {
-        beginFileWrite();
-        
-        // Write out to the file.
-        try {
-        	String message = this.currentTime() + "T  ERROR: " + line + System.lineSeparator();
-        	System.out.print(message);
-            bwLog.write(message);
-            bwLog.flush();
-        } catch (IOException ioe) {
-            ;
-        }        
-    }
-    
-    /** This will make sure the correct file is open and ready to be written to.
+    public void printError(String line) {
+    	log(new Record(false, 0, 0, Level.ERROR, line, null));
+    }
+
+    /** This will hand the record to the writer thread.
+     */
+    private void log(Record record) {
+    	// Only wait if the writer has fallen far behind.
+    	while (pending.get() >= MAX_PENDING && writer.isAlive() && Thread.currentThread() != writer) {
+    		LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    	}
+
+    	pending.incrementAndGet();
+    	queue.offer(record);
+    }
+
+    /** This is the writer thread. It does not stop.
+     */
+    private void writeRecords() {
+    	while (true) {
+    		try {
+    			if (!writeQueued()) {
+    				// Nothing to write, flush if it is time and wait for more.
+    				LockSupport.parkNanos(Math.min(flushIfDue(), TimeUnit.MILLISECONDS.toNanos(50)));
+    			}
+    		} catch (Throwable t) {
+    			// Never let the writer die.
+    			LockSupport.parkNanos(FLUSH_INTERVAL);
+    		}
+    	}
+    }
+
+    /** This will flush if FLUSH_INTERVAL has gone by since the first line that was not flushed.
+     * @return the nanoseconds until the next flush is due.
+     */
+    private synchronized long flushIfDue() {
+    	if (sbUnflushed.length() == 0)
+    		return FLUSH_INTERVAL;
+
+    	long waitNanos = FLUSH_INTERVAL - (System.nanoTime() - unflushedSince);
+    	if (waitNanos > 0)
+    		return waitNanos;
+
+    	flush();
+    	return FLUSH_INTERVAL;
+    }
+
+    /** This will write all of the queued records.
+     * @return true if any were written.
+     */
+    private synchronized boolean writeQueued() {
+    	boolean bWritten = false;
+    	Record record;
+    	while ((record = queue.poll()) != null) {
+    		pending.decrementAndGet();
+    		write(record);
+    		bWritten = true;
+
+    		if (sbUnflushed.length() >= FLUSH_SIZE)
+    			flush();
+    	}
+    	return bWritten;
+    }
+
+    /** This will write out what is queued and flush it. Used at shut down.
+     */
+    private synchronized void drain() {
+    	writeQueued();
+    	flush();
+    }
+
+    /** This will format the record the same as the log file has always been written.
+     */
+    private void write(Record record) {
+    	updateDateTime(record.time);
+
+    	// The log file is by day.
+    	if (!cachedDate.equals(bwLogDate)) {
+    		flush();
+    		beginFileWrite();
+    	}
+
+    	if (sbUnflushed.length() == 0)
+    		unflushedSince = System.nanoTime();
+
+    	String ls = System.lineSeparator();
+    	if (record.hasClient)
+    		sbUnflushed.append("CID").append(record.clientId).append('-').append(record.channelNo).append("-T").append(cachedTime);
+    	else
+    		sbUnflushed.append(cachedTime).append('T');
+    	sbUnflushed.append("  ").append(record.level).append(": ").append(record.line).append(ls);
+
+    	if (record.throwable != null) {
+    		StringWriter sw = new StringWriter();
+    		record.throwable.printStackTrace(new PrintWriter(sw));
+    		sbUnflushed.append("    EXCEPTION: ").append(sw.toString()).append(ls);
+    	} else if (record.hasClient && record.level == Level.ERROR) {
+    		sbUnflushed.append(ls);
+    	}
+    }
+
+    /** This will write the lines to the log file and standard out.
+     */
+    private void flush() {
+    	if (sbUnflushed.length() == 0)
+    		return;
+
+    	String lines = sbUnflushed.toString();
+    	sbUnflushed.setLength(0);
+
+    	System.out.print(lines);
+    	if (bwLog != null) {
+    		try {
+    			bwLog.write(lines);
+    			bwLog.flush();
+    		} catch (IOException e) {
+    			;
+    		}
+    	}
+    }
+
+    /** This will make sure the file for the current date is open and ready to be written to.
      * If the file is old, ie, from yesterday than close that file and start up a
      * new one.
      */
     private void beginFileWrite() {
         try {
 
-            // Since the log file is already open, see if a new one needs to be opened.
+            // Close the file of the day before.
             if (this.bwLog != null) {
-                // The current date matches the date of the day therefore don't create another one.
-                String currentDate = this.currentDate();
-                if (currentDate.equals(this.bwLogDate)) {
-                    return;
-                }
-                
                 this.bwLog.close();
                 this.bwLog = null;
             }
 
             // Create a new log file.
-            String currentDate = this.currentDate();
-            String fileName = LogSystem.LOG_ERROR_FILE_PATH + currentDate;
+            String fileName = LogSystem.LOG_ERROR_FILE_PATH + cachedDate;
             File file = new File(fileName);
             if (!file.exists()) {
                 file.createNewFile();
-            }                                    
+            }
 
             FileWriter fw = new FileWriter(file.getAbsoluteFile(), true);
-            this.bwLog = new BufferedWriter(fw);
-            this.bwLogDate = currentDate;
-        
+            this.bwLog = new BufferedWriter(fw, FLUSH_SIZE);
+            this.bwLogDate = cachedDate;
+
         } catch (IOException e) {
             this.bwLog = null;
-        } 
+            this.bwLogDate = cachedDate;
+        }
     }
-    
-    /** @return the current date.
+
+    /** This will update the cached date and time if the time is in a different second. Example date: 2013.05.16 time: 11:34:19
      */
-    private String currentDate() {
-        DateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd");
-        Date date = new Date();
-        return dateFormat.format(date);
+    private void updateDateTime(long time) {
+    	long second = time / 1000;
+    	if (second == cachedSecond)
+    		return;
+
+    	Date date = new Date(time);
+    	cachedDate = dateFormat.format(date);
+    	cachedTime = timeFormat.format(date);
+    	cachedSecond = second;
     }
-    
-    /** @return the current time. Example: HH:MM:SST
+
+    /** @return the job ID number at the start of the line, ie, "Job [J000012] ...". null if none.
      */
-    private String currentTime() {
-        DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
-        Date date = new Date();
-        return dateFormat.format(date);        
+    private static String findJobIdNumber(String line) {
+    	if (line == null || !line.startsWith("Job ["))
+    		return null;
+    	int end = line.indexOf(']', 5);
+    	if (end == -1)
+    		return null;
+    	return line.substring(5, end);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,319 @@
+package jEncoder.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jEncoder.media.ChunkedEncoder;
+import jEncoder.media.CpuBudget;
+import jEncoder.media.EncoderMetrics;
+import jEncoder.media.MediaEncoderEngine;
+import jEncoder.util.LogSystem;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** This is the listener the web server pushes encoding jobs to, so that a job does not have to wait on the next
+ * encoding_jobs.php poll. The body is the same JSON that encoding_jobs.php returns:
+ * {"archive":[...], "inout":[...], "download":[...]}. Any of the arrays can be left out.
+ *
+ * POST /jobs
+ *
+ * It also shows what the encoder is working on, see MediaEncoderEngine.getProgressAsJSON().
+ *
+ * GET /progress
+ *
+ * And the counters of what it has done, see EncoderMetrics.
+ *
+ * GET /metrics
+ *
+ * Another node shares the chunks of a long encode with it, the response is sent once the chunk is encoded. See
+ * ChunkedEncoder.
+ *
+ * POST /chunk
+ *
+ * The listener is bound to JOB_INTAKE_BIND only, and when JOB_INTAKE_SECRET is set every request must send it in the
+ * X-Job-Intake-Secret header or it is answered with 401.
+ * */
+public class JobIntakeServer {
+
+	/** The header the shared secret is sent in. */
+	public static final String SECRET_HEADER = "X-Job-Intake-Secret";
+
+	/** Largest request body accepted. */
+	private static final int MAX_BODY_SIZE = 1024 * 1024;
+
+	/** Number of threads the requests are answered on. A chunk is handed to its own threads, see chunkExecutor. */
+	private static final int REQUEST_THREADS = 4;
+
+	/** The address to listen on. */
+	private String bindAddress;
+
+	/** The port to listen on. */
+	private int port;
+
+	/** The secret each request must send, null = not checked. */
+	private String secret;
+
+	private HttpServer server = null;
+
+	private ExecutorService requestExecutor = null;
+
+	/** Encodes the chunks and answers them once they are done. There is no queue, a chunk sent when all of its threads
+	 * are encoding is answered with 503 and the other node encodes it itself. */
+	private ThreadPoolExecutor chunkExecutor = null;
+
+	/** @param bindAddress is the address to listen on.
+	 * @param port is the port to listen on.
+	 * @param secret is the secret each request must send in the SECRET_HEADER. null or "none" = not checked.
+	 * */
+	public JobIntakeServer(String bindAddress, int port, String secret) {
+		this.bindAddress = bindAddress;
+		this.port = port;
+		this.secret = (secret == null || "none".equals(secret) || secret.isEmpty()) ? null : secret;
+	}
+
+	/** This will start listening for jobs.
+	 * */
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+		server.createContext("/jobs", new JobsHandler());
+		server.createContext("/progress", new ProgressHandler());
+		server.createContext("/metrics", new MetricsHandler());
+		server.createContext("/chunk", new ChunkHandler());
+		
+		// A chunk is answered once it is encoded, the other requests must not wait on it. Each chunk takes at least two
+		// ffmpeg threads from the budget.
+		int chunkThreads = Math.max(1, CpuBudget.getInstance().getTotalThreads() / 2);
+		chunkExecutor = new ThreadPoolExecutor(chunkThreads, chunkThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		chunkExecutor.allowCoreThreadTimeOut(true);
+		requestExecutor = Executors.newFixedThreadPool(REQUEST_THREADS);
+		server.setExecutor(requestExecutor);
+		server.start();
+
+		LogSystem.getInstance().printInfo(0, 0, "Job intake listening on " + bindAddress + " port:[" + port + "]");
+	}
+
+	/** This will stop listening for jobs.
+	 * */
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+			requestExecutor.shutdown();
+			chunkExecutor.shutdown();
+		}
+	}
+
+	/** Accepts the pushed jobs and hands them to the engine.
+	 * */
+	private class JobsHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!isAuthorized(exchange)) {
+					sendResponse(exchange, 401, "{\"error\":\"unauthorized\"}");
+					return;
+				}
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					sendResponse(exchange, 405, "{\"error\":\"POST only\"}");
+					return;
+				}
+
+				String body = readBody(exchange.getRequestBody());
+				if (body == null) {
+					sendResponse(exchange, 413, "{\"error\":\"body too large\"}");
+					return;
+				}
+
+				Object parsed = JSONValue.parse(body);
+				if (!(parsed instanceof JSONObject)) {
+					sendResponse(exchange, 400, "{\"error\":\"invalid json\"}");
+					return;
+				}
+
+				int count = MediaEncoderEngine.getInstance().addEncodingJobs((JSONObject)parsed);
+				sendResponse(exchange, 202, "{\"received\":" + count + "}");
+
+			} catch (Exception e) {
+				LogSystem.getInstance().printError("Job intake error.", e);
+				sendResponse(exchange, 500, "{\"error\":\"unable to process jobs\"}");
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/** Encodes a chunk for another node. It is encoded and answered on the chunkExecutor.
+	 * */
+	private class ChunkHandler implements HttpHandler {
+
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			boolean handedOff = false;
+			try {
+				if (!isAuthorized(exchange)) {
+					sendResponse(exchange, 401, "{\"error\":\"unauthorized\"}");
+					return;
+				}
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					sendResponse(exchange, 405, "{\"error\":\"POST only\"}");
+					return;
+				}
+
+				String body = readBody(exchange.getRequestBody());
+				if (body == null) {
+					sendResponse(exchange, 413, "{\"error\":\"body too large\"}");
+					return;
+				}
+
+				Object parsed = JSONValue.parse(body);
+				if (!(parsed instanceof JSONObject)) {
+					sendResponse(exchange, 400, "{\"error\":\"invalid json\"}");
+					return;
+				}
+
+				final JSONObject request = (JSONObject)parsed;
+				try {
+					chunkExecutor.execute(new Runnable() {
+						public void run() {
+							encodeChunk(exchange, request);
+						}
+					});
+					handedOff = true;
+				} catch (RejectedExecutionException e) {
+					sendResponse(exchange, 503, "{\"error\":\"busy\"}");
+				}
+
+			} catch (Exception e) {
+				LogSystem.getInstance().printError("Chunk error.", e);
+				sendResponse(exchange, 500, "{\"error\":\"unable to encode chunk\"}");
+			} finally {
+				if (!handedOff)
+					exchange.close();
+			}
+		}
+
+		private void encodeChunk(HttpExchange exchange, JSONObject request) {
+			try {
+				if (ChunkedEncoder.encodeChunk(request))
+					sendResponse(exchange, 200, "{\"done\":true}");
+				else
+					sendResponse(exchange, 500, "{\"error\":\"unable to encode chunk\"}");
+
+			} catch (Exception e) {
+				LogSystem.getInstance().printError("Chunk error.", e);
+				try {
+					sendResponse(exchange, 500, "{\"error\":\"unable to encode chunk\"}");
+				} catch (IOException e2) {
+					;
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/** Shows the progress of the running encodes.
+	 * */
+	private class ProgressHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!isAuthorized(exchange)) {
+					sendResponse(exchange, 401, "{\"error\":\"unauthorized\"}");
+					return;
+				}
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					sendResponse(exchange, 405, "{\"error\":\"GET only\"}");
+					return;
+				}
+				sendResponse(exchange, 200, MediaEncoderEngine.getInstance().getProgressAsJSON().toJSONString());
+
+			} catch (Exception e) {
+				LogSystem.getInstance().printError("Progress error.", e);
+				sendResponse(exchange, 500, "{\"error\":\"unable to get progress\"}");
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/** Shows the counters of the encoder.
+	 * */
+	private class MetricsHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!isAuthorized(exchange)) {
+					sendResponse(exchange, 401, "{\"error\":\"unauthorized\"}");
+					return;
+				}
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					sendResponse(exchange, 405, "{\"error\":\"GET only\"}");
+					return;
+				}
+				sendResponse(exchange, 200, EncoderMetrics.getInstance().getAsJSON().toJSONString());
+
+			} catch (Exception e) {
+				LogSystem.getInstance().printError("Metrics error.", e);
+				sendResponse(exchange, 500, "{\"error\":\"unable to get metrics\"}");
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/** @return true if the request sent the secret or no secret is set.
+	 * */
+	private boolean isAuthorized(HttpExchange exchange) {
+		if (secret == null)
+			return true;
+
+		String sent = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+		if (sent == null)
+			return false;
+		// Compared in the same time however much of it matches.
+		return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), sent.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** @return the body of the request or null if it is larger than MAX_BODY_SIZE.
+	 * */
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte buffer[] = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			if (out.size() > MAX_BODY_SIZE)
+				return null;
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void sendResponse(HttpExchange exchange, int status, String json) throws IOException {
+		byte bytes[] = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(bytes);
+		os.close();
+	}
+}